@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime;
+
+import com.google.inject.Injector;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.BenchmarkFixtures;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.BusPositionsFixture;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.FixtureWMATAAPIService;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineModule;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineStages;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATAAPIService;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATARouteMapperService;
+
+import java.io.IOException;
+
+/**
+ * A {@link GTFSRealtimeProviderImpl} wired up against the fixtures, for driving
+ * {@code refreshVehicles()} one poll cycle at a time.
+ *
+ * @author kurt
+ */
+public class VehiclePipeline {
+
+  private final int _vehicleCount;
+  private final GTFSRealtimeProviderImpl _provider;
+  private final FixtureWMATAAPIService _api;
+  private final PipelineStages _stages;
+  private final BusPositionsFixture _fixture;
+  private int _cycle = 0;
+
+  public VehiclePipeline(int vehicleCount) throws Exception {
+    _vehicleCount = vehicleCount;
+
+    Injector injector = BenchmarkFixtures.createInjector(new PipelineModule());
+    injector.getInstance(WMATARouteMapperService.class).start();
+
+    _provider = injector.getInstance(GTFSRealtimeProviderImpl.class);
+    _api = (FixtureWMATAAPIService) injector.getInstance(WMATAAPIService.class);
+    _stages = injector.getInstance(PipelineStages.class);
+    _fixture = new BusPositionsFixture();
+  }
+
+  public int getVehicleCount() {
+    return _vehicleCount;
+  }
+
+  public PipelineStages getStages() {
+    return _stages;
+  }
+
+  /**
+   * Stages the JBusPositions response for the next cycle. Rendering the
+   * response is not part of the pipeline, so callers should do this outside
+   * whatever they are measuring.
+   */
+  public void prepareCycle() throws IOException {
+    _api.setBusPositions(_fixture.render(_vehicleCount, _cycle++));
+  }
+
+  public void runCycle() throws WMATAAPIException {
+    _provider.refreshVehicles();
+  }
+}
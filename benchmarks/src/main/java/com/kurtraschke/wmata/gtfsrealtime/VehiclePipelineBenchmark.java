@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@code refreshVehicles()} end to end, from parsing the JBusPositions
+ * response through publication to the sinks. Each operation is one poll
+ * cycle; divide by the vehicle count for per-vehicle figures, or use
+ * {@link VehiclePipelineHarness} for a per-stage breakdown.
+ *
+ * @author kurt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class VehiclePipelineBenchmark {
+
+  @Param({"1000", "5000", "20000"})
+  public int vehicles;
+
+  private VehiclePipeline _pipeline;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    _pipeline = new VehiclePipeline(vehicles);
+
+    /*
+     * The first cycle maps every trip; after that the trip cache is warm, as
+     * it would be in steady state.
+     */
+    _pipeline.prepareCycle();
+    _pipeline.runCycle();
+  }
+
+  /*
+   * A single cycle takes milliseconds, so the overhead of a per-invocation
+   * setup is negligible here.
+   */
+  @Setup(Level.Invocation)
+  public void prepareCycle() throws Exception {
+    _pipeline.prepareCycle();
+  }
+
+  @Benchmark
+  public void refreshVehicles() throws WMATAAPIException {
+    _pipeline.runCycle();
+  }
+}
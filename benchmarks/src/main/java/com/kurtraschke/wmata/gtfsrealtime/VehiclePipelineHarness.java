@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime;
+
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineStages;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineStages.Stage;
+
+import java.io.PrintStream;
+
+/**
+ * Runs poll cycles through {@link VehiclePipeline} at several fleet sizes and
+ * reports, for each stage, the time per cycle along with time and bytes
+ * allocated per vehicle. "Other" is whatever {@code refreshVehicles()} spends
+ * outside the instrumented stages: deduplication against the last update for
+ * each vehicle, and building the protobuf entities.
+ *
+ * Usage: {@code VehiclePipelineHarness [vehicles...]}; by default 1000, 5000
+ * and 20000 vehicles are run.
+ *
+ * @author kurt
+ */
+public class VehiclePipelineHarness {
+
+  private static final int WARMUP_CYCLES = 20;
+  private static final int MEASURED_CYCLES = 20;
+
+  public static void main(String[] args) throws Exception {
+    int[] fleetSizes = new int[] {1000, 5000, 20000};
+
+    if (args.length > 0) {
+      fleetSizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        fleetSizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    for (int vehicles : fleetSizes) {
+      run(vehicles, System.out);
+    }
+  }
+
+  private static void run(int vehicles, PrintStream out) throws Exception {
+    VehiclePipeline pipeline = new VehiclePipeline(vehicles);
+    PipelineStages stages = pipeline.getStages();
+
+    for (int i = 0; i < WARMUP_CYCLES; i++) {
+      pipeline.prepareCycle();
+      pipeline.runCycle();
+    }
+
+    stages.reset();
+    stages.setEnabled(true);
+
+    long totalNanos = 0;
+    long totalBytes = 0;
+
+    for (int i = 0; i < MEASURED_CYCLES; i++) {
+      pipeline.prepareCycle();
+
+      long startBytes = stages.allocatedBytes();
+      long startNanos = System.nanoTime();
+      pipeline.runCycle();
+      totalNanos += System.nanoTime() - startNanos;
+      totalBytes += stages.allocatedBytes() - startBytes;
+    }
+
+    stages.setEnabled(false);
+
+    long perVehicle = (long) vehicles * MEASURED_CYCLES;
+    long otherNanos = totalNanos;
+    long otherBytes = totalBytes;
+
+    out.printf("%d vehicles, %d cycles%n", vehicles, MEASURED_CYCLES);
+    out.printf("  %-18s %12s %12s %12s%n", "stage", "ms/cycle", "us/vehicle",
+        "B/vehicle");
+
+    for (Stage stage : Stage.values()) {
+      print(out, stage.name().toLowerCase(), stages.getNanos(stage),
+          stages.getBytes(stage), perVehicle);
+      otherNanos -= stages.getNanos(stage);
+      otherBytes -= stages.getBytes(stage);
+    }
+
+    print(out, "other", otherNanos, otherBytes, perVehicle);
+    print(out, "total", totalNanos, totalBytes, perVehicle);
+    out.println();
+  }
+
+  private static void print(PrintStream out, String name, long nanos,
+      long bytes, long perVehicle) {
+    out.printf("  %-18s %12.3f %12.3f %12d%n", name, nanos / 1e6
+        / MEASURED_CYCLES, nanos / 1e3 / perVehicle, bytes / perVehicle);
+  }
+}
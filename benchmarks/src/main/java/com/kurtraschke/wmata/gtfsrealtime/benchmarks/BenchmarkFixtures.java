@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Access to the fixtures checked in under {@code fixtures/}: a small subset of
+ * the WMATA GTFS covering routes 70 and 79, and API responses for those routes
+ * on Tuesday, 15 July 2014.
+ *
+ * @author kurt
+ */
+public class BenchmarkFixtures {
+
+  public static final String SERVICE_DATE = "2014-07-15";
+
+  private static final String[] GTFS_FILES = new String[] {
+      "agency.txt", "calendar.txt", "calendar_dates.txt", "routes.txt",
+      "stops.txt", "stop_times.txt", "trips.txt"};
+
+  private BenchmarkFixtures() {
+
+  }
+
+  public static Injector createInjector(Module... modules) throws IOException {
+    List<Module> allModules = new ArrayList<>(Arrays.asList(modules));
+    allModules.add(new BenchmarkModule(extractGtfs()));
+    return Guice.createInjector(allModules);
+  }
+
+  public static URL getResource(String name) {
+    return Resources.getResource(BenchmarkFixtures.class, "/fixtures/" + name);
+  }
+
+  public static byte[] readResource(String name) throws IOException {
+    return Resources.toByteArray(getResource(name));
+  }
+
+  /**
+   * GtfsReader wants a directory on disk, but the fixtures may well be inside
+   * the benchmarks jar, so copy them out to a temporary directory first.
+   */
+  private static File extractGtfs() throws IOException {
+    File gtfsDir = Files.createTempDir();
+    gtfsDir.deleteOnExit();
+
+    for (String name : GTFS_FILES) {
+      File target = new File(gtfsDir, name);
+      target.deleteOnExit();
+      try (InputStream in = getResource("gtfs/" + name).openStream();
+          OutputStream out = new FileOutputStream(target)) {
+        ByteStreams.copy(in, out);
+      }
+    }
+
+    return gtfsDir;
+  }
+}
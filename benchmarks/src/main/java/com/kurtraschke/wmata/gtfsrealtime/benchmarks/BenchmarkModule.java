@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Scopes;
+import com.google.inject.name.Names;
+import com.kurtraschke.wmata.gtfsrealtime.AgencyTimeZone;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+import com.kurtraschke.wmata.gtfsrealtime.SystemClock;
+import com.kurtraschke.wmata.gtfsrealtime.events.NoOpPipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.services.AgencyTimeZoneProvider;
+import com.kurtraschke.wmata.gtfsrealtime.services.GtfsRelationalDaoProvider;
+import com.kurtraschke.wmata.gtfsrealtime.services.HttpResponseSource;
+import com.kurtraschke.wmata.gtfsrealtime.services.ResponseSource;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATAAPIService;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * Stands in for {@code WMATARealtimeModule} in benchmarks: the same services,
+ * but backed by the checked-in fixtures and in-memory caches rather than the
+ * WMATA API and the on-disk cache store.
+ *
+ * @author kurt
+ */
+public class BenchmarkModule extends AbstractModule {
+
+  private final File _gtfsPath;
+
+  public BenchmarkModule(File gtfsPath) {
+    _gtfsPath = gtfsPath;
+  }
+
+  @Override
+  protected void configure() {
+    /*
+     * Each trial gets its own cache manager, so that state from one trial does
+     * not leak into the next when JMH runs them in the same JVM.
+     */
+    CacheManager cacheManager = CacheManager.newInstance(new Configuration().name(
+        "benchmarks-" + UUID.randomUUID()));
+
+    bind(CacheManager.class).toInstance(cacheManager);
+
+    bind(Cache.class).annotatedWith(Names.named("caches.api")).toInstance(
+        memoryCache(cacheManager, "wmataapi"));
+    bind(Cache.class).annotatedWith(Names.named("caches.trip")).toInstance(
+        memoryCache(cacheManager, "wmatatrip"));
+    bind(Cache.class).annotatedWith(Names.named("caches.alertID")).toInstance(
+        memoryCache(cacheManager, "wmataalertid"));
+    bind(Cache.class).annotatedWith(Names.named("caches.quota")).toInstance(
+        memoryCache(cacheManager, "wmataquota"));
+
+    bind(File.class).annotatedWith(Names.named("GTFS.path")).toInstance(
+        _gtfsPath);
+    bindConstant().annotatedWith(Names.named("WMATA.key")).to("");
+    bindConstant().annotatedWith(Names.named("WMATA.rateLimit")).to(1000.0);
+    bindConstant().annotatedWith(Names.named("WMATA.agencyID")).to("MET");
+    bindConstant().annotatedWith(Names.named("WMATA.badRoutes")).to("");
+    bindConstant().annotatedWith(Names.named("tripMapping.scoreLimit")).to(
+        1500);
+    bind(Properties.class).annotatedWith(Names.named("WMATA.staticMappings")).toInstance(
+        new Properties());
+
+    bind(GtfsRelationalDao.class).toProvider(GtfsRelationalDaoProvider.class).in(
+        Scopes.SINGLETON);
+    bind(TimeZone.class).annotatedWith(AgencyTimeZone.class).toProvider(
+        AgencyTimeZoneProvider.class).in(Scopes.SINGLETON);
+    bind(WMATAAPIService.class).to(FixtureWMATAAPIService.class);
+    bind(Clock.class).to(SystemClock.class);
+    bind(ResponseSource.class).to(HttpResponseSource.class);
+    bind(PipelineEvents.class).to(NoOpPipelineEvents.class);
+
+    requestStaticInjection(DateTimeUtils.class);
+  }
+
+  private static Cache memoryCache(CacheManager cacheManager, String name) {
+    Cache cache = new Cache(new CacheConfiguration(name, 100000));
+    cacheManager.addCache(cache);
+    return cache;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Scales the recorded JBusPositions response up to an arbitrary number of
+ * simulated vehicles.
+ *
+ * Each simulated vehicle is a copy of a recorded one with its own vehicle ID.
+ * Successive cycles advance the timestamps by the refresh interval so the
+ * provider sees fresh positions, except for every tenth vehicle, whose
+ * timestamp never moves, so it is skipped as a duplicate after the first cycle.
+ *
+ * @author kurt
+ */
+public class BusPositionsFixture {
+
+  public static final String RECORDED = "JBusPositions-2014-07-15T08-00.json";
+
+  private static final int CYCLE_SECONDS = 30;
+  private static final int STALE_EVERY = 10;
+
+  private final ObjectMapper _mapper = new ObjectMapper();
+  private final ArrayNode _recorded;
+  private final SimpleDateFormat _format;
+
+  public BusPositionsFixture() throws IOException {
+    _recorded = (ArrayNode) _mapper.readTree(
+        BenchmarkFixtures.getResource(RECORDED)).get("BusPositions");
+    /*
+     * Timestamps are only shifted, never interpreted, so formatting them in
+     * UTC keeps the arithmetic clear of DST transitions.
+     */
+    _format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    _format.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  public int getRecordedVehicleCount() {
+    return _recorded.size();
+  }
+
+  public byte[] render(int vehicleCount, int cycle) throws IOException {
+    ObjectNode root = _mapper.createObjectNode();
+    ArrayNode positions = root.putArray("BusPositions");
+
+    for (int i = 0; i < vehicleCount; i++) {
+      JsonNode template = _recorded.get(i % _recorded.size());
+      ObjectNode position = template.deepCopy();
+
+      position.put("VehicleID", template.get("VehicleID").asText() + "-"
+          + (i / _recorded.size()));
+
+      if (i % STALE_EVERY != 0) {
+        position.put("DateTime", shift(template.get("DateTime").asText(),
+            cycle * CYCLE_SECONDS));
+      }
+
+      positions.add(position);
+    }
+
+    return _mapper.writeValueAsBytes(root);
+  }
+
+  private String shift(String timestamp, int seconds) throws IOException {
+    try {
+      return _format.format(_format.parse(timestamp).getTime() + seconds
+          * 1000L);
+    } catch (ParseException e) {
+      throw new IOException(e);
+    }
+  }
+}
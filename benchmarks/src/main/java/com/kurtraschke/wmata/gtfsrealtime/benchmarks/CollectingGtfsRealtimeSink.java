@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sink which keeps the current set of entities by ID, the way the exporter
+ * does, without building or serving a feed.
+ *
+ * @author kurt
+ */
+public class CollectingGtfsRealtimeSink implements GtfsRealtimeSink {
+
+  private final Map<String, FeedEntity> _entities = new HashMap<>();
+
+  @Override
+  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    _entities.clear();
+    for (FeedEntity entity : update.getEntities()) {
+      _entities.put(entity.getId(), entity);
+    }
+  }
+
+  @Override
+  public synchronized void handleIncrementalUpdate(
+      GtfsRealtimeIncrementalUpdate update) {
+    for (FeedEntity entity : update.getUpdatedEntities()) {
+      _entities.put(entity.getId(), entity);
+    }
+    for (String id : update.getDeletedEntities()) {
+      _entities.remove(id);
+    }
+  }
+
+  public synchronized int getEntityCount() {
+    return _entities.size();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
+import com.kurtraschke.wmata.gtfsrealtime.api.buspositions.BusPositions;
+import com.kurtraschke.wmata.gtfsrealtime.api.routes.Routes;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.RouteSchedule;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineStages.Stage;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATAAPIService;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A {@link WMATAAPIService} which answers from the checked-in fixtures instead
+ * of calling the WMATA API. Responses are parsed once and then served from
+ * memory, so benchmarks measure our own work rather than Jackson's.
+ *
+ * The exception is bus positions, which are parsed on every call from the raw
+ * bytes given to {@link #setBusPositions(byte[])}, as they would be in
+ * production; that parse is recorded as {@link Stage#PARSE}.
+ *
+ * @author kurt
+ */
+@Singleton
+public class FixtureWMATAAPIService extends WMATAAPIService {
+
+  private final ObjectMapper _jsonMapper;
+  private final Map<String, RouteSchedule> _schedules = new HashMap<>();
+  private Routes _routes;
+  private byte[] _busPositions;
+  private PipelineStages _stages;
+
+  public FixtureWMATAAPIService() {
+    _jsonMapper = new ObjectMapper();
+    _jsonMapper.setPropertyNamingStrategy(PropertyNamingStrategy.PASCAL_CASE_TO_CAMEL_CASE);
+  }
+
+  @Inject
+  public void setPipelineStages(PipelineStages stages) {
+    _stages = stages;
+  }
+
+  public synchronized void setBusPositions(byte[] busPositions) {
+    _busPositions = busPositions;
+  }
+
+  @Override
+  public void start() {
+
+  }
+
+  @Override
+  public synchronized Routes downloadRouteList() throws WMATAAPIException {
+    try {
+      if (_routes == null) {
+        _routes = _jsonMapper.readValue(
+            BenchmarkFixtures.getResource("JRoutes.json"), Routes.class);
+      }
+      return _routes;
+    } catch (IOException e) {
+      throw new WMATAAPIException(e);
+    }
+  }
+
+  @Override
+  public synchronized RouteSchedule downloadRouteScheduleInfo(String routeId,
+      String date) throws WMATAAPIException {
+    String name = "JRouteSchedule-" + routeId + "-" + date + ".json";
+
+    try {
+      RouteSchedule schedule = _schedules.get(name);
+      if (schedule == null) {
+        schedule = _jsonMapper.readValue(BenchmarkFixtures.getResource(name),
+            RouteSchedule.class);
+        _schedules.put(name, schedule);
+      }
+      return schedule;
+    } catch (IllegalArgumentException | IOException e) {
+      throw new WMATAAPIException(e);
+    }
+  }
+
+  @Override
+  public synchronized BusPositions downloadBusPositions()
+      throws WMATAAPIException {
+    try {
+      if (_busPositions == null) {
+        _busPositions = BenchmarkFixtures.readResource(BusPositionsFixture.RECORDED);
+      }
+
+      _stages.begin(Stage.PARSE);
+      try {
+        return _jsonMapper.readValue(_busPositions, BusPositions.class);
+      } finally {
+        _stages.end(Stage.PARSE);
+      }
+    } catch (IOException e) {
+      throw new WMATAAPIException(e);
+    }
+  }
+}
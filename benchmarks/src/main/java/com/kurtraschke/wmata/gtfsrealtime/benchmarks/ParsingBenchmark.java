@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.google.common.collect.Iterables;
+import com.kurtraschke.wmata.gtfsrealtime.api.alerts.Rss;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.RouteSchedule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the data-binding parsers used by {@code WMATAAPIService} with
+ * streaming equivalents, on the route 70 JRouteSchedule response (about 300 KB,
+ * 108 trips) and a MetroAlerts RSS feed of 150 alerts. Each operation parses
+ * one document, so the GC profiler's {@code gc.alloc.rate.norm} is bytes per
+ * document.
+ *
+ * The data-binding benchmarks read from an {@link java.io.InputStream}, as
+ * {@code WMATAAPIService.mapUrl} does.
+ *
+ * @author kurt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+  private ObjectMapper _jsonMapper;
+  private XmlMapper _xmlMapper;
+  private StreamingRouteScheduleParser _scheduleParser;
+  private StreamingRssParser _rssParser;
+
+  private byte[] _schedule;
+  private byte[] _alerts;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    /*
+     * The injector is only needed for DateTimeUtils, which the model setters
+     * use to parse timestamps in the agency time zone.
+     */
+    BenchmarkFixtures.createInjector();
+
+    _jsonMapper = new ObjectMapper();
+    _jsonMapper.setPropertyNamingStrategy(PropertyNamingStrategy.PASCAL_CASE_TO_CAMEL_CASE);
+    _xmlMapper = new XmlMapper();
+    _scheduleParser = new StreamingRouteScheduleParser();
+    _rssParser = new StreamingRssParser();
+
+    _schedule = BenchmarkFixtures.readResource("JRouteSchedule-70-"
+        + BenchmarkFixtures.SERVICE_DATE + ".json");
+    _alerts = BenchmarkFixtures.readResource("MetroAlerts-bus-2014-07-15.xml");
+
+    checkEquivalent();
+  }
+
+  /**
+   * Make sure the streaming parsers are actually doing the same work before we
+   * compare them.
+   */
+  private void checkEquivalent() throws Exception {
+    RouteSchedule bound = scheduleObjectMapper();
+    RouteSchedule streamed = scheduleStreaming();
+
+    if (!bound.getTrips().toString().equals(streamed.getTrips().toString())) {
+      throw new IllegalStateException(
+          "Streaming JRouteSchedule parser disagrees with ObjectMapper");
+    }
+
+    Rss boundRss = alertsXmlMapper();
+    Rss streamedRss = alertsStreaming();
+
+    if (!boundRss.getChannel().getItems().toString().equals(
+        streamedRss.getChannel().getItems().toString())) {
+      throw new IllegalStateException(
+          "Streaming RSS parser disagrees with XmlMapper");
+    }
+
+    if (Iterables.isEmpty(bound.getTrips())
+        || streamedRss.getChannel().getItems().isEmpty()) {
+      throw new IllegalStateException("Fixtures are empty");
+    }
+  }
+
+  @Benchmark
+  public RouteSchedule scheduleObjectMapper() throws Exception {
+    return _jsonMapper.readValue(new ByteArrayInputStream(_schedule),
+        RouteSchedule.class);
+  }
+
+  @Benchmark
+  public RouteSchedule scheduleStreaming() throws Exception {
+    return _scheduleParser.parse(_schedule);
+  }
+
+  @Benchmark
+  public Rss alertsXmlMapper() throws Exception {
+    return _xmlMapper.readValue(new ByteArrayInputStream(_alerts), Rss.class);
+  }
+
+  @Benchmark
+  public Rss alertsStreaming() throws Exception {
+    return _rssParser.parse(_alerts);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATARouteMapperService;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATATripMapperService;
+
+/**
+ * Adds what {@code GTFSRealtimeProviderImpl} needs on top of
+ * {@link BenchmarkModule}: sinks, refresh intervals, and mapper services which
+ * report their time to {@link PipelineStages}.
+ *
+ * @author kurt
+ */
+public class PipelineModule extends AbstractModule {
+
+  @Override
+  protected void configure() {
+    PipelineStages stages = new PipelineStages();
+    bind(PipelineStages.class).toInstance(stages);
+
+    bind(WMATARouteMapperService.class).to(TimingRouteMapperService.class);
+    bind(WMATATripMapperService.class).to(TimingTripMapperService.class);
+
+    bind(GtfsRealtimeSink.class).annotatedWith(VehiclePositions.class).toInstance(
+        new TimingGtfsRealtimeSink(stages, new CollectingGtfsRealtimeSink()));
+    bind(GtfsRealtimeSink.class).annotatedWith(TripUpdates.class).toInstance(
+        new TimingGtfsRealtimeSink(stages, new CollectingGtfsRealtimeSink()));
+    bind(GtfsRealtimeSink.class).annotatedWith(Alerts.class).toInstance(
+        new TimingGtfsRealtimeSink(stages, new CollectingGtfsRealtimeSink()));
+
+    bindConstant().annotatedWith(Names.named("refreshInterval.vehicles")).to(30);
+    bindConstant().annotatedWith(Names.named("refreshInterval.alerts")).to(60);
+  }
+}
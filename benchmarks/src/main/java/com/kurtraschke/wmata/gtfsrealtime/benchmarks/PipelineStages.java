@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import java.lang.management.ManagementFactory;
+
+import javax.inject.Singleton;
+
+/**
+ * Accumulates wall-clock time and allocated bytes per stage of the vehicle
+ * pipeline. Disabled by default, in which case {@link #begin(Stage)} and
+ * {@link #end(Stage)} do nothing, so JMH runs are not perturbed.
+ *
+ * Stages are timed on the calling thread only; the pipeline is single-threaded,
+ * as is the provider's own executor.
+ *
+ * @author kurt
+ */
+@Singleton
+public class PipelineStages {
+
+  public enum Stage {
+    PARSE, ROUTE_MAPPING, TRIP_MAPPING, SINK_PUBLICATION
+  }
+
+  private final com.sun.management.ThreadMXBean _threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final int _stageCount = Stage.values().length;
+  private final long[] _startNanos = new long[_stageCount];
+  private final long[] _startBytes = new long[_stageCount];
+  private final long[] _nanos = new long[_stageCount];
+  private final long[] _bytes = new long[_stageCount];
+
+  private boolean _enabled = false;
+
+  public void setEnabled(boolean enabled) {
+    _enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return _enabled;
+  }
+
+  public void begin(Stage stage) {
+    if (_enabled) {
+      _startBytes[stage.ordinal()] = allocatedBytes();
+      _startNanos[stage.ordinal()] = System.nanoTime();
+    }
+  }
+
+  public void end(Stage stage) {
+    if (_enabled) {
+      _nanos[stage.ordinal()] += System.nanoTime()
+          - _startNanos[stage.ordinal()];
+      _bytes[stage.ordinal()] += allocatedBytes()
+          - _startBytes[stage.ordinal()];
+    }
+  }
+
+  public long getNanos(Stage stage) {
+    return _nanos[stage.ordinal()];
+  }
+
+  public long getBytes(Stage stage) {
+    return _bytes[stage.ordinal()];
+  }
+
+  public void reset() {
+    for (int i = 0; i < _stageCount; i++) {
+      _nanos[i] = 0;
+      _bytes[i] = 0;
+    }
+  }
+
+  public long allocatedBytes() {
+    return _threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
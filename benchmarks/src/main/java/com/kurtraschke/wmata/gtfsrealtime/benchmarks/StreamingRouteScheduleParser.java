@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.RouteSchedule;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.WMATAStopTime;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.WMATATrip;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a JRouteSchedule response with the Jackson streaming API rather than
+ * data binding. Values go through the same setters as data binding would use,
+ * so the string-to-Date conversion is identical and only the binding overhead
+ * differs.
+ *
+ * @author kurt
+ */
+public class StreamingRouteScheduleParser {
+
+  private final JsonFactory _factory = new JsonFactory();
+
+  public RouteSchedule parse(byte[] json) throws IOException, ParseException {
+    try (JsonParser p = _factory.createParser(json)) {
+      expect(p, p.nextToken(), JsonToken.START_OBJECT);
+
+      RouteSchedule schedule = new RouteSchedule();
+
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        p.nextToken();
+
+        switch (field) {
+          case "Direction0":
+            schedule.setDirection0(parseTrips(p));
+            break;
+          case "Direction1":
+            schedule.setDirection1(parseTrips(p));
+            break;
+          case "Name":
+            schedule.setName(p.getValueAsString());
+            break;
+          default:
+            p.skipChildren();
+        }
+      }
+
+      return schedule;
+    }
+  }
+
+  private List<WMATATrip> parseTrips(JsonParser p) throws IOException,
+      ParseException {
+    if (p.getCurrentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(p, p.getCurrentToken(), JsonToken.START_ARRAY);
+
+    List<WMATATrip> trips = new ArrayList<>();
+
+    while (p.nextToken() == JsonToken.START_OBJECT) {
+      WMATATrip trip = new WMATATrip();
+
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        p.nextToken();
+
+        switch (field) {
+          case "DirectionNum":
+            trip.setDirectionNum(p.getValueAsInt());
+            break;
+          case "EndTime":
+            trip.setEndTime(p.getValueAsString());
+            break;
+          case "RouteID":
+            trip.setRouteID(p.getValueAsString());
+            break;
+          case "StartTime":
+            trip.setStartTime(p.getValueAsString());
+            break;
+          case "TripDirectionText":
+            trip.setTripDirectionText(p.getValueAsString());
+            break;
+          case "TripHeadsign":
+            trip.setTripHeadsign(p.getValueAsString());
+            break;
+          case "TripID":
+            trip.setTripID(p.getValueAsString());
+            break;
+          case "StopTimes":
+            trip.setStopTimes(parseStopTimes(p));
+            break;
+          default:
+            p.skipChildren();
+        }
+      }
+
+      trips.add(trip);
+    }
+
+    return trips;
+  }
+
+  private List<WMATAStopTime> parseStopTimes(JsonParser p) throws IOException,
+      ParseException {
+    if (p.getCurrentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(p, p.getCurrentToken(), JsonToken.START_ARRAY);
+
+    List<WMATAStopTime> stopTimes = new ArrayList<>();
+
+    while (p.nextToken() == JsonToken.START_OBJECT) {
+      WMATAStopTime stopTime = new WMATAStopTime();
+
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        p.nextToken();
+
+        switch (field) {
+          case "StopID":
+            stopTime.setStopID(p.getValueAsString());
+            break;
+          case "StopName":
+            stopTime.setStopName(p.getValueAsString());
+            break;
+          case "StopSeq":
+            stopTime.setStopSeq(p.getValueAsString());
+            break;
+          case "Time":
+            stopTime.setTime(p.getValueAsString());
+            break;
+          default:
+            p.skipChildren();
+        }
+      }
+
+      stopTimes.add(stopTime);
+    }
+
+    return stopTimes;
+  }
+
+  private static void expect(JsonParser p, JsonToken actual, JsonToken expected)
+      throws JsonParseException {
+    if (actual != expected) {
+      throw new JsonParseException("Expected " + expected + " but found "
+          + actual, p.getCurrentLocation());
+    }
+  }
+}
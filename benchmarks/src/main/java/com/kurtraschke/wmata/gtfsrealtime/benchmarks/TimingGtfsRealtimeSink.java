@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineStages.Stage;
+
+/**
+ * Wraps a sink, recording time spent publishing to it.
+ *
+ * @author kurt
+ */
+public class TimingGtfsRealtimeSink implements GtfsRealtimeSink {
+
+  private final PipelineStages _stages;
+  private final GtfsRealtimeSink _delegate;
+
+  public TimingGtfsRealtimeSink(PipelineStages stages, GtfsRealtimeSink delegate) {
+    _stages = stages;
+    _delegate = delegate;
+  }
+
+  @Override
+  public void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    _stages.begin(Stage.SINK_PUBLICATION);
+    try {
+      _delegate.handleFullUpdate(update);
+    } finally {
+      _stages.end(Stage.SINK_PUBLICATION);
+    }
+  }
+
+  @Override
+  public void handleIncrementalUpdate(GtfsRealtimeIncrementalUpdate update) {
+    _stages.begin(Stage.SINK_PUBLICATION);
+    try {
+      _delegate.handleIncrementalUpdate(update);
+    } finally {
+      _stages.end(Stage.SINK_PUBLICATION);
+    }
+  }
+}
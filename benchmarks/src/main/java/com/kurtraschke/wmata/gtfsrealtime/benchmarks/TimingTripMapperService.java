@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.benchmarks;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
+import com.kurtraschke.wmata.gtfsrealtime.api.buspositions.BusPosition;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.PipelineStages.Stage;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATATripMapperService;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Records time spent in trip mapping.
+ *
+ * @author kurt
+ */
+@Singleton
+public class TimingTripMapperService extends WMATATripMapperService {
+
+  private PipelineStages _stages;
+
+  @Inject
+  public void setPipelineStages(PipelineStages stages) {
+    _stages = stages;
+  }
+
+  @Override
+  public AgencyAndId getTripMapping(BusPosition bp) throws WMATAAPIException {
+    _stages.begin(Stage.TRIP_MAPPING);
+    try {
+      return super.getTripMapping(bp);
+    } finally {
+      _stages.end(Stage.TRIP_MAPPING);
+    }
+  }
+}
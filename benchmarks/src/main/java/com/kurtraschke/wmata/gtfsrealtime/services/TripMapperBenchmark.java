@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Injector;
+import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.WMATAStopTime;
+import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.WMATATrip;
+import com.kurtraschke.wmata.gtfsrealtime.benchmarks.BenchmarkFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stages of {@link WMATATripMapperService} against the route 70
+ * and 79 fixtures. Each operation handles one WMATA trip, cycling through every
+ * trip in the recorded schedule, so throughput is in mapped trips per second
+ * and the GC profiler's {@code gc.alloc.rate.norm} is bytes per mapped trip.
+ *
+ * @author kurt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TripMapperBenchmark {
+
+  @Param({"70", "79"})
+  public String routeID;
+
+  private WMATATripMapperService _mapper;
+  private GtfsRelationalDao _dao;
+  private ServiceDate _serviceDate;
+  private AgencyAndId _gtfsRouteID;
+
+  private List<WMATATrip> _wmataTrips;
+  private List<Trip> _candidateTrips;
+  private List<List<StopTime>> _matchedGtfsStopTimes;
+  private List<List<WMATAStopTime>> _wmataStopTimes;
+
+  private int _index;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    Injector injector = BenchmarkFixtures.createInjector();
+
+    WMATARouteMapperService routeMapper = injector.getInstance(WMATARouteMapperService.class);
+    routeMapper.start();
+
+    _mapper = injector.getInstance(WMATATripMapperService.class);
+    _dao = injector.getInstance(GtfsRelationalDao.class);
+    _serviceDate = ServiceDate.parseString(BenchmarkFixtures.SERVICE_DATE.replace(
+        "-", ""));
+    _gtfsRouteID = routeMapper.getRouteMapping(routeID);
+
+    _wmataTrips = ImmutableList.copyOf(injector.getInstance(
+        WMATAAPIService.class).downloadRouteScheduleInfo(routeID,
+        BenchmarkFixtures.SERVICE_DATE).getTrips());
+    _candidateTrips = new ArrayList<>(_mapper.tripsForServiceDateAndRoute(
+        _serviceDate, _gtfsRouteID));
+
+    _wmataStopTimes = new ArrayList<>();
+    _matchedGtfsStopTimes = new ArrayList<>();
+
+    for (WMATATrip wmataTrip : _wmataTrips) {
+      Trip best = _mapper.findBestGtfsTripForWMATATrip(wmataTrip,
+          _candidateTrips, _serviceDate).getSecond();
+      _wmataStopTimes.add(wmataTrip.getStopTimes());
+      _matchedGtfsStopTimes.add(_dao.getStopTimesForTrip(best));
+    }
+  }
+
+  private int nextIndex() {
+    int i = _index;
+    _index = (i + 1) % _wmataTrips.size();
+    return i;
+  }
+
+  @Benchmark
+  public double computeStopTimeAlignmentScore() {
+    int i = nextIndex();
+    return _mapper.computeStopTimeAlignmentScore(_wmataStopTimes.get(i),
+        _matchedGtfsStopTimes.get(i), _serviceDate);
+  }
+
+  @Benchmark
+  public Object findBestGtfsTripForWMATATrip() {
+    return _mapper.findBestGtfsTripForWMATATrip(_wmataTrips.get(nextIndex()),
+        _candidateTrips, _serviceDate);
+  }
+
+  /**
+   * Unlike the others, each operation maps every trip on the route at once.
+   */
+  @Benchmark
+  public int[] assignTrips() {
+    return _mapper.assignTrips(_wmataTrips, _candidateTrips, _serviceDate);
+  }
+
+  @Benchmark
+  public Collection<Trip> tripsForServiceDateAndRoute() {
+    return _mapper.tripsForServiceDateAndRoute(_serviceDate, _gtfsRouteID);
+  }
+
+  @Benchmark
+  public WMATATrip getWMATATrip() throws WMATAAPIException {
+    WMATATrip t = _wmataTrips.get(nextIndex());
+    return _mapper.getWMATATrip(_serviceDate, routeID, t.getStartTime(),
+        t.getEndTime(), t.getTripDirectionText());
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The faults {@link SimulatorServer} injects into its responses. Each rate is
+ * the probability, from 0 to 1, that a given request suffers that fault.
+ *
+ * @author kurt
+ */
+public class FaultProfile {
+
+  public enum Fault {
+    NONE, THROTTLE, TRUNCATE, HANG
+  }
+
+  private long latencyMillis;
+  private long latencyJitterMillis;
+  private double throttleRate;
+  private double truncateRate;
+  private double hangRate;
+  private long hangMillis = 120000;
+
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  public long getLatencyJitterMillis() {
+    return latencyJitterMillis;
+  }
+
+  public void setLatencyJitterMillis(long latencyJitterMillis) {
+    this.latencyJitterMillis = latencyJitterMillis;
+  }
+
+  public double getThrottleRate() {
+    return throttleRate;
+  }
+
+  public void setThrottleRate(double throttleRate) {
+    this.throttleRate = throttleRate;
+  }
+
+  public double getTruncateRate() {
+    return truncateRate;
+  }
+
+  public void setTruncateRate(double truncateRate) {
+    this.truncateRate = truncateRate;
+  }
+
+  public double getHangRate() {
+    return hangRate;
+  }
+
+  public void setHangRate(double hangRate) {
+    this.hangRate = hangRate;
+  }
+
+  public long getHangMillis() {
+    return hangMillis;
+  }
+
+  public void setHangMillis(long hangMillis) {
+    this.hangMillis = hangMillis;
+  }
+
+  public long nextLatency() {
+    if (latencyJitterMillis <= 0) {
+      return latencyMillis;
+    }
+    return latencyMillis
+        + ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1);
+  }
+
+  public Fault nextFault() {
+    double r = ThreadLocalRandom.current().nextDouble();
+
+    if (r < throttleRate) {
+      return Fault.THROTTLE;
+    }
+    r -= throttleRate;
+    if (r < truncateRate) {
+      return Fault.TRUNCATE;
+    }
+    r -= truncateRate;
+    if (r < hangRate) {
+      return Fault.HANG;
+    }
+    return Fault.NONE;
+  }
+
+  @Override
+  public String toString() {
+    return "FaultProfile [latencyMillis=" + latencyMillis
+        + ", latencyJitterMillis=" + latencyJitterMillis + ", throttleRate="
+        + throttleRate + ", truncateRate=" + truncateRate + ", hangRate="
+        + hangRate + ", hangMillis=" + hangMillis + "]";
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.onebusaway.gtfs.model.Route;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Synthetic MetroAlerts RSS feeds.
+ *
+ * Each alert names one to three routes and has a stable GUID. The set of
+ * alerts in the feed changes every few minutes, with a quarter of them absent
+ * at any time, so that consumers see alerts both appear and disappear.
+ *
+ * @author kurt
+ */
+@Singleton
+public class SimulatedAlerts {
+
+  private static final long ROTATION_MILLIS = 5 * 60 * 1000L;
+
+  private static final String[] RAIL_LINES = new String[] {
+      "RED", "ORANGE", "YELLOW", "GREEN", "BLUE", "SILVER"};
+
+  private SimulatedSchedule _schedule;
+  private Clock _clock;
+  private int _alertCount;
+
+  @Inject
+  public void setSchedule(SimulatedSchedule schedule) {
+    _schedule = schedule;
+  }
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setAlertCount(@Named("simulator.alerts")
+  int alertCount) {
+    _alertCount = alertCount;
+  }
+
+  public byte[] renderBusAlerts() throws IOException {
+    List<String> routeIds = new ArrayList<>();
+    for (Route route : _schedule.getRoutes()) {
+      routeIds.add(route.getShortName());
+    }
+    return render("Metro Alerts - Bus", "bus", routeIds);
+  }
+
+  public byte[] renderRailAlerts() throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (String line : RAIL_LINES) {
+      lines.add(line);
+    }
+    return render("Metro Alerts - Rail", "rail", lines);
+  }
+
+  private byte[] render(String title, String kind, List<String> routeIds)
+      throws IOException {
+    long now = _clock.currentTimeMillis();
+    long rotation = now / ROTATION_MILLIS;
+
+    SimpleDateFormat format = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z",
+        Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try {
+      XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(
+          out, "utf-8");
+      w.writeStartDocument("utf-8", "1.0");
+      w.writeStartElement("rss");
+      w.writeAttribute("version", "2.0");
+      w.writeStartElement("channel");
+      writeElement(w, "title", title);
+      writeElement(w, "link", "http://www.metroalerts.info/");
+      writeElement(w, "description", "Simulated service alerts");
+      writeElement(w, "lastBuildDate", format.format(new Date(now)));
+
+      for (int i = 0; i < _alertCount && !routeIds.isEmpty(); i++) {
+        if ((rotation + i) % 4 == 0) {
+          continue;
+        }
+
+        StringBuilder routes = new StringBuilder();
+        for (int j = 0; j <= i % 3; j++) {
+          if (j > 0) {
+            routes.append(", ");
+          }
+          routes.append(routeIds.get((i * 7 + j) % routeIds.size()));
+        }
+
+        String guid = UUID.nameUUIDFromBytes(
+            (kind + "-" + i).getBytes(StandardCharsets.UTF_8)).toString();
+
+        w.writeStartElement("item");
+        writeElement(w, "title", routes.toString());
+        writeElement(w, "link", "http://www.metroalerts.info/alert.aspx?id="
+            + guid);
+        writeElement(w, "description", "Simulated alert " + i + " affecting "
+            + routes + ".");
+        writeElement(w, "source", "Metro Alerts");
+        writeElement(w, "pubDate", format.format(new Date(rotation
+            * ROTATION_MILLIS - i * 60000L)));
+        writeElement(w, "guid", guid);
+        w.writeEndElement();
+      }
+
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndDocument();
+      w.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static void writeElement(XMLStreamWriter w, String name, String text)
+      throws XMLStreamException {
+    w.writeStartElement(name);
+    w.writeCharacters(text);
+    w.writeEndElement();
+  }
+}
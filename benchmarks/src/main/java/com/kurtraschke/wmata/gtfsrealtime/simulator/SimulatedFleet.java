@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * A synthetic fleet of vehicles, each endlessly repeating one GTFS trip.
+ *
+ * Vehicle {@code i} runs the {@code i}th trip of the service day (wrapping
+ * around when there are more vehicles than trips), and is placed along it at a
+ * point determined by the current time and a per-vehicle phase, so that
+ * vehicles sharing a trip are spread out along it and every vehicle moves
+ * between polls. Positions are reported with the trip's scheduled start and
+ * end times, so the trips they report can be mapped against the schedule
+ * served by {@link SimulatorServer}.
+ *
+ * @author kurt
+ */
+@Singleton
+public class SimulatedFleet {
+
+  private static final long PHASE_STEP_MILLIS = 7919 * 1000L;
+  private static final int MAX_REPORT_AGE_SECONDS = 20;
+
+  private final JsonFactory _jsonFactory = new JsonFactory();
+
+  private SimulatedSchedule _schedule;
+  private Clock _clock;
+  private int _vehicleCount;
+  private ServiceDate _serviceDate;
+
+  private ServiceDate _tripsDate;
+  private List<SimulatedTrip> _trips;
+
+  @Inject
+  public void setSchedule(SimulatedSchedule schedule) {
+    _schedule = schedule;
+  }
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setVehicleCount(@Named("simulator.vehicles")
+  int vehicleCount) {
+    _vehicleCount = vehicleCount;
+  }
+
+  /**
+   * Fixes the service date the fleet runs on; by default, it is today's.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setServiceDate(@Named("simulator.serviceDate")
+  ServiceDate serviceDate) {
+    _serviceDate = serviceDate;
+  }
+
+  public ServiceDate getServiceDate() {
+    return (_serviceDate != null) ? _serviceDate
+        : DateTimeUtils.serviceDateFromDate(new Date(_clock.currentTimeMillis()));
+  }
+
+  public byte[] renderBusPositions() throws IOException {
+    List<SimulatedTrip> trips = getTrips(getServiceDate());
+    long now = _clock.currentTimeMillis();
+
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    format.setTimeZone(_schedule.getAgencyTimeZone());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator g = _jsonFactory.createGenerator(out);
+
+    g.writeStartObject();
+    g.writeArrayFieldStart("BusPositions");
+
+    for (int i = 0; i < _vehicleCount && !trips.isEmpty(); i++) {
+      SimulatedTrip trip = trips.get(i % trips.size());
+      long duration = Math.max(trip.getDuration(), 1);
+      long progress = (now + (i / trips.size()) * PHASE_STEP_MILLIS) % duration;
+      double[] position = trip.getPositionAt(trip.getStartTime() + progress);
+
+      g.writeStartObject();
+      g.writeStringField("DateTime", format.format(new Date(now
+          - (i % MAX_REPORT_AGE_SECONDS) * 1000L)));
+      g.writeNumberField("Deviation", (float) ((i % 11) - 5));
+      g.writeNumberField("DirectionNum", trip.getDirectionNum());
+      g.writeStringField("DirectionText", trip.getDirectionText());
+      g.writeNumberField("Lat", (float) position[0]);
+      g.writeNumberField("Lon", (float) position[1]);
+      g.writeStringField("RouteID", trip.getRouteId());
+      g.writeStringField("TripEndTime", format.format(new Date(
+          trip.getEndTime())));
+      g.writeStringField("TripHeadsign", trip.getHeadsign());
+      g.writeStringField("TripID", trip.getTripId());
+      g.writeStringField("TripStartTime", format.format(new Date(
+          trip.getStartTime())));
+      g.writeStringField("VehicleID", Integer.toString(1000 + i));
+      g.writeEndObject();
+    }
+
+    g.writeEndArray();
+    g.writeEndObject();
+    g.close();
+
+    return out.toByteArray();
+  }
+
+  private synchronized List<SimulatedTrip> getTrips(ServiceDate serviceDate) {
+    if (!serviceDate.equals(_tripsDate)) {
+      List<SimulatedTrip> trips = new ArrayList<>();
+      for (List<SimulatedTrip> routeTrips : _schedule.getTrips(serviceDate).values()) {
+        trips.addAll(routeTrips);
+      }
+      _trips = trips;
+      _tripsDate = serviceDate;
+    }
+    return _trips;
+  }
+}
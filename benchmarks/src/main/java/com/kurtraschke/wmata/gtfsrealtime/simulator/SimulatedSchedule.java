@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import com.kurtraschke.wmata.gtfsrealtime.AgencyTimeZone;
+import com.kurtraschke.wmata.gtfsrealtime.services.ActiveServiceIndex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Derives what the WMATA API would report for each route from the GTFS: route
+ * IDs are GTFS route short names, stop IDs are GTFS stop codes, and each
+ * trip's direction is named after the overall bearing from its first stop to
+ * its last.
+ *
+ * @author kurt
+ */
+@Singleton
+public class SimulatedSchedule {
+
+  private GtfsRelationalDao _dao;
+  private ActiveServiceIndex _serviceIndex;
+  private TimeZone _agencyTimeZone;
+  private String _agencyId;
+
+  private final ConcurrentMap<ServiceDate, Map<String, List<SimulatedTrip>>> _tripsByDate = new ConcurrentHashMap<>();
+
+  @Inject
+  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
+    _dao = dao;
+  }
+
+  @Inject
+  public void setActiveServiceIndex(ActiveServiceIndex serviceIndex) {
+    _serviceIndex = serviceIndex;
+  }
+
+  @Inject
+  public void setAgencyTimeZone(@AgencyTimeZone
+  TimeZone agencyTimeZone) {
+    _agencyTimeZone = agencyTimeZone;
+  }
+
+  @Inject
+  public void setAgencyId(@Named("WMATA.agencyID")
+  String agencyId) {
+    _agencyId = agencyId;
+  }
+
+  public TimeZone getAgencyTimeZone() {
+    return _agencyTimeZone;
+  }
+
+  public List<Route> getRoutes() {
+    List<Route> routes = new ArrayList<>();
+    for (Route route : _dao.getRoutesForAgency(_dao.getAgencyForId(_agencyId))) {
+      if (route.getShortName() != null && !route.getShortName().isEmpty()) {
+        routes.add(route);
+      }
+    }
+    return routes;
+  }
+
+  /**
+   * @return the trips running on the given service date, keyed by WMATA route
+   *         ID
+   */
+  public Map<String, List<SimulatedTrip>> getTrips(ServiceDate serviceDate) {
+    Map<String, List<SimulatedTrip>> trips = _tripsByDate.get(serviceDate);
+
+    if (trips == null) {
+      trips = buildTrips(serviceDate);
+      _tripsByDate.putIfAbsent(serviceDate, trips);
+    }
+
+    return trips;
+  }
+
+  public List<SimulatedTrip> getTrips(ServiceDate serviceDate, String routeId) {
+    List<SimulatedTrip> trips = getTrips(serviceDate).get(routeId);
+    return (trips != null) ? trips : Collections.<SimulatedTrip> emptyList();
+  }
+
+  private Map<String, List<SimulatedTrip>> buildTrips(ServiceDate serviceDate) {
+    Map<String, List<SimulatedTrip>> tripsByRoute = new LinkedHashMap<>();
+    BitSet activeServices = _serviceIndex.getActiveServices(serviceDate);
+    long midnight = serviceDate.getAsDate(_agencyTimeZone).getTime();
+
+    for (Route route : getRoutes()) {
+      List<SimulatedTrip> trips = new ArrayList<>();
+
+      for (Trip trip : _dao.getTripsForRoute(route)) {
+        if (!_serviceIndex.isServiceActive(activeServices,
+            _serviceIndex.getServiceOrdinal(trip.getServiceId()))) {
+          continue;
+        }
+
+        List<StopTime> stopTimes = _dao.getStopTimesForTrip(trip);
+
+        if (stopTimes.size() < 2) {
+          continue;
+        }
+
+        trips.add(toSimulatedTrip(route, trip, stopTimes, midnight));
+      }
+
+      if (!trips.isEmpty()) {
+        tripsByRoute.put(route.getShortName(), trips);
+      }
+    }
+
+    return tripsByRoute;
+  }
+
+  private SimulatedTrip toSimulatedTrip(Route route, Trip trip,
+      List<StopTime> stopTimes, long midnight) {
+    int n = stopTimes.size();
+    String[] stopIds = new String[n];
+    String[] stopNames = new String[n];
+    long[] times = new long[n];
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      StopTime stopTime = stopTimes.get(i);
+      Stop stop = stopTime.getStop();
+      stopIds[i] = stop.getCode();
+      stopNames[i] = stop.getName();
+      times[i] = midnight + stopTime.getDepartureTime() * 1000L;
+      lats[i] = stop.getLat();
+      lons[i] = stop.getLon();
+    }
+
+    int directionNum = "1".equals(trip.getDirectionId()) ? 1 : 0;
+    String headsign = (trip.getTripHeadsign() != null) ? trip.getTripHeadsign()
+        : stopNames[n - 1];
+
+    return new SimulatedTrip(trip.getId().getId(), route.getShortName(),
+        directionNum, directionText(lats[0], lons[0], lats[n - 1], lons[n - 1]),
+        headsign, stopIds, stopNames, times, lats, lons);
+  }
+
+  private static String directionText(double fromLat, double fromLon,
+      double toLat, double toLon) {
+    double dLat = toLat - fromLat;
+    double dLon = (toLon - fromLon) * Math.cos(Math.toRadians(fromLat));
+
+    if (Math.abs(dLat) >= Math.abs(dLon)) {
+      return (dLat >= 0) ? "NORTH" : "SOUTH";
+    } else {
+      return (dLon >= 0) ? "EAST" : "WEST";
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+/**
+ * A GTFS trip as the WMATA API would describe it: identified by route short
+ * name, with stop times as absolute times on a particular service date.
+ *
+ * @author kurt
+ */
+public class SimulatedTrip {
+
+  private final String _tripId;
+  private final String _routeId;
+  private final int _directionNum;
+  private final String _directionText;
+  private final String _headsign;
+  private final String[] _stopIds;
+  private final String[] _stopNames;
+  private final long[] _times;
+  private final double[] _lats;
+  private final double[] _lons;
+
+  public SimulatedTrip(String tripId, String routeId, int directionNum,
+      String directionText, String headsign, String[] stopIds,
+      String[] stopNames, long[] times, double[] lats, double[] lons) {
+    _tripId = tripId;
+    _routeId = routeId;
+    _directionNum = directionNum;
+    _directionText = directionText;
+    _headsign = headsign;
+    _stopIds = stopIds;
+    _stopNames = stopNames;
+    _times = times;
+    _lats = lats;
+    _lons = lons;
+  }
+
+  public String getTripId() {
+    return _tripId;
+  }
+
+  public String getRouteId() {
+    return _routeId;
+  }
+
+  public int getDirectionNum() {
+    return _directionNum;
+  }
+
+  public String getDirectionText() {
+    return _directionText;
+  }
+
+  public String getHeadsign() {
+    return _headsign;
+  }
+
+  public int getStopCount() {
+    return _times.length;
+  }
+
+  public String getStopId(int index) {
+    return _stopIds[index];
+  }
+
+  public String getStopName(int index) {
+    return _stopNames[index];
+  }
+
+  public long getTime(int index) {
+    return _times[index];
+  }
+
+  public long getStartTime() {
+    return _times[0];
+  }
+
+  public long getEndTime() {
+    return _times[_times.length - 1];
+  }
+
+  public long getDuration() {
+    return getEndTime() - getStartTime();
+  }
+
+  /**
+   * Interpolates the position of a vehicle running exactly to schedule.
+   *
+   * @param time absolute time, clamped to the span of the trip
+   * @return latitude and longitude
+   */
+  public double[] getPositionAt(long time) {
+    if (time <= _times[0]) {
+      return new double[] {_lats[0], _lons[0]};
+    }
+
+    for (int i = 1; i < _times.length; i++) {
+      if (time <= _times[i]) {
+        long span = _times[i] - _times[i - 1];
+        double f = (span > 0) ? (double) (time - _times[i - 1]) / span : 1.0;
+        return new double[] {
+            _lats[i - 1] + (_lats[i] - _lats[i - 1]) * f,
+            _lons[i - 1] + (_lons[i] - _lons[i - 1]) * f};
+      }
+    }
+
+    int last = _times.length - 1;
+    return new double[] {_lats[last], _lons[last]};
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.guice.jsr250.JSR250Module;
+import org.onebusaway.guice.jsr250.LifecycleService;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.Parser;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs a local stand-in for the WMATA API, backed by a GTFS feed, for load and
+ * failure testing of the realtime service.
+ *
+ * @author kurt
+ */
+public class SimulatorMain {
+
+  private static final String ARG_GTFS = "gtfs";
+  private static final String ARG_AGENCY = "agency";
+  private static final String ARG_PORT = "port";
+  private static final String ARG_VEHICLES = "vehicles";
+  private static final String ARG_ALERTS = "alerts";
+  private static final String ARG_SERVICE_DATE = "serviceDate";
+  private static final String ARG_RATE_LIMIT = "rateLimit";
+  private static final String ARG_LATENCY = "latency";
+  private static final String ARG_LATENCY_JITTER = "latencyJitter";
+  private static final String ARG_THROTTLE_RATE = "throttleRate";
+  private static final String ARG_TRUNCATE_RATE = "truncateRate";
+  private static final String ARG_HANG_RATE = "hangRate";
+  private static final String ARG_HANG_MILLIS = "hangMillis";
+
+  public static void main(String[] args) throws Exception {
+    Options options = buildOptions();
+    CommandLine cli;
+
+    try {
+      Parser parser = new GnuParser();
+      cli = parser.parse(options, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      new HelpFormatter().printHelp("SimulatorMain", options);
+      System.exit(-1);
+      return;
+    }
+
+    FaultProfile faults = new FaultProfile();
+    faults.setLatencyMillis(Long.parseLong(cli.getOptionValue(ARG_LATENCY, "0")));
+    faults.setLatencyJitterMillis(Long.parseLong(cli.getOptionValue(
+        ARG_LATENCY_JITTER, "0")));
+    faults.setThrottleRate(Double.parseDouble(cli.getOptionValue(
+        ARG_THROTTLE_RATE, "0")));
+    faults.setTruncateRate(Double.parseDouble(cli.getOptionValue(
+        ARG_TRUNCATE_RATE, "0")));
+    faults.setHangRate(Double.parseDouble(cli.getOptionValue(ARG_HANG_RATE,
+        "0")));
+    faults.setHangMillis(Long.parseLong(cli.getOptionValue(ARG_HANG_MILLIS,
+        "120000")));
+
+    ServiceDate serviceDate = null;
+    if (cli.hasOption(ARG_SERVICE_DATE)) {
+      serviceDate = ServiceDate.parseString(cli.getOptionValue(
+          ARG_SERVICE_DATE).replace("-", ""));
+    }
+
+    Set<Module> modules = new HashSet<>();
+    JSR250Module.addModuleAndDependencies(modules);
+    modules.add(new SimulatorModule(new File(cli.getOptionValue(ARG_GTFS)),
+        cli.getOptionValue(ARG_AGENCY, "MET"),
+        Integer.parseInt(cli.getOptionValue(ARG_PORT, "8090")),
+        Integer.parseInt(cli.getOptionValue(ARG_VEHICLES, "1500")),
+        Integer.parseInt(cli.getOptionValue(ARG_ALERTS, "20")),
+        Double.parseDouble(cli.getOptionValue(ARG_RATE_LIMIT, "0")),
+        serviceDate, faults));
+
+    Injector injector = Guice.createInjector(modules);
+    injector.getInstance(SimulatorServer.class);
+
+    final LifecycleService lifecycleService = injector.getInstance(LifecycleService.class);
+    lifecycleService.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        lifecycleService.stop();
+      }
+    });
+  }
+
+  private static Options buildOptions() {
+    Options options = new Options();
+
+    Option gtfs = new Option(ARG_GTFS, true, "GTFS path");
+    gtfs.setRequired(true);
+    options.addOption(gtfs);
+    options.addOption(ARG_AGENCY, true, "GTFS agency ID (default MET)");
+    options.addOption(ARG_PORT, true, "port to listen on (default 8090)");
+    options.addOption(ARG_VEHICLES, true,
+        "number of simulated vehicles (default 1500)");
+    options.addOption(ARG_ALERTS, true,
+        "number of simulated alerts per feed (default 20)");
+    options.addOption(ARG_SERVICE_DATE, true,
+        "service date to simulate, as yyyy-MM-dd (default today)");
+    options.addOption(ARG_RATE_LIMIT, true,
+        "requests per second before answering 429 (default unlimited)");
+    options.addOption(ARG_LATENCY, true,
+        "added latency per request, in milliseconds");
+    options.addOption(ARG_LATENCY_JITTER, true,
+        "random extra latency per request, up to this many milliseconds");
+    options.addOption(ARG_THROTTLE_RATE, true,
+        "fraction of requests answered with 429");
+    options.addOption(ARG_TRUNCATE_RATE, true,
+        "fraction of responses cut off half-way through the body");
+    options.addOption(ARG_HANG_RATE, true,
+        "fraction of requests that hang without a response");
+    options.addOption(ARG_HANG_MILLIS, true,
+        "how long a hung request is held open, in milliseconds (default 120000)");
+
+    return options;
+  }
+}
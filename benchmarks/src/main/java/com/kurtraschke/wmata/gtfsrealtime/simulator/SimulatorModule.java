@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Scopes;
+import com.google.inject.name.Names;
+import com.kurtraschke.wmata.gtfsrealtime.AgencyTimeZone;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+import com.kurtraschke.wmata.gtfsrealtime.SystemClock;
+import com.kurtraschke.wmata.gtfsrealtime.services.AgencyTimeZoneProvider;
+import com.kurtraschke.wmata.gtfsrealtime.services.GtfsRelationalDaoProvider;
+
+import java.io.File;
+import java.util.TimeZone;
+
+/**
+ * Wires the simulator to a GTFS feed, reusing the realtime service's own GTFS
+ * loading and service calendar.
+ *
+ * @author kurt
+ */
+public class SimulatorModule extends AbstractModule {
+
+  private final File _gtfsPath;
+  private final String _agencyId;
+  private final int _port;
+  private final int _vehicleCount;
+  private final int _alertCount;
+  private final double _rateLimit;
+  private final ServiceDate _serviceDate;
+  private final FaultProfile _faults;
+
+  public SimulatorModule(File gtfsPath, String agencyId, int port,
+      int vehicleCount, int alertCount, double rateLimit,
+      ServiceDate serviceDate, FaultProfile faults) {
+    _gtfsPath = gtfsPath;
+    _agencyId = agencyId;
+    _port = port;
+    _vehicleCount = vehicleCount;
+    _alertCount = alertCount;
+    _rateLimit = rateLimit;
+    _serviceDate = serviceDate;
+    _faults = faults;
+  }
+
+  @Override
+  protected void configure() {
+    bind(File.class).annotatedWith(Names.named("GTFS.path")).toInstance(
+        _gtfsPath);
+    bindConstant().annotatedWith(Names.named("WMATA.agencyID")).to(_agencyId);
+    bindConstant().annotatedWith(Names.named("simulator.port")).to(_port);
+    bindConstant().annotatedWith(Names.named("simulator.vehicles")).to(
+        _vehicleCount);
+    bindConstant().annotatedWith(Names.named("simulator.alerts")).to(
+        _alertCount);
+    bindConstant().annotatedWith(Names.named("simulator.rateLimit")).to(
+        _rateLimit);
+    if (_serviceDate != null) {
+      bind(ServiceDate.class).annotatedWith(
+          Names.named("simulator.serviceDate")).toInstance(_serviceDate);
+    }
+    bind(FaultProfile.class).toInstance(_faults);
+
+    bind(GtfsRelationalDao.class).toProvider(GtfsRelationalDaoProvider.class).in(
+        Scopes.SINGLETON);
+    bind(TimeZone.class).annotatedWith(AgencyTimeZone.class).toProvider(
+        AgencyTimeZoneProvider.class).in(Scopes.SINGLETON);
+    bind(Clock.class).to(SystemClock.class);
+
+    requestStaticInjection(DateTimeUtils.class);
+  }
+}
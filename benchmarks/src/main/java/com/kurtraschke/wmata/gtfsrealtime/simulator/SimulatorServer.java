@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.util.concurrent.RateLimiter;
+import com.kurtraschke.wmata.gtfsrealtime.simulator.FaultProfile.Fault;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Serves the parts of the WMATA API that the realtime service uses, from
+ * {@link SimulatedSchedule}, {@link SimulatedFleet} and
+ * {@link SimulatedAlerts}, with the faults described by a
+ * {@link FaultProfile}.
+ *
+ * Point the service at it by setting {@code WMATA.apiBaseUrl} and
+ * {@code WMATA.alertsBaseUrl} to {@code http://localhost:<port>}.
+ *
+ * @author kurt
+ */
+@Singleton
+public class SimulatorServer {
+
+  private static final Logger _log = LoggerFactory.getLogger(SimulatorServer.class);
+
+  private final JsonFactory _jsonFactory = new JsonFactory();
+  private final ConcurrentMap<String, byte[]> _routeScheduleCache = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> _requestCounts = new ConcurrentHashMap<>();
+
+  private SimulatedSchedule _schedule;
+  private SimulatedFleet _fleet;
+  private SimulatedAlerts _alerts;
+  private FaultProfile _faults;
+  private int _port;
+  private double _rateLimit;
+
+  private RateLimiter _limiter;
+  private ExecutorService _executor;
+  private HttpServer _server;
+
+  @Inject
+  public void setSchedule(SimulatedSchedule schedule) {
+    _schedule = schedule;
+  }
+
+  @Inject
+  public void setFleet(SimulatedFleet fleet) {
+    _fleet = fleet;
+  }
+
+  @Inject
+  public void setAlerts(SimulatedAlerts alerts) {
+    _alerts = alerts;
+  }
+
+  @Inject
+  public void setFaultProfile(FaultProfile faults) {
+    _faults = faults;
+  }
+
+  @Inject
+  public void setPort(@Named("simulator.port")
+  int port) {
+    _port = port;
+  }
+
+  /**
+   * Requests beyond this many per second are answered with a 429, as the real
+   * API does; zero or less disables the limit.
+   */
+  @Inject
+  public void setRateLimit(@Named("simulator.rateLimit")
+  double rateLimit) {
+    _rateLimit = rateLimit;
+  }
+
+  @PostConstruct
+  public void start() throws IOException {
+    if (_rateLimit > 0) {
+      _limiter = RateLimiter.create(_rateLimit);
+    }
+
+    _executor = Executors.newCachedThreadPool();
+    _server = HttpServer.create(new InetSocketAddress(_port), 0);
+    _server.setExecutor(_executor);
+
+    _server.createContext("/Bus.svc/json/JRoutes", new ApiHandler("JRoutes") {
+      @Override
+      protected byte[] render(Map<String, String> params) throws IOException {
+        return renderRoutes();
+      }
+    });
+    _server.createContext("/Bus.svc/json/JRouteSchedule", new ApiHandler(
+        "JRouteSchedule") {
+      @Override
+      protected byte[] render(Map<String, String> params) throws IOException {
+        return renderRouteSchedule(params.get("routeID"), params.get("date"));
+      }
+    });
+    _server.createContext("/Bus.svc/json/JBusPositions", new ApiHandler(
+        "JBusPositions") {
+      @Override
+      protected byte[] render(Map<String, String> params) throws IOException {
+        return _fleet.renderBusPositions();
+      }
+    });
+    _server.createContext("/rss.aspx", new ApiHandler("rss") {
+      @Override
+      protected byte[] render(Map<String, String> params) throws IOException {
+        return params.containsKey("rs") ? _alerts.renderRailAlerts()
+            : _alerts.renderBusAlerts();
+      }
+    });
+
+    _server.start();
+    _log.info("WMATA API simulator listening on port {} with {}", _port,
+        _faults);
+  }
+
+  @PreDestroy
+  public void stop() {
+    _server.stop(0);
+    _executor.shutdownNow();
+    _log.info("Requests served: {}", _requestCounts);
+  }
+
+  private byte[] renderRoutes() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator g = _jsonFactory.createGenerator(out);
+
+    g.writeStartObject();
+    g.writeArrayFieldStart("Routes");
+    for (Route route : _schedule.getRoutes()) {
+      g.writeStartObject();
+      g.writeStringField("Name", route.getShortName() + " - "
+          + route.getLongName());
+      g.writeStringField("RouteID", route.getShortName());
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    g.close();
+
+    return out.toByteArray();
+  }
+
+  private byte[] renderRouteSchedule(String routeId, String date)
+      throws IOException {
+    if (routeId == null || date == null) {
+      throw new IllegalArgumentException("routeID and date are required");
+    }
+
+    String key = routeId + "/" + date;
+    byte[] body = _routeScheduleCache.get(key);
+
+    if (body == null) {
+      body = renderRouteSchedule(routeId, parseServiceDate(date));
+      _routeScheduleCache.putIfAbsent(key, body);
+    }
+
+    return body;
+  }
+
+  private byte[] renderRouteSchedule(String routeId, ServiceDate serviceDate)
+      throws IOException {
+    List<SimulatedTrip> trips = _schedule.getTrips(serviceDate, routeId);
+
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    format.setTimeZone(_schedule.getAgencyTimeZone());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator g = _jsonFactory.createGenerator(out);
+
+    g.writeStartObject();
+    for (int direction = 0; direction <= 1; direction++) {
+      g.writeArrayFieldStart("Direction" + direction);
+      for (SimulatedTrip trip : trips) {
+        if (trip.getDirectionNum() != direction) {
+          continue;
+        }
+        g.writeStartObject();
+        g.writeStringField("DirectionNum", Integer.toString(direction));
+        g.writeStringField("EndTime", format.format(new Date(trip.getEndTime())));
+        g.writeStringField("RouteID", trip.getRouteId());
+        g.writeStringField("StartTime", format.format(new Date(
+            trip.getStartTime())));
+        g.writeArrayFieldStart("StopTimes");
+        for (int i = 0; i < trip.getStopCount(); i++) {
+          g.writeStartObject();
+          g.writeStringField("StopID", trip.getStopId(i));
+          g.writeStringField("StopName", trip.getStopName(i));
+          g.writeNumberField("StopSeq", i + 1);
+          g.writeStringField("Time", format.format(new Date(trip.getTime(i))));
+          g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeStringField("TripDirectionText", trip.getDirectionText());
+        g.writeStringField("TripHeadsign", trip.getHeadsign());
+        g.writeStringField("TripID", trip.getTripId());
+        g.writeEndObject();
+      }
+      g.writeEndArray();
+    }
+    g.writeStringField("Name", routeId);
+    g.writeEndObject();
+    g.close();
+
+    return out.toByteArray();
+  }
+
+  private static ServiceDate parseServiceDate(String date) {
+    try {
+      return ServiceDate.parseString(date.replace("-", ""));
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Bad date: " + date, e);
+    }
+  }
+
+  /**
+   * Applies latency, rate limiting and injected faults around rendering a
+   * response.
+   */
+  private abstract class ApiHandler implements HttpHandler {
+
+    private final String _name;
+
+    public ApiHandler(String name) {
+      _name = name;
+      _requestCounts.put(name, new AtomicLong());
+    }
+
+    protected abstract byte[] render(Map<String, String> params)
+        throws IOException;
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      _requestCounts.get(_name).incrementAndGet();
+
+      try {
+        sleep(_faults.nextLatency());
+
+        if (_limiter != null && !_limiter.tryAcquire()) {
+          sendThrottled(exchange);
+          return;
+        }
+
+        Fault fault = _faults.nextFault();
+
+        switch (fault) {
+          case THROTTLE:
+            sendThrottled(exchange);
+            return;
+          case HANG:
+            /*
+             * Hold the connection open without answering, then drop it.
+             */
+            sleep(_faults.getHangMillis());
+            return;
+          default:
+            break;
+        }
+
+        byte[] body;
+        try {
+          body = render(parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+          send(exchange, 400, e.getMessage().getBytes(StandardCharsets.UTF_8));
+          return;
+        }
+
+        if (fault == Fault.TRUNCATE) {
+          /*
+           * A chunked response cut off part-way through: the client sees a
+           * complete HTTP exchange, but a body that does not parse.
+           */
+          exchange.sendResponseHeaders(200, 0);
+          try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body, 0, body.length / 2);
+          }
+          return;
+        }
+
+        send(exchange, 200, body);
+      } catch (Exception e) {
+        _log.warn("Error serving " + exchange.getRequestURI(), e);
+        if (exchange.getResponseCode() == -1) {
+          send(exchange, 500, new byte[0]);
+        }
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void sendThrottled(HttpExchange exchange) throws IOException {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      send(exchange, 429,
+          "{\"statusCode\": 429, \"message\": \"Rate limit is exceeded. Try again in 1 seconds.\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body)
+        throws IOException {
+      exchange.sendResponseHeaders(status, (body.length > 0) ? body.length : -1);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    }
+
+    private Map<String, String> parseQuery(String query) {
+      Map<String, String> params = new HashMap<>();
+      if (query != null) {
+        for (NameValuePair pair : URLEncodedUtils.parse(query,
+            StandardCharsets.UTF_8)) {
+          params.put(pair.getName(), pair.getValue());
+        }
+      }
+      return params;
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+      if (millis > 0) {
+        TimeUnit.MILLISECONDS.sleep(millis);
+      }
+    }
+  }
+}
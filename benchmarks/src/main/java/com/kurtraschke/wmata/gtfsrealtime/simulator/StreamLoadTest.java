@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.simulator;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.Parser;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Opens many concurrent subscriptions to a feed stream, from a single
+ * selector thread, and reports how many events, snapshots and bytes they
+ * receive.
+ *
+ * @author kurt
+ */
+public class StreamLoadTest {
+
+  private static final String ARG_URL = "url";
+  private static final String ARG_CLIENTS = "clients";
+  private static final String ARG_RAMP_RATE = "rampRate";
+  private static final String ARG_ROUTES = "routes";
+  private static final String ARG_DURATION = "duration";
+  private static final String ARG_SLOW_RATE = "slowRate";
+
+  private static final int SLOW_READ_BYTES = 4096;
+
+  private static final byte[] SNAPSHOT = "event: snapshot".getBytes(StandardCharsets.US_ASCII);
+
+  private long _events = 0;
+  private long _snapshots = 0;
+  private long _bytes = 0;
+  private int _connected = 0;
+  private int _closed = 0;
+
+  public static void main(String[] args) throws Exception {
+    Options options = buildOptions();
+    CommandLine cli;
+
+    try {
+      Parser parser = new GnuParser();
+      cli = parser.parse(options, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      new HelpFormatter().printHelp("StreamLoadTest", options);
+      System.exit(-1);
+      return;
+    }
+
+    String[] routes = cli.hasOption(ARG_ROUTES)
+        ? cli.getOptionValue(ARG_ROUTES).split(",") : new String[0];
+
+    new StreamLoadTest().run(new URL(cli.getOptionValue(ARG_URL)),
+        Integer.parseInt(cli.getOptionValue(ARG_CLIENTS, "1000")),
+        Integer.parseInt(cli.getOptionValue(ARG_RAMP_RATE, "500")), routes,
+        Integer.parseInt(cli.getOptionValue(ARG_DURATION, "120")),
+        Double.parseDouble(cli.getOptionValue(ARG_SLOW_RATE, "0")));
+  }
+
+  private void run(URL url, int clients, int rampRate, String[] routes,
+      int durationSeconds, double slowRate) throws IOException {
+    Selector selector = Selector.open();
+    Random random = new Random();
+    int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+    InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    List<SelectionKey> paused = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    long end = start + durationSeconds * 1000L;
+    long nextReport = start + 10000;
+
+    int opened = 0;
+
+    while (System.currentTimeMillis() < end) {
+      /*
+       * Open connections gradually; a burst of thousands of connects at once
+       * overflows the kernel's SYN backlog, and tests that rather than the
+       * server.
+       */
+      long due = Math.min(clients, (System.currentTimeMillis() - start)
+          * rampRate / 1000 + 1);
+
+      for (; opened < due; opened++) {
+        String target = url.getPath();
+        if (routes.length > 0) {
+          target += "?route="
+              + URLEncoder.encode(routes[random.nextInt(routes.length)], "UTF-8");
+        }
+
+        Client client = new Client(("GET " + target + " HTTP/1.1\r\nHost: "
+            + url.getHost() + "\r\nAccept: text/event-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII),
+            random.nextDouble() < slowRate);
+
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        channel.register(selector, SelectionKey.OP_CONNECT, client);
+      }
+
+      selector.select(opened < clients ? 10 : 1000);
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        try {
+          if (key.isConnectable()) {
+            channel.finishConnect();
+            channel.write(ByteBuffer.wrap(client.request));
+            key.interestOps(SelectionKey.OP_READ);
+            _connected++;
+          } else if (key.isReadable()) {
+            buffer.clear();
+            if (client.slow) {
+              /*
+               * Slow clients take a small read, then stop reading for a
+               * second, so that the server's buffer for them fills up.
+               */
+              buffer.limit(SLOW_READ_BYTES);
+              key.interestOps(0);
+              client.resumeAt = System.currentTimeMillis() + 1000;
+              paused.add(key);
+            }
+            int n = channel.read(buffer);
+            if (n == -1) {
+              close(key);
+              continue;
+            }
+            _bytes += n;
+            count(client, buffer.array(), n);
+          }
+        } catch (IOException e) {
+          close(key);
+        }
+      }
+
+      long now = System.currentTimeMillis();
+
+      Iterator<SelectionKey> pausedKeys = paused.iterator();
+      while (pausedKeys.hasNext()) {
+        SelectionKey key = pausedKeys.next();
+        if (!key.isValid()) {
+          pausedKeys.remove();
+        } else if (((Client) key.attachment()).resumeAt <= now) {
+          key.interestOps(SelectionKey.OP_READ);
+          pausedKeys.remove();
+        }
+      }
+
+      if (now >= nextReport) {
+        report(now - start);
+        nextReport = now + 10000;
+      }
+    }
+
+    report(System.currentTimeMillis() - start);
+    selector.close();
+  }
+
+  /**
+   * Counts events by their terminating blank line, carrying partial matches
+   * over from one read to the next.
+   */
+  private void count(Client client, byte[] bytes, int length) {
+    for (int i = 0; i < length; i++) {
+      byte b = bytes[i];
+
+      client.newlines = (b == '\n') ? client.newlines + 1 : 0;
+      if (client.newlines == 2) {
+        _events++;
+      }
+
+      client.snapshotMatch = (b == SNAPSHOT[client.snapshotMatch])
+          ? client.snapshotMatch + 1 : (b == SNAPSHOT[0] ? 1 : 0);
+      if (client.snapshotMatch == SNAPSHOT.length) {
+        _snapshots++;
+        client.snapshotMatch = 0;
+      }
+    }
+  }
+
+  private void close(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // already closed
+    }
+    _closed++;
+  }
+
+  private void report(long elapsedMillis) {
+    double seconds = elapsedMillis / 1000.0;
+    System.out.println(String.format(
+        "%6.0fs connected=%d closed=%d events=%d (%.0f/s) snapshots=%d bytes=%d (%.1f MB/s)",
+        seconds, _connected, _closed, _events, _events / seconds, _snapshots,
+        _bytes, _bytes / seconds / 1e6));
+  }
+
+  private static Options buildOptions() {
+    Options options = new Options();
+
+    Option url = new Option(ARG_URL, true, "stream URL");
+    url.setRequired(true);
+    options.addOption(url);
+    options.addOption(ARG_CLIENTS, true,
+        "number of concurrent subscribers (default 1000)");
+    options.addOption(ARG_RAMP_RATE, true,
+        "new connections opened per second (default 500)");
+    options.addOption(ARG_ROUTES, true,
+        "comma-separated route IDs; each subscriber picks one at random (default: all routes)");
+    options.addOption(ARG_DURATION, true, "test duration, in seconds (default 120)");
+    options.addOption(ARG_SLOW_RATE, true,
+        "fraction of subscribers which read only 4 KB a second");
+
+    return options;
+  }
+
+  private static class Client {
+    final byte[] request;
+    final boolean slow;
+    long resumeAt = 0;
+    int newlines = 0;
+    int snapshotMatch = 0;
+
+    Client(byte[] request, boolean slow) {
+      this.request = request;
+      this.slow = slow;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * @author kurt
+ */
+@Name("com.kurtraschke.wmata.ApiCall")
+@Label("API Call")
+@Description("One request to the WMATA API, including rate limiter wait")
+@Category("WMATA GTFS-realtime")
+@StackTrace(false)
+class ApiCallRecord extends jdk.jfr.Event {
+
+  @Label("Endpoint")
+  String endpoint;
+
+  @Label("Status")
+  @Description("HTTP status, or 0 if no response was received")
+  int status;
+
+  @Label("Bytes")
+  @DataAmount
+  long bytes;
+
+  @Label("Limiter Wait")
+  @Timespan
+  long limiterWait;
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.jfr;
+
+import com.kurtraschke.wmata.gtfsrealtime.events.ApiCallEvent;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.events.PollEvent;
+import com.kurtraschke.wmata.gtfsrealtime.events.TripMappingEvent;
+
+import jdk.jfr.EventType;
+
+/**
+ * Emits pipeline events to JDK Flight Recorder. When no recording has an
+ * event type enabled, the shared inert event is handed out instead, so the
+ * instrumentation costs next to nothing.
+ *
+ * @author kurt
+ */
+public class JfrPipelineEvents implements PipelineEvents {
+
+  private static final EventType POLL = EventType.getEventType(PollRecord.class);
+  private static final EventType API_CALL = EventType.getEventType(ApiCallRecord.class);
+  private static final EventType TRIP_MAPPING = EventType.getEventType(TripMappingRecord.class);
+
+  @Override
+  public PollEvent newPollEvent() {
+    return POLL.isEnabled() ? new JfrPollEvent() : PollEvent.DISABLED;
+  }
+
+  @Override
+  public ApiCallEvent newApiCallEvent() {
+    return API_CALL.isEnabled() ? new JfrApiCallEvent()
+        : ApiCallEvent.DISABLED;
+  }
+
+  @Override
+  public TripMappingEvent newTripMappingEvent() {
+    return TRIP_MAPPING.isEnabled() ? new JfrTripMappingEvent()
+        : TripMappingEvent.DISABLED;
+  }
+
+  private static class JfrPollEvent extends PollEvent {
+
+    private final PollRecord _record = new PollRecord();
+
+    @Override
+    public void begin() {
+      _record.begin();
+    }
+
+    @Override
+    public void setTask(String task) {
+      _record.task = task;
+    }
+
+    @Override
+    public void setItemCount(int itemCount) {
+      _record.itemCount = itemCount;
+    }
+
+    @Override
+    public void setSucceeded(boolean succeeded) {
+      _record.succeeded = succeeded;
+    }
+
+    @Override
+    public void commit() {
+      _record.commit();
+    }
+  }
+
+  private static class JfrApiCallEvent extends ApiCallEvent {
+
+    private final ApiCallRecord _record = new ApiCallRecord();
+
+    @Override
+    public void begin() {
+      _record.begin();
+    }
+
+    @Override
+    public void setEndpoint(String endpoint) {
+      _record.endpoint = endpoint;
+    }
+
+    @Override
+    public void setStatus(int status) {
+      _record.status = status;
+    }
+
+    @Override
+    public void setBytes(long bytes) {
+      _record.bytes = bytes;
+    }
+
+    @Override
+    public void setLimiterWait(double seconds) {
+      _record.limiterWait = (long) (seconds * 1e9);
+    }
+
+    @Override
+    public void commit() {
+      _record.commit();
+    }
+  }
+
+  private static class JfrTripMappingEvent extends TripMappingEvent {
+
+    private final TripMappingRecord _record = new TripMappingRecord();
+
+    @Override
+    public void begin() {
+      _record.begin();
+    }
+
+    @Override
+    public void setRouteId(String routeId) {
+      _record.routeId = routeId;
+    }
+
+    @Override
+    public void setTripId(String tripId) {
+      _record.tripId = tripId;
+    }
+
+    @Override
+    public void setCandidateCount(int candidateCount) {
+      _record.candidateCount = candidateCount;
+    }
+
+    @Override
+    public void setBestScore(double bestScore) {
+      _record.bestScore = bestScore;
+    }
+
+    @Override
+    public void setMapped(boolean mapped) {
+      _record.mapped = mapped;
+    }
+
+    @Override
+    public void commit() {
+      _record.commit();
+    }
+  }
+}
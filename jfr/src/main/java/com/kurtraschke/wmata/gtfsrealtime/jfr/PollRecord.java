@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author kurt
+ */
+@Name("com.kurtraschke.wmata.Poll")
+@Label("Poll")
+@Description("One run of a refresh task")
+@Category("WMATA GTFS-realtime")
+@StackTrace(false)
+class PollRecord extends jdk.jfr.Event {
+
+  @Label("Task")
+  String task;
+
+  @Label("Items")
+  @Description("Vehicles or alerts in the API response")
+  int itemCount;
+
+  @Label("Succeeded")
+  boolean succeeded;
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author kurt
+ */
+@Name("com.kurtraschke.wmata.TripMapping")
+@Label("Trip Mapping")
+@Description("One attempt to map a WMATA trip to a GTFS trip")
+@Category("WMATA GTFS-realtime")
+@StackTrace(false)
+class TripMappingRecord extends jdk.jfr.Event {
+
+  @Label("Route")
+  String routeId;
+
+  @Label("WMATA Trip")
+  String tripId;
+
+  @Label("Candidates")
+  @Description("GTFS trips scored against the WMATA trip")
+  int candidateCount;
+
+  @Label("Best Score")
+  double bestScore;
+
+  @Label("Mapped")
+  boolean mapped;
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime;
+
+/**
+ * Source of the current time for anything which needs to agree with the data
+ * being processed, rather than with the wall clock. Normally this is the
+ * system clock, but when replaying captured API traffic it follows the
+ * capture, possibly at an accelerated rate.
+ *
+ * @author kurt
+ */
+public interface Clock {
+
+  /**
+   * @return the current time, in milliseconds since the epoch.
+   */
+  long currentTimeMillis();
+
+  /**
+   * @return how many milliseconds of clock time elapse per millisecond of wall
+   *         time; 1.0 for the system clock.
+   */
+  double getRate();
+}
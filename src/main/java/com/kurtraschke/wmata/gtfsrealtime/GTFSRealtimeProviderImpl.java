@@ -37,6 +37,12 @@ import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
 import com.kurtraschke.wmata.gtfsrealtime.api.alerts.Item;
 import com.kurtraschke.wmata.gtfsrealtime.api.buspositions.BusPosition;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.events.PollEvent;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Counter;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Histogram;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.services.PollPlanner;
 import com.kurtraschke.wmata.gtfsrealtime.services.WMATAAPIService;
 import com.kurtraschke.wmata.gtfsrealtime.services.WMATARouteMapperService;
 import com.kurtraschke.wmata.gtfsrealtime.services.WMATATripMapperService;
@@ -56,6 +62,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -81,6 +88,7 @@ public class GTFSRealtimeProviderImpl {
   private WMATAAPIService _api;
   private WMATARouteMapperService _routeMapperService;
   private WMATATripMapperService _tripMapperService;
+  private PollPlanner _pollPlanner;
   private CacheManager _cacheManager;
   private Cache _alertIDCache;
   private GtfsRealtimeSink _vehiclePositionsSink;
@@ -88,8 +96,24 @@ public class GTFSRealtimeProviderImpl {
   private GtfsRealtimeSink _alertsSink;
   private Map<String, Date> lastUpdateByVehicle = new HashMap<>();
   private Map<UUID, Date> lastUpdateByAlert = new HashMap<>();
-  private int _vehicleRefreshInterval;
   private int _alertRefreshInterval;
+  private Clock _clock;
+  private PipelineEvents _events;
+  private Histogram _vehiclePollDuration;
+  private Histogram _alertPollDuration;
+  private Counter _vehiclePollFailures;
+  private Counter _alertPollFailures;
+  private Counter _vehiclesReceived;
+  private Counter _vehiclesUnchanged;
+  private Counter _vehicleErrors;
+  private Histogram _vehiclePositionsPublish;
+  private Histogram _tripUpdatesPublish;
+  private Histogram _alertsPublish;
+  private Histogram _freshnessTotal;
+  private Histogram _freshnessUpstream;
+  private Histogram _freshnessPollPhase;
+  private Histogram _freshnessProcessing;
+  private long _lastVehiclePollTime = -1;
 
   @Inject
   public void setVehiclePositionsSink(@VehiclePositions
@@ -136,9 +160,8 @@ public class GTFSRealtimeProviderImpl {
   }
 
   @Inject
-  public void setVehicleRefreshInterval(@Named("refreshInterval.vehicles")
-  int vehicleRefreshInterval) {
-    _vehicleRefreshInterval = vehicleRefreshInterval;
+  public void setPollPlanner(PollPlanner pollPlanner) {
+    _pollPlanner = pollPlanner;
   }
 
   @Inject
@@ -147,19 +170,86 @@ public class GTFSRealtimeProviderImpl {
     _alertRefreshInterval = alertRefreshInterval;
   }
 
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setPipelineEvents(PipelineEvents events) {
+    _events = events;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    String pollHelp = "Duration of each poll of the WMATA API, including processing";
+    _vehiclePollDuration = metrics.histogram("wmata_poll_duration_seconds",
+        pollHelp, "task", "vehicles");
+    _alertPollDuration = metrics.histogram("wmata_poll_duration_seconds",
+        pollHelp, "task", "alerts");
+
+    String failureHelp = "Polls that failed outright";
+    _vehiclePollFailures = metrics.counter("wmata_poll_failures_total",
+        failureHelp, "task", "vehicles");
+    _alertPollFailures = metrics.counter("wmata_poll_failures_total",
+        failureHelp, "task", "alerts");
+
+    String vehicleHelp = "Vehicle positions received, by what became of them";
+    _vehiclesReceived = metrics.counter("wmata_vehicles_total", vehicleHelp,
+        "result", "received");
+    _vehiclesUnchanged = metrics.counter("wmata_vehicles_total", vehicleHelp,
+        "result", "unchanged");
+    _vehicleErrors = metrics.counter("wmata_vehicles_total", vehicleHelp,
+        "result", "error");
+
+    String publishHelp = "Time taken by the sink to accept each update";
+    _vehiclePositionsPublish = metrics.histogram("gtfsrt_sink_publish_seconds",
+        publishHelp, "feed", "vehiclePositions");
+    _tripUpdatesPublish = metrics.histogram("gtfsrt_sink_publish_seconds",
+        publishHelp, "feed", "tripUpdates");
+    _alertsPublish = metrics.histogram("gtfsrt_sink_publish_seconds",
+        publishHelp, "feed", "alerts");
+
+    String freshnessHelp = "Time from a vehicle's reported position to its publication, and its components";
+    double[] buckets = Histogram.FRESHNESS_BUCKETS;
+    _freshnessTotal = metrics.histogram("gtfsrt_vehicle_freshness_seconds",
+        freshnessHelp, buckets, "component", "total");
+    _freshnessUpstream = metrics.histogram("gtfsrt_vehicle_freshness_seconds",
+        freshnessHelp, buckets, "component", "upstream");
+    _freshnessPollPhase = metrics.histogram(
+        "gtfsrt_vehicle_freshness_seconds", freshnessHelp, buckets,
+        "component", "poll_phase");
+    _freshnessProcessing = metrics.histogram(
+        "gtfsrt_vehicle_freshness_seconds", freshnessHelp, buckets,
+        "component", "processing");
+  }
+
   /**
    * The start method automatically starts up a recurring task that periodically
    * downloads the latest vehicle and alert data from the WMATA API and
    * processes them.
+   *
+   * Vehicles and alerts are refreshed on threads of their own, so that the
+   * schedule downloads made while mapping a vehicle refresh's trips do not
+   * hold up alerts; the API rate limit is shared between them by priority.
+   * The interval between vehicle refreshes is chosen anew after each by the
+   * {@link PollPlanner}.
    */
   @PostConstruct
   public void start() {
     _log.info("Starting GTFS-realtime service");
-    _executor = Executors.newSingleThreadScheduledExecutor();
-    _executor.scheduleWithFixedDelay(new VehiclesRefreshTask(), 0,
-        _vehicleRefreshInterval, TimeUnit.SECONDS);
+    _executor = Executors.newScheduledThreadPool(2);
+    _executor.schedule(new VehiclesRefreshTask(), 0, TimeUnit.MILLISECONDS);
     _executor.scheduleWithFixedDelay(new AlertsRefreshTask(), 0,
-        _alertRefreshInterval, TimeUnit.SECONDS);
+        scaleInterval(_alertRefreshInterval), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Converts a refresh interval in seconds into wall-clock milliseconds, so
+   * that polling keeps pace with an accelerated replay clock.
+   */
+  private long scaleInterval(double intervalSeconds) {
+    return Math.max(1L, (long) (intervalSeconds * 1000L / _clock.getRate()));
   }
 
   /**
@@ -177,13 +267,19 @@ public class GTFSRealtimeProviderImpl {
    * turn, and create a GTFS-realtime feed of trip updates and vehicle positions
    * as a result.
    *
+   * @return the number of vehicles in the API response
    * @throws WMATAAPIException
    */
-  private void refreshVehicles() throws WMATAAPIException {
+  int refreshVehicles() throws WMATAAPIException {
+    long pollTime = _clock.currentTimeMillis();
+    long lastPollTime = _lastVehiclePollTime;
+    _lastVehiclePollTime = pollTime;
+
     /**
      * We download the vehicle details as an array of objects.
      */
     List<BusPosition> busPositions = _api.downloadBusPositions().getBusPositions();
+    _vehiclesReceived.inc(busPositions.size());
 
     /**
      * We iterate over every vehicle object.
@@ -195,17 +291,48 @@ public class GTFSRealtimeProviderImpl {
           || bp.getDateTime().after(lastUpdateByVehicle.get(bp.getVehicleID()))) {
         try {
           processVehicle(bp);
+          recordFreshness(bp.getDateTime().getTime(), lastPollTime, pollTime);
 
         } catch (Exception e) {
+          _vehicleErrors.inc();
           _log.warn(
               "Error constructing update for vehicle " + bp.getVehicleID()
                   + " on route " + bp.getRouteID() + " to "
                   + bp.getTripHeadsign(), e);
         }
+      } else {
+        _vehiclesUnchanged.inc();
       }
     }
 
     _log.info("vehicles extracted: " + busPositions.size());
+    return busPositions.size();
+  }
+
+  /**
+   * Records how long it took a vehicle's position to reach the feed, split
+   * into three parts which sum to the whole:
+   *
+   * <ul>
+   * <li>upstream: from the vehicle's timestamp to the previous poll, which did
+   * not see this position, so it cannot have been available any sooner;</li>
+   * <li>poll phase: from then until the start of the poll that did see it;</li>
+   * <li>processing: from the start of that poll to publication.</li>
+   * </ul>
+   *
+   * Since the position became available at some unknown point between the two
+   * polls, the upstream figure is a lower bound and the poll phase an upper
+   * bound.
+   */
+  private void recordFreshness(long sourceTime, long lastPollTime,
+      long pollTime) {
+    long publishTime = _clock.currentTimeMillis();
+    long visibleFrom = Math.min(Math.max(sourceTime, lastPollTime), pollTime);
+
+    _freshnessTotal.observe(Math.max(0, publishTime - sourceTime) / 1000.0);
+    _freshnessUpstream.observe(Math.max(0, visibleFrom - sourceTime) / 1000.0);
+    _freshnessPollPhase.observe((pollTime - visibleFrom) / 1000.0);
+    _freshnessProcessing.observe((publishTime - pollTime) / 1000.0);
   }
 
   private void checkConsistency(BusPosition bp) {
@@ -290,7 +417,7 @@ public class GTFSRealtimeProviderImpl {
       tripUpdateEntity.setTripUpdate(tripUpdate);
       GtfsRealtimeIncrementalUpdate tripUpdateUpdate = new GtfsRealtimeIncrementalUpdate();
       tripUpdateUpdate.addUpdatedEntity(tripUpdateEntity.build());
-      _tripUpdatesSink.handleIncrementalUpdate(tripUpdateUpdate);
+      publish(_tripUpdatesSink, _tripUpdatesPublish, tripUpdateUpdate);
     }
 
     /**
@@ -318,12 +445,20 @@ public class GTFSRealtimeProviderImpl {
 
     GtfsRealtimeIncrementalUpdate vehiclePositionUpdate = new GtfsRealtimeIncrementalUpdate();
     vehiclePositionUpdate.addUpdatedEntity(vehiclePositionEntity.build());
-    _vehiclePositionsSink.handleIncrementalUpdate(vehiclePositionUpdate);
+    publish(_vehiclePositionsSink, _vehiclePositionsPublish,
+        vehiclePositionUpdate);
 
     lastUpdateByVehicle.put(bp.getVehicleID(), bp.getDateTime());
   }
 
-  private void refreshAlerts() throws WMATAAPIException {
+  private void publish(GtfsRealtimeSink sink, Histogram publishTime,
+      GtfsRealtimeIncrementalUpdate update) {
+    long start = System.nanoTime();
+    sink.handleIncrementalUpdate(update);
+    publishTime.observeNanos(System.nanoTime() - start);
+  }
+
+  private int refreshAlerts() throws WMATAAPIException {
     List<Item> busAlerts = _api.downloadBusAlerts().getChannel().getItems();
     List<Item> railAlerts = _api.downloadRailAlerts().getChannel().getItems();
 
@@ -356,7 +491,7 @@ public class GTFSRealtimeProviderImpl {
 
           GtfsRealtimeIncrementalUpdate alertUpdate = new GtfsRealtimeIncrementalUpdate();
           alertUpdate.addUpdatedEntity(alertEntity.build());
-          _alertsSink.handleIncrementalUpdate(alertUpdate);
+          publish(_alertsSink, _alertsPublish, alertUpdate);
           _alertIDCache.put(new Element(theAlert.getGuid(), null));
           lastUpdateByAlert.put(theAlert.getGuid(), theAlert.getPubDate());
         }
@@ -381,11 +516,12 @@ public class GTFSRealtimeProviderImpl {
     for (UUID removedAlert : Sets.difference(allAlertIDs, currentAlertIDs)) {
       GtfsRealtimeIncrementalUpdate alertUpdate = new GtfsRealtimeIncrementalUpdate();
       alertUpdate.addDeletedEntity(removedAlert.toString());
-      _alertsSink.handleIncrementalUpdate(alertUpdate);
+      publish(_alertsSink, _alertsPublish, alertUpdate);
       lastUpdateByAlert.remove(removedAlert);
     }
 
     _log.info("alerts extracted: " + (railAlerts.size() + busAlerts.size()));
+    return railAlerts.size() + busAlerts.size();
   }
 
   /**
@@ -396,11 +532,33 @@ public class GTFSRealtimeProviderImpl {
 
     @Override
     public void run() {
+      PollEvent event = _events.newPollEvent();
+      event.begin();
+      event.setTask("vehicles");
+      long start = System.nanoTime();
+      int vehicleCount = 0;
       try {
         _log.info("Refreshing vehicles");
-        refreshVehicles();
+        vehicleCount = refreshVehicles();
+        event.setItemCount(vehicleCount);
+        event.setSucceeded(true);
       } catch (Exception ex) {
+        _vehiclePollFailures.inc();
         _log.warn("Error in vehicle refresh task", ex);
+      } finally {
+        _vehiclePollDuration.observeNanos(System.nanoTime() - start);
+        event.commit();
+        scheduleNext(vehicleCount);
+      }
+    }
+
+    private void scheduleNext(int vehicleCount) {
+      try {
+        _executor.schedule(this,
+            scaleInterval(_pollPlanner.nextVehicleInterval(vehicleCount)),
+            TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // shutting down
       }
     }
   }
@@ -413,11 +571,20 @@ public class GTFSRealtimeProviderImpl {
 
     @Override
     public void run() {
+      PollEvent event = _events.newPollEvent();
+      event.begin();
+      event.setTask("alerts");
+      long start = System.nanoTime();
       try {
         _log.info("Refreshing alerts");
-        refreshAlerts();
+        event.setItemCount(refreshAlerts());
+        event.setSucceeded(true);
       } catch (Exception ex) {
+        _alertPollFailures.inc();
         _log.warn("Error in alert refresh task", ex);
+      } finally {
+        _alertPollDuration.observeNanos(System.nanoTime() - start);
+        event.commit();
       }
     }
   }
@@ -18,12 +18,10 @@ package com.kurtraschke.wmata.gtfsrealtime;
 
 import org.onebusaway.cli.CommandLineInterfaceLibrary;
 import org.onebusaway.cli.Daemonizer;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFileWriter;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
 import org.onebusaway.guice.jsr250.LifecycleService;
 
 import com.google.inject.ConfigurationException;
@@ -35,6 +33,22 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.ProvisionException;
 import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import com.kurtraschke.wmata.gtfsrealtime.capture.CaptureModule;
+import com.kurtraschke.wmata.gtfsrealtime.feed.FeedFileOutput;
+import com.kurtraschke.wmata.gtfsrealtime.feed.FeedModule;
+import com.kurtraschke.wmata.gtfsrealtime.feed.FeedServlet;
+import com.kurtraschke.wmata.gtfsrealtime.feed.FeedSnapshot;
+import com.kurtraschke.wmata.gtfsrealtime.feed.LazyFeedSink;
+import com.kurtraschke.wmata.gtfsrealtime.feed.StreamServer;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.CacheMetrics;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsServlet;
+import com.kurtraschke.wmata.gtfsrealtime.services.SchedulePrefetcher;
+import com.kurtraschke.wmata.gtfsrealtime.services.TripMappingBatch;
+import com.kurtraschke.wmata.gtfsrealtime.services.TripMappingTable;
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATATripMapperService;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -50,7 +64,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.text.ParseException;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -59,19 +76,28 @@ public class WMATARealtimeMain {
   private static final Logger _log = LoggerFactory.getLogger(WMATARealtimeMain.class);
 
   private final String ARG_CONFIG_FILE = "config";
+  private final String ARG_RECORD = "record";
+  private final String ARG_REPLAY = "replay";
+  private final String ARG_REPLAY_SPEED = "replaySpeed";
+  private final String ARG_MAP_TRIPS = "mapTrips";
+  private final String ARG_MAPPING_TABLE = "mappingTable";
+  private final String ARG_MAP_THREADS = "mapThreads";
   private File _tripUpdatesPath;
   private URL _tripUpdatesUrl;
   private File _vehiclePositionsPath;
   private URL _vehiclePositionsUrl;
   private File _alertsPath;
   private URL _alertsUrl;
+  private URL _metricsUrl;
   private Injector _injector;
   @SuppressWarnings("unused")
   private GTFSRealtimeProviderImpl _provider;
   private LifecycleService _lifecycleService;
-  private GtfsRealtimeExporter _vehiclePositionsExporter;
-  private GtfsRealtimeExporter _tripUpdatesExporter;
-  private GtfsRealtimeExporter _alertsExporter;
+  private LazyFeedSink _vehiclePositionsExporter;
+  private LazyFeedSink _tripUpdatesExporter;
+  private LazyFeedSink _alertsExporter;
+  private MetricsRegistry _metrics;
+  private Clock _clock;
 
   public static void main(String[] args) throws Exception {
     System.setProperty("net.sf.ehcache.enableShutdownHook", "true");
@@ -96,22 +122,32 @@ public class WMATARealtimeMain {
 
   @Inject
   public void setVehiclePositionsExporter(@VehiclePositions
-  GtfsRealtimeExporter exporter) {
+  LazyFeedSink exporter) {
     _vehiclePositionsExporter = exporter;
   }
 
   @Inject
   public void setTripUpdatesExporter(@TripUpdates
-  GtfsRealtimeExporter exporter) {
+  LazyFeedSink exporter) {
     _tripUpdatesExporter = exporter;
   }
 
   @Inject
   public void setAlertsExporter(@Alerts
-  GtfsRealtimeExporter exporter) {
+  LazyFeedSink exporter) {
     _alertsExporter = exporter;
   }
 
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    _metrics = metrics;
+  }
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
   public void run(String[] args) throws Exception {
     if (args.length == 0 || CommandLineInterfaceLibrary.wantsHelp(args)) {
       printUsage();
@@ -125,9 +161,37 @@ public class WMATARealtimeMain {
     final CommandLine cli = parser.parse(options, args);
     Daemonizer.handleDaemonization(cli);
 
+    if (cli.hasOption(ARG_MAP_TRIPS) && !cli.hasOption(ARG_MAPPING_TABLE)) {
+      System.err.println("--" + ARG_MAP_TRIPS + " requires --"
+          + ARG_MAPPING_TABLE);
+      printUsage();
+      System.exit(-1);
+    }
+
+    if (cli.hasOption(ARG_RECORD) && cli.hasOption(ARG_REPLAY)) {
+      System.err.println("--" + ARG_RECORD + " and --" + ARG_REPLAY
+          + " may not be used together");
+      printUsage();
+      System.exit(-1);
+    }
+
     Set<Module> modules = new HashSet<>();
     WMATARealtimeModule.addModuleAndDependencies(modules);
 
+    Module appModule = Modules.override(Rocoto.expandVariables(modules)).with(
+        new FeedModule());
+
+    if (cli.hasOption(ARG_RECORD)) {
+      appModule = Modules.override(appModule).with(
+          CaptureModule.recording(new File(cli.getOptionValue(ARG_RECORD))));
+    } else if (cli.hasOption(ARG_REPLAY)) {
+      double replaySpeed = Double.parseDouble(cli.getOptionValue(
+          ARG_REPLAY_SPEED, "1"));
+      appModule = Modules.override(appModule).with(
+          CaptureModule.replaying(new File(cli.getOptionValue(ARG_REPLAY)),
+              replaySpeed));
+    }
+
     _injector = Guice.createInjector(new URLConverter(), new FileConverter(),
         new PropertiesConverter(), new ConfigurationModule() {
           @Override
@@ -139,29 +203,37 @@ public class WMATARealtimeMain {
               bindProperties(new File(cli.getOptionValue(ARG_CONFIG_FILE)));
             }
           }
-        }, Rocoto.expandVariables(modules));
+        }, appModule);
+
+    if (cli.hasOption(ARG_MAP_TRIPS)) {
+      runTripMappingBatch(cli);
+      return;
+    }
 
     _injector.injectMembers(this);
 
+    File mappingTable = getConfigurationValue(File.class, "tripMapping.table");
+    if (mappingTable != null) {
+      loadTripMappingTable(mappingTable);
+    }
+
     _tripUpdatesUrl = getConfigurationValue(URL.class, "tripUpdates.url");
     if (_tripUpdatesUrl != null) {
-      GtfsRealtimeServlet servlet = _injector.getInstance(GtfsRealtimeServlet.class);
+      FeedServlet servlet = _injector.getInstance(FeedServlet.class);
       servlet.setUrl(_tripUpdatesUrl);
       servlet.setSource(_tripUpdatesExporter);
-
     }
 
     _tripUpdatesPath = getConfigurationValue(File.class, "tripUpdates.path");
     if (_tripUpdatesPath != null) {
-      GtfsRealtimeFileWriter writer = _injector.getInstance(GtfsRealtimeFileWriter.class);
-      writer.setPath(_tripUpdatesPath);
-      writer.setSource(_tripUpdatesExporter);
+      _injector.getInstance(FeedFileOutput.class).register(_tripUpdatesPath,
+          _tripUpdatesExporter);
     }
 
     _vehiclePositionsUrl = getConfigurationValue(URL.class,
         "vehiclePositions.url");
     if (_vehiclePositionsUrl != null) {
-      GtfsRealtimeServlet servlet = _injector.getInstance(GtfsRealtimeServlet.class);
+      FeedServlet servlet = _injector.getInstance(FeedServlet.class);
       servlet.setUrl(_vehiclePositionsUrl);
       servlet.setSource(_vehiclePositionsExporter);
     }
@@ -169,28 +241,135 @@ public class WMATARealtimeMain {
     _vehiclePositionsPath = getConfigurationValue(File.class,
         "vehiclePositions.path");
     if (_vehiclePositionsPath != null) {
-      GtfsRealtimeFileWriter writer = _injector.getInstance(GtfsRealtimeFileWriter.class);
-      writer.setPath(_vehiclePositionsPath);
-      writer.setSource(_vehiclePositionsExporter);
+      _injector.getInstance(FeedFileOutput.class).register(_vehiclePositionsPath,
+          _vehiclePositionsExporter);
     }
 
     _alertsUrl = getConfigurationValue(URL.class, "alerts.url");
     if (_alertsUrl != null) {
-      GtfsRealtimeServlet servlet = _injector.getInstance(GtfsRealtimeServlet.class);
+      FeedServlet servlet = _injector.getInstance(FeedServlet.class);
       servlet.setUrl(_alertsUrl);
       servlet.setSource(_alertsExporter);
     }
 
     _alertsPath = getConfigurationValue(File.class, "alerts.path");
     if (_alertsPath != null) {
-      GtfsRealtimeFileWriter writer = _injector.getInstance(GtfsRealtimeFileWriter.class);
-      writer.setPath(_alertsPath);
-      writer.setSource(_alertsExporter);
+      _injector.getInstance(FeedFileOutput.class).register(_alertsPath,
+          _alertsExporter);
+    }
+
+    registerStream("tripUpdates.streamUrl", _tripUpdatesExporter);
+    registerStream("vehiclePositions.streamUrl", _vehiclePositionsExporter);
+    registerStream("alerts.streamUrl", _alertsExporter);
+
+    _metricsUrl = getConfigurationValue(URL.class, "metrics.url");
+    if (_metricsUrl != null) {
+      MetricsServlet servlet = _injector.getInstance(MetricsServlet.class);
+      servlet.setUrl(_metricsUrl);
+
+      _injector.getInstance(CacheMetrics.class);
+      registerFeedGauges("tripUpdates", _tripUpdatesExporter);
+      registerFeedGauges("vehiclePositions", _vehiclePositionsExporter);
+      registerFeedGauges("alerts", _alertsExporter);
+    }
+
+    /*
+     * A replay has only the schedules its capture happened to download, so
+     * there is nothing to prefetch.
+     */
+    if (!cli.hasOption(ARG_REPLAY)) {
+      _injector.getInstance(SchedulePrefetcher.class);
     }
 
     _lifecycleService.start();
   }
 
+  /**
+   * Maps every trip on the service date given on the command line and writes
+   * the mapping table, instead of starting the daemon. Only the services the
+   * mapping needs are created, so nothing is polled or served.
+   */
+  private void runTripMappingBatch(CommandLine cli) throws Exception {
+    ServiceDate serviceDate;
+    try {
+      serviceDate = ServiceDate.parseString(cli.getOptionValue(ARG_MAP_TRIPS).replace(
+          "-", ""));
+    } catch (ParseException e) {
+      System.err.println("--" + ARG_MAP_TRIPS + " takes a date as yyyy-MM-dd");
+      printUsage();
+      System.exit(-1);
+      return;
+    }
+    int threads = Integer.parseInt(cli.getOptionValue(ARG_MAP_THREADS,
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    TripMappingBatch batch = _injector.getInstance(TripMappingBatch.class);
+    LifecycleService lifecycleService = _injector.getInstance(LifecycleService.class);
+    lifecycleService.start();
+
+    try {
+      File output = new File(cli.getOptionValue(ARG_MAPPING_TABLE));
+      TripMappingTable table = batch.run(serviceDate, threads);
+      table.write(output);
+      _log.info("Wrote " + table.getMappings().size() + " trip mappings to "
+          + output);
+    } finally {
+      lifecycleService.stop();
+    }
+  }
+
+  private void loadTripMappingTable(File file) {
+    TripMappingTable table;
+
+    try {
+      table = TripMappingTable.read(file);
+    } catch (IOException e) {
+      _log.warn("Could not load trip mapping table " + file + ": " + e);
+      return;
+    }
+
+    ServiceDate today = DateTimeUtils.serviceDateFromDate(new Date(
+        _clock.currentTimeMillis()));
+
+    if (table.getServiceDate().compareTo(today) < 0) {
+      _log.info("Not loading trip mapping table " + file + " for past date "
+          + table.getServiceDate());
+      return;
+    }
+
+    _injector.getInstance(WMATATripMapperService.class).addMappings(
+        table.getServiceDate(), table.getMappings());
+    _log.info("Loaded " + table.getMappings().size() + " trip mappings for "
+        + table.getServiceDate() + " from " + file);
+  }
+
+  private void registerStream(String configurationKey, LazyFeedSink sink)
+      throws IOException {
+    URL streamUrl = getConfigurationValue(URL.class, configurationKey);
+    if (streamUrl != null) {
+      _injector.getInstance(StreamServer.class).register(streamUrl, sink);
+    }
+  }
+
+  private void registerFeedGauges(String feed, final LazyFeedSink exporter) {
+    _metrics.gauge("gtfsrt_feed_entities", "Entities in the served feed",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return exporter.getSnapshot().getEntityCount();
+          }
+        }, "feed", feed);
+    _metrics.gauge("gtfsrt_feed_age_seconds",
+        "Time since the served feed was last updated", new Gauge() {
+          @Override
+          public double getValue() {
+            FeedSnapshot snapshot = exporter.getSnapshot();
+            return (snapshot.getTimestamp() > 0) ? _clock.currentTimeMillis()
+                / 1000L - snapshot.getTimestamp() : Double.NaN;
+          }
+        }, "feed", feed);
+  }
+
   private <T> T getConfigurationValue(Class<T> type, String configurationKey) {
     try {
       return _injector.getInstance(Key.get(type, Names.named(configurationKey)));
@@ -208,5 +387,18 @@ public class WMATARealtimeMain {
         "configuration file path");
     configFile.setRequired(true);
     options.addOption(configFile);
+    options.addOption(ARG_RECORD, true,
+        "record all API responses to the given capture file");
+    options.addOption(ARG_REPLAY, true,
+        "replay API responses from the given capture file");
+    options.addOption(ARG_REPLAY_SPEED, true,
+        "speed multiplier for replay (default 1)");
+    options.addOption(ARG_MAP_TRIPS, true,
+        "map every trip on the given service date (yyyy-MM-dd) to GTFS, write the mapping table and exit");
+    options.addOption(ARG_MAPPING_TABLE, true,
+        "trip mapping table to write with --" + ARG_MAP_TRIPS);
+    options.addOption(ARG_MAP_THREADS, true,
+        "threads to map trips on with --" + ARG_MAP_TRIPS
+            + " (default the number of processors)");
   }
 }
\ No newline at end of file
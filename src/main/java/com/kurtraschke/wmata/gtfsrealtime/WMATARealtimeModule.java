@@ -16,7 +16,6 @@
  */
 package com.kurtraschke.wmata.gtfsrealtime;
 
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.onebusaway.guice.jsr250.JSR250Module;
 
@@ -24,9 +23,12 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.Scopes;
 import com.google.inject.name.Names;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEventsProvider;
 import com.kurtraschke.wmata.gtfsrealtime.services.AgencyTimeZoneProvider;
-import com.kurtraschke.wmata.gtfsrealtime.services.CalendarServiceDataProvider;
 import com.kurtraschke.wmata.gtfsrealtime.services.GtfsRelationalDaoProvider;
+import com.kurtraschke.wmata.gtfsrealtime.services.HttpResponseSource;
+import com.kurtraschke.wmata.gtfsrealtime.services.ResponseSource;
 
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporterModule;
 
@@ -54,14 +56,19 @@ public class WMATARealtimeModule extends AbstractModule {
         CacheManager.getInstance().getCache("wmatatrip"));
     bind(Cache.class).annotatedWith(Names.named("caches.alertID")).toInstance(
         CacheManager.getInstance().getCache("wmataalertid"));
+    bind(Cache.class).annotatedWith(Names.named("caches.quota")).toInstance(
+        CacheManager.getInstance().getCache("wmataquota"));
 
-    bind(CalendarServiceData.class).toProvider(
-        CalendarServiceDataProvider.class).in(Scopes.SINGLETON);
     bind(GtfsRelationalDao.class).toProvider(GtfsRelationalDaoProvider.class).in(
         Scopes.SINGLETON);
     bind(TimeZone.class).annotatedWith(AgencyTimeZone.class).toProvider(
         AgencyTimeZoneProvider.class).in(Scopes.SINGLETON);
 
+    bind(Clock.class).to(SystemClock.class);
+    bind(PipelineEvents.class).toProvider(PipelineEventsProvider.class).in(
+        Scopes.SINGLETON);
+    bind(ResponseSource.class).to(HttpResponseSource.class);
+
     requestStaticInjection(DateTimeUtils.class);
   }
 
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.SystemClock;
+import com.kurtraschke.wmata.gtfsrealtime.services.HttpResponseSource;
+import com.kurtraschke.wmata.gtfsrealtime.services.ResponseSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Overrides the bindings in {@code WMATARealtimeModule} to either record API
+ * traffic to a capture file, or replay it from one in place of the WMATA API.
+ *
+ * @author kurt
+ */
+public abstract class CaptureModule extends AbstractModule {
+
+  public static CaptureModule recording(final File captureFile) {
+    return new CaptureModule() {
+      @Override
+      protected void configure() {
+        bind(Clock.class).to(SystemClock.class);
+      }
+
+      @Provides
+      @Singleton
+      ResponseSource provideResponseSource(HttpResponseSource http, Clock clock)
+          throws IOException {
+        return new RecordingResponseSource(http, new CaptureWriter(captureFile),
+            clock);
+      }
+    };
+  }
+
+  public static CaptureModule replaying(File captureFile, double rate)
+      throws IOException {
+    List<CaptureRecord> records = CaptureReader.readAll(captureFile);
+
+    if (records.isEmpty()) {
+      throw new IOException("Capture file " + captureFile + " is empty");
+    }
+
+    final Clock clock = new ReplayClock(records.get(0).getTimestamp(), rate);
+    final ResponseSource source = new ReplayResponseSource(records, clock);
+
+    return new CaptureModule() {
+      @Override
+      protected void configure() {
+        bind(Clock.class).toInstance(clock);
+        bind(ResponseSource.class).toInstance(source);
+      }
+    };
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the records from a file written by {@link CaptureWriter}.
+ *
+ * @author kurt
+ */
+public class CaptureReader {
+
+  private CaptureReader() {
+
+  }
+
+  public static List<CaptureRecord> readAll(File file) throws IOException {
+    List<CaptureRecord> records = new ArrayList<>();
+
+    try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(file))))) {
+      while (true) {
+        long timestamp;
+        try {
+          timestamp = in.readLong();
+        } catch (EOFException e) {
+          break;
+        }
+        String uri = in.readUTF();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        records.add(new CaptureRecord(timestamp, uri, body));
+      }
+    } catch (EOFException e) {
+      /*
+       * A truncated final record means the recording process died part-way
+       * through a write; keep everything before it.
+       */
+    }
+
+    return records;
+  }
+}
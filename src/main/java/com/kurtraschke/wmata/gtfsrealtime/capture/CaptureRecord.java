@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import com.kurtraschke.wmata.gtfsrealtime.services.WMATAAPIService;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single captured API response: when it was received, what was requested,
+ * and the raw body.
+ *
+ * @author kurt
+ */
+public class CaptureRecord {
+
+  private final long timestamp;
+  private final String uri;
+  private final byte[] body;
+
+  public CaptureRecord(long timestamp, String uri, byte[] body) {
+    this.timestamp = timestamp;
+    this.uri = uri;
+    this.body = body;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * Strips the API key from a request URI, so that captures do not contain
+   * credentials and can be replayed with a different key.
+   */
+  public static String normalizeUri(URI uri) {
+    try {
+      URIBuilder b = new URIBuilder(uri);
+      List<NameValuePair> params = new ArrayList<>(b.getQueryParams());
+      b.clearParameters();
+      for (NameValuePair param : params) {
+        if (!param.getName().equals(WMATAAPIService.API_KEY_PARAM_NAME)) {
+          b.addParameter(param.getName(), param.getValue());
+        }
+      }
+      return b.build().toString();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CaptureRecord [timestamp=" + timestamp + ", uri=" + uri
+        + ", length=" + body.length + "]";
+  }
+}
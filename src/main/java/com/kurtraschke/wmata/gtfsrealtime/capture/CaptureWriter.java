@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends {@link CaptureRecord}s to a gzip-compressed capture file.
+ *
+ * Each record is written as the timestamp (a long), the URI (modified UTF-8),
+ * the body length (an int) and the body. Records are written in the order
+ * they are received, so the file is ordered by timestamp. The stream is
+ * flushed after every record, so a capture remains readable up to the last
+ * complete record if the process dies.
+ *
+ * @author kurt
+ */
+public class CaptureWriter {
+
+  private final DataOutputStream _out;
+
+  public CaptureWriter(File file) throws IOException {
+    _out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)), true));
+  }
+
+  public synchronized void write(CaptureRecord record) throws IOException {
+    _out.writeLong(record.getTimestamp());
+    _out.writeUTF(record.getUri());
+    _out.writeInt(record.getBody().length);
+    _out.write(record.getBody());
+    _out.flush();
+  }
+
+  public synchronized void close() throws IOException {
+    _out.close();
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.services.ResponseSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Passes requests through to another {@link ResponseSource}, writing every
+ * response to a capture file along the way.
+ *
+ * @author kurt
+ */
+public class RecordingResponseSource implements ResponseSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(RecordingResponseSource.class);
+
+  private final ResponseSource _delegate;
+  private final CaptureWriter _writer;
+  private final Clock _clock;
+
+  public RecordingResponseSource(ResponseSource delegate, CaptureWriter writer,
+      Clock clock) {
+    _delegate = delegate;
+    _writer = writer;
+    _clock = clock;
+  }
+
+  @PreDestroy
+  public void stop() throws IOException {
+    _writer.close();
+  }
+
+  @Override
+  public byte[] fetch(URI uri) throws IOException {
+    byte[] body = _delegate.fetch(uri);
+
+    try {
+      _writer.write(new CaptureRecord(_clock.currentTimeMillis(),
+          CaptureRecord.normalizeUri(uri), body));
+    } catch (IOException e) {
+      _log.warn("Could not record response for " + uri, e);
+    }
+
+    return body;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+
+/**
+ * A clock which starts at the beginning of a capture and then runs at a fixed
+ * multiple of wall-clock time.
+ *
+ * @author kurt
+ */
+public class ReplayClock implements Clock {
+
+  private final long _startMillis;
+  private final double _rate;
+  private final long _wallStartMillis;
+
+  public ReplayClock(long startMillis, double rate) {
+    if (rate <= 0) {
+      throw new IllegalArgumentException("Replay rate must be positive: "
+          + rate);
+    }
+    _startMillis = startMillis;
+    _rate = rate;
+    _wallStartMillis = System.currentTimeMillis();
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return _startMillis
+        + (long) ((System.currentTimeMillis() - _wallStartMillis) * _rate);
+  }
+
+  @Override
+  public double getRate() {
+    return _rate;
+  }
+}
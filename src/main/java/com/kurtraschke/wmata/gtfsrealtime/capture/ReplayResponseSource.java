@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.capture;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.services.ResponseSource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Serves responses from a capture. A request is answered with the most recent
+ * response captured for the same URI at or before the current time on the
+ * replay clock; requests made before the first capture of a URI get that
+ * first capture.
+ *
+ * @author kurt
+ */
+public class ReplayResponseSource implements ResponseSource {
+
+  private final Map<String, NavigableMap<Long, byte[]>> _responsesByUri = new HashMap<>();
+  private final Clock _clock;
+
+  public ReplayResponseSource(List<CaptureRecord> records, Clock clock) {
+    _clock = clock;
+
+    for (CaptureRecord record : records) {
+      NavigableMap<Long, byte[]> responses = _responsesByUri.get(record.getUri());
+      if (responses == null) {
+        responses = new TreeMap<>();
+        _responsesByUri.put(record.getUri(), responses);
+      }
+      responses.put(record.getTimestamp(), record.getBody());
+    }
+  }
+
+  @Override
+  public byte[] fetch(URI uri) throws IOException {
+    NavigableMap<Long, byte[]> responses = _responsesByUri.get(CaptureRecord.normalizeUri(uri));
+
+    if (responses == null) {
+      throw new IOException("No captured response for " + uri);
+    }
+
+    Entry<Long, byte[]> entry = responses.floorEntry(_clock.currentTimeMillis());
+
+    if (entry == null) {
+      entry = responses.firstEntry();
+    }
+
+    return entry.getValue();
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.events;
+
+/**
+ * One request to the WMATA API. This base class discards everything.
+ *
+ * @author kurt
+ */
+public class ApiCallEvent {
+
+  public static final ApiCallEvent DISABLED = new ApiCallEvent();
+
+  public void begin() {
+
+  }
+
+  public void setEndpoint(String endpoint) {
+
+  }
+
+  public void setStatus(int status) {
+
+  }
+
+  public void setBytes(long bytes) {
+
+  }
+
+  public void setLimiterWait(double seconds) {
+
+  }
+
+  public void commit() {
+
+  }
+}
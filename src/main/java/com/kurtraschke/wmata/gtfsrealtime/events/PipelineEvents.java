@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.events;
+
+/**
+ * Creates profiling events for the stages of the pipeline.
+ *
+ * Each event is used once: {@code begin()}, set its fields, then
+ * {@code commit()}. Implementations return an inert event when nothing is
+ * listening, so instrumented code does not need to check.
+ *
+ * An implementation may be supplied on the classpath through
+ * {@link java.util.ServiceLoader}; otherwise, events are discarded.
+ *
+ * @author kurt
+ */
+public interface PipelineEvents {
+
+  PollEvent newPollEvent();
+
+  ApiCallEvent newApiCallEvent();
+
+  TripMappingEvent newTripMappingEvent();
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.events;
+
+import com.google.inject.Provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Uses the first {@link PipelineEvents} implementation found on the
+ * classpath, falling back to {@link NoOpPipelineEvents}.
+ *
+ * @author kurt
+ */
+public class PipelineEventsProvider implements Provider<PipelineEvents> {
+
+  private static final Logger _log = LoggerFactory.getLogger(PipelineEventsProvider.class);
+
+  @Override
+  public PipelineEvents get() {
+    try {
+      Iterator<PipelineEvents> it = ServiceLoader.load(PipelineEvents.class).iterator();
+      if (it.hasNext()) {
+        PipelineEvents events = it.next();
+        _log.info("Emitting pipeline events with {}", events.getClass().getName());
+        return events;
+      }
+    } catch (ServiceConfigurationError | LinkageError e) {
+      /*
+       * Most likely an implementation built against a newer JDK than the one
+       * we are running on.
+       */
+      _log.warn("Could not load pipeline events implementation", e);
+    }
+    return new NoOpPipelineEvents();
+  }
+}
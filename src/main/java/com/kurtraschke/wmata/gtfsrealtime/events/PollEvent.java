@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.events;
+
+/**
+ * One run of a refresh task. This base class discards everything.
+ *
+ * @author kurt
+ */
+public class PollEvent {
+
+  public static final PollEvent DISABLED = new PollEvent();
+
+  public void begin() {
+
+  }
+
+  public void setTask(String task) {
+
+  }
+
+  public void setItemCount(int itemCount) {
+
+  }
+
+  public void setSucceeded(boolean succeeded) {
+
+  }
+
+  public void commit() {
+
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+/**
+ * One version of a feed, serialized once and shared by every request that
+ * asks for that version.
+ *
+ * @author kurt
+ */
+public class EncodedFeed {
+
+  private final long _version;
+  private final String _etag;
+  private final String _gzipEtag;
+  private final byte[] _bytes;
+  private final byte[] _gzipBytes;
+
+  public EncodedFeed(long version, String etag, String gzipEtag, byte[] bytes,
+      byte[] gzipBytes) {
+    _version = version;
+    _etag = etag;
+    _gzipEtag = gzipEtag;
+    _bytes = bytes;
+    _gzipBytes = gzipBytes;
+  }
+
+  public long getVersion() {
+    return _version;
+  }
+
+  /**
+   * @return the quoted entity tag for this version, suitable for use as the
+   *         value of an {@code ETag} header.
+   */
+  public String getEtag() {
+    return _etag;
+  }
+
+  /**
+   * @return the quoted entity tag for the gzipped representation of this
+   *         version, which differs from {@link #getEtag()}.
+   */
+  public String getGzipEtag() {
+    return _gzipEtag;
+  }
+
+  /**
+   * @return the serialized {@code FeedMessage}; callers must not modify it.
+   */
+  public byte[] getBytes() {
+    return _bytes;
+  }
+
+  /**
+   * @return the gzip-compressed serialized {@code FeedMessage}; callers must
+   *         not modify it.
+   */
+  public byte[] getGzipBytes() {
+    return _gzipBytes;
+  }
+}
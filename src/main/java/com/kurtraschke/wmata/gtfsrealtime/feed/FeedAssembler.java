@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes a feed by concatenating the encoded form of each of its entities
+ * behind a freshly encoded header.
+ *
+ * The encoded bytes of each entity are kept, by entity ID, from one feed
+ * version to the next; an entity is only encoded again when the sink has
+ * replaced it with a different {@link FeedEntity} instance. Since protobuf
+ * messages are immutable, and the sink carries unchanged entities over from
+ * one version to the next by reference, an identity comparison is enough to
+ * tell which entities have changed.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author kurt
+ */
+class FeedAssembler {
+
+  private Map<String, EncodedEntity> _entities = new HashMap<>();
+
+  public byte[] assemble(FeedHeader header, Iterable<FeedEntity> entities)
+      throws IOException {
+    Map<String, EncodedEntity> previous = _entities;
+    Map<String, EncodedEntity> current = new HashMap<>(
+        (int) (previous.size() / 0.75f) + 1);
+    List<byte[]> parts = new ArrayList<>(previous.size() + 1);
+
+    byte[] headerBytes = encode(FeedMessage.HEADER_FIELD_NUMBER, header);
+    parts.add(headerBytes);
+    int size = headerBytes.length;
+
+    for (FeedEntity entity : entities) {
+      EncodedEntity encoded = previous.get(entity.getId());
+
+      if (encoded == null || encoded.entity != entity) {
+        encoded = new EncodedEntity(entity, encode(
+            FeedMessage.ENTITY_FIELD_NUMBER, entity));
+      }
+
+      current.put(entity.getId(), encoded);
+      parts.add(encoded.bytes);
+      size += encoded.bytes.length;
+    }
+
+    _entities = current;
+
+    byte[] result = new byte[size];
+    int offset = 0;
+
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, result, offset, part.length);
+      offset += part.length;
+    }
+
+    return result;
+  }
+
+  /**
+   * Encodes the given message as it would appear as the given field of an
+   * enclosing message, with the field tag and length prefix.
+   */
+  static byte[] encode(int fieldNumber,
+      MessageLite message) throws IOException {
+    byte[] bytes = new byte[CodedOutputStream.computeMessageSize(fieldNumber,
+        message)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeMessage(fieldNumber, message);
+    out.checkNoSpaceLeft();
+    return bytes;
+  }
+
+  private static class EncodedEntity {
+    final FeedEntity entity;
+    final byte[] bytes;
+
+    EncodedEntity(FeedEntity entity, byte[] bytes) {
+      this.entity = entity;
+      this.bytes = bytes;
+    }
+  }
+}
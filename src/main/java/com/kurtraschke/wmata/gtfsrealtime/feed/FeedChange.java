@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A single entity added, replaced or removed by an update to a
+ * {@link LazyFeedSink}.
+ *
+ * The encoded forms are computed on first use and shared by every stream
+ * subscriber the change is sent to.
+ *
+ * @author kurt
+ */
+class FeedChange {
+
+  private final String _id;
+  private final FeedEntity _previous;
+  private final FeedEntity _current;
+
+  private volatile Set<String> _currentRouteIds;
+  private volatile byte[] _updateBytes;
+  private volatile byte[] _deletionBytes;
+
+  FeedChange(String id, FeedEntity previous, FeedEntity current) {
+    _id = id;
+    _previous = previous;
+    _current = current;
+  }
+
+  String getId() {
+    return _id;
+  }
+
+  /**
+   * @return the entity as it now stands, or null if it has been removed.
+   */
+  FeedEntity getCurrent() {
+    return _current;
+  }
+
+  /**
+   * @return the routes the entity concerned before or after the change, so
+   *         that subscribers to a route also learn of entities leaving it.
+   */
+  Set<String> getRouteIds() {
+    Set<String> routeIds = FeedIndex.routeIds(_previous);
+    if (_current != null) {
+      routeIds.addAll(FeedIndex.routeIds(_current));
+    }
+    return routeIds;
+  }
+
+  /**
+   * @return true if the current entity concerns any of the given routes.
+   */
+  boolean concernsAnyRoute(Set<String> routeIds) {
+    Set<String> currentRouteIds = _currentRouteIds;
+    if (currentRouteIds == null) {
+      currentRouteIds = FeedIndex.routeIds(_current);
+      _currentRouteIds = currentRouteIds;
+    }
+    for (String routeId : currentRouteIds) {
+      if (routeIds.contains(routeId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the current entity, encoded as a field of a {@code FeedMessage}.
+   */
+  byte[] getUpdateBytes() throws IOException {
+    byte[] bytes = _updateBytes;
+    if (bytes == null) {
+      bytes = FeedAssembler.encode(FeedMessage.ENTITY_FIELD_NUMBER, _current);
+      _updateBytes = bytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return a deletion of the entity, encoded as a field of a
+   *         {@code FeedMessage}.
+   */
+  byte[] getDeletionBytes() throws IOException {
+    byte[] bytes = _deletionBytes;
+    if (bytes == null) {
+      FeedEntity.Builder deletion = FeedEntity.newBuilder();
+      deletion.setId(_id);
+      deletion.setIsDeleted(true);
+      bytes = FeedAssembler.encode(FeedMessage.ENTITY_FIELD_NUMBER,
+          deletion.build());
+      _deletionBytes = bytes;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import java.util.List;
+
+/**
+ * Receives the entities changed by each update to a {@link LazyFeedSink}.
+ *
+ * Listeners are called by the writer while it holds the sink's write lock,
+ * after the new snapshot has been published, and so must not block.
+ *
+ * @author kurt
+ */
+interface FeedChangeListener {
+
+  void handleChanges(FeedSnapshot snapshot, List<FeedChange> changes);
+
+  /**
+   * Called instead of {@link #handleChanges} when the sink's contents have
+   * been replaced wholesale.
+   */
+  void handleReset(FeedSnapshot snapshot);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serializes each version of a {@link LazyFeedSink}'s feed at most once, no
+ * matter how many clients ask for it.
+ *
+ * Encoding is deferred until the first request for a new version; versions
+ * which are superseded before anybody asks for them are never encoded at all.
+ * Within a version, only the entities which have changed since the last
+ * encoded version are serialized again; see {@link FeedAssembler}.
+ *
+ * @author kurt
+ */
+public class FeedEncoder {
+
+  /**
+   * Distinguishes entity tags issued by this process from those issued before
+   * a restart, when the version counter starts over.
+   */
+  private static final String EPOCH = Long.toHexString(System.currentTimeMillis());
+
+  private final LazyFeedSink _sink;
+
+  private final Object _encodeLock = new Object();
+
+  /**
+   * Guarded by {@link #_encodeLock}.
+   */
+  private final FeedAssembler _assembler = new FeedAssembler();
+
+  private volatile EncodedFeed _encoded;
+
+  public FeedEncoder(LazyFeedSink sink) {
+    _sink = sink;
+  }
+
+  /**
+   * @return the current version of the feed, encoding it first if no request
+   *         has asked for it yet.
+   */
+  public EncodedFeed getEncodedFeed() throws IOException {
+    FeedSnapshot snapshot = _sink.getSnapshot();
+    EncodedFeed encoded = _encoded;
+
+    if (encoded != null && encoded.getVersion() == snapshot.getVersion()) {
+      return encoded;
+    }
+
+    synchronized (_encodeLock) {
+      snapshot = _sink.getSnapshot();
+      encoded = _encoded;
+
+      if (encoded == null || encoded.getVersion() != snapshot.getVersion()) {
+        encoded = encode(snapshot);
+        _encoded = encoded;
+      }
+
+      return encoded;
+    }
+  }
+
+  private EncodedFeed encode(FeedSnapshot snapshot) throws IOException {
+    byte[] bytes = _assembler.assemble(snapshot.getHeader(),
+        snapshot.getEntities());
+    return new EncodedFeed(snapshot.getVersion(), etag(snapshot.getVersion(),
+        false), etag(snapshot.getVersion(), true), bytes, gzip(bytes));
+  }
+
+  static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream(
+        bytes.length / 4 + 64);
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(bytes);
+    }
+    return gzipped.toByteArray();
+  }
+
+  /**
+   * @return the entity tag for the given version of the feed. The gzipped
+   *         representation has a tag of its own, as strong validators must
+   *         differ between content codings.
+   */
+  static String etag(long version, boolean gzip) {
+    return "\"" + EPOCH + "-" + Long.toHexString(version)
+        + (gzip ? "-gz" : "") + "\"";
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Writes feeds to files as they change; see {@link FeedFileWriter}.
+ *
+ * All files are written from a single thread, so that one feed's writes never
+ * interleave with another's on a shared disk.
+ *
+ * @author kurt
+ */
+@Singleton
+public class FeedFileOutput {
+
+  private final List<FeedFileWriter> _writers = new ArrayList<>();
+
+  private ExecutorService _executor;
+
+  private boolean _gzip = false;
+  private boolean _json = false;
+  private int _retain = 0;
+
+  @com.google.inject.Inject(optional = true)
+  public void setGzip(@Named("file.gzip")
+  boolean gzip) {
+    _gzip = gzip;
+  }
+
+  @com.google.inject.Inject(optional = true)
+  public void setJson(@Named("file.json")
+  boolean json) {
+    _json = json;
+  }
+
+  @com.google.inject.Inject(optional = true)
+  public void setRetain(@Named("file.retain")
+  int retain) {
+    _retain = retain;
+  }
+
+  /**
+   * Writes the given sink's feed to the given file now, and again each time it
+   * changes.
+   */
+  public synchronized void register(File path, LazyFeedSink sink) {
+    if (_executor == null) {
+      _executor = Executors.newSingleThreadExecutor();
+    }
+
+    FeedFileWriter writer = new FeedFileWriter(sink, path.toPath(), _executor,
+        _gzip, _json, _retain);
+    _writers.add(writer);
+    writer.start();
+  }
+
+  /**
+   * Stops listening for changes, but lets any write already scheduled finish,
+   * so that no file is left behind half-rotated.
+   */
+  @PreDestroy
+  public synchronized void stop() {
+    for (FeedFileWriter writer : _writers) {
+      writer.stop();
+    }
+    _writers.clear();
+
+    if (_executor != null) {
+      _executor.shutdown();
+    }
+  }
+}
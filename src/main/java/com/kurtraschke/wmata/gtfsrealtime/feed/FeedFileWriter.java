@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes a {@link LazyFeedSink}'s feed to a file each time it changes.
+ *
+ * Each file is written in full to a temporary file in the same directory and
+ * then renamed over the old one, so readers always see either the previous
+ * version or the new one, never a partly written file. Side files, a
+ * {@code .gz} and a {@code .json} of the same version, are installed before
+ * the feed itself, so they are never older than it once it has been seen to
+ * change.
+ *
+ * Previous versions may be kept as {@code feed.pb.1} (the newest) through
+ * {@code feed.pb.N}, and likewise for the side files. The outgoing version is
+ * hard linked rather than copied where the filesystem allows.
+ *
+ * Writes run on the given executor. Updates arriving while a write is waiting
+ * to run are folded into it, and a write finding its version already on disk
+ * does nothing, so a slow disk costs intermediate versions, not a backlog.
+ *
+ * @author kurt
+ */
+class FeedFileWriter implements FeedChangeListener, Runnable {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedFileWriter.class);
+
+  private final LazyFeedSink _sink;
+  private final Path _path;
+  private final Executor _executor;
+  private final boolean _gzip;
+  private final boolean _json;
+  private final int _retain;
+
+  private final AtomicBoolean _scheduled = new AtomicBoolean();
+  private final Random _random = new Random();
+
+  /**
+   * Touched only by the write task.
+   */
+  private long _writtenVersion = -1;
+
+  FeedFileWriter(LazyFeedSink sink, Path path, Executor executor,
+      boolean gzip, boolean json, int retain) {
+    _sink = sink;
+    _path = path;
+    _executor = executor;
+    _gzip = gzip;
+    _json = json;
+    _retain = retain;
+  }
+
+  /**
+   * Schedules a write of the current version, and of each later version.
+   */
+  void start() {
+    _sink.addChangeListener(this);
+    schedule();
+  }
+
+  void stop() {
+    _sink.removeChangeListener(this);
+  }
+
+  @Override
+  public void handleChanges(FeedSnapshot snapshot, List<FeedChange> changes) {
+    schedule();
+  }
+
+  @Override
+  public void handleReset(FeedSnapshot snapshot) {
+    schedule();
+  }
+
+  private void schedule() {
+    if (_scheduled.compareAndSet(false, true)) {
+      try {
+        _executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        // shutting down
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    _scheduled.set(false);
+
+    try {
+      EncodedFeed feed = _sink.getEncodedFeed();
+
+      /*
+       * Version 0 is the empty sink before the first update; writing it would
+       * only replace a good file from a previous run with an empty one.
+       */
+      if (feed.getVersion() == 0 || feed.getVersion() == _writtenVersion) {
+        return;
+      }
+
+      if (_gzip) {
+        install(sibling(".gz"), feed.getGzipBytes());
+      }
+
+      if (_json) {
+        install(sibling(".json"),
+            FeedJson.toJson(FeedMessage.parseFrom(feed.getBytes())));
+      }
+
+      install(_path, feed.getBytes());
+      _writtenVersion = feed.getVersion();
+    } catch (IOException | RuntimeException e) {
+      _log.error("Could not write feed to " + _path, e);
+    }
+  }
+
+  private Path sibling(String suffix) {
+    return _path.resolveSibling(_path.getFileName() + suffix);
+  }
+
+  private void install(Path target, byte[] bytes) throws IOException {
+    /*
+     * Not Files.createTempFile, which would make the file readable by its
+     * owner only, whatever the umask.
+     */
+    Path temp = target.resolveSibling("." + target.getFileName() + "."
+        + Long.toHexString(_random.nextLong()) + ".tmp");
+
+    try {
+      Files.write(temp, bytes, StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE);
+
+      if (_retain > 0 && Files.exists(target)) {
+        retain(target);
+      }
+
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Shifts the retained versions of the given file along by one, dropping the
+   * oldest, and keeps the current version as the newest.
+   */
+  private void retain(Path target) throws IOException {
+    for (int i = _retain - 1; i >= 1; i--) {
+      Path from = retained(target, i);
+      if (Files.exists(from)) {
+        Files.move(from, retained(target, i + 1),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    Path newest = retained(target, 1);
+    Files.deleteIfExists(newest);
+
+    try {
+      Files.createLink(newest, target);
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      Files.copy(target, newest);
+    }
+  }
+
+  private static Path retained(Path target, int generation) {
+    return target.resolveSibling(target.getFileName() + "." + generation);
+  }
+}
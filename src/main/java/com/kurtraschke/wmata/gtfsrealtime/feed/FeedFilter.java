@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects the entities of a feed which concern any of a set of routes, any of
+ * a set of trips, or vehicles within a bounding box. Where more than one kind
+ * of criterion is given, an entity must satisfy each of them.
+ *
+ * @author kurt
+ */
+public class FeedFilter {
+
+  private final Set<String> _routeIds = new HashSet<>();
+  private final Set<String> _tripIds = new HashSet<>();
+  private double[] _bbox;
+
+  public void addRouteId(String routeId) {
+    _routeIds.add(routeId);
+  }
+
+  public void addTripId(String tripId) {
+    _tripIds.add(tripId);
+  }
+
+  /**
+   * Restricts the feed to vehicles whose position lies within the given box,
+   * inclusive of its edges.
+   */
+  public void setBoundingBox(double minLat, double minLon, double maxLat,
+      double maxLon) {
+    if (!isLatitude(minLat) || !isLatitude(maxLat) || !isLongitude(minLon)
+        || !isLongitude(maxLon)) {
+      throw new IllegalArgumentException(
+          "bounding box latitudes must be within [-90, 90] and longitudes within [-180, 180]");
+    }
+    if (minLat > maxLat || minLon > maxLon) {
+      throw new IllegalArgumentException("bounding box minimum exceeds maximum");
+    }
+    _bbox = new double[] {minLat, minLon, maxLat, maxLon};
+  }
+
+  /*
+   * Written so that NaN, which compares false with everything, is rejected.
+   */
+  private static boolean isLatitude(double degrees) {
+    return degrees >= -90 && degrees <= 90;
+  }
+
+  private static boolean isLongitude(double degrees) {
+    return degrees >= -180 && degrees <= 180;
+  }
+
+  public Set<String> getRouteIds() {
+    return Collections.unmodifiableSet(_routeIds);
+  }
+
+  public Set<String> getTripIds() {
+    return Collections.unmodifiableSet(_tripIds);
+  }
+
+  public boolean hasBoundingBox() {
+    return _bbox != null;
+  }
+
+  public double getMinLat() {
+    return _bbox[0];
+  }
+
+  public double getMinLon() {
+    return _bbox[1];
+  }
+
+  public double getMaxLat() {
+    return _bbox[2];
+  }
+
+  public double getMaxLon() {
+    return _bbox[3];
+  }
+
+  public boolean containsPosition(double lat, double lon) {
+    return lat >= _bbox[0] && lon >= _bbox[1] && lat <= _bbox[2]
+        && lon <= _bbox[3];
+  }
+
+  /**
+   * @return true if the filter has no criteria, and so selects the whole feed.
+   */
+  public boolean isEmpty() {
+    return _routeIds.isEmpty() && _tripIds.isEmpty() && _bbox == null;
+  }
+}
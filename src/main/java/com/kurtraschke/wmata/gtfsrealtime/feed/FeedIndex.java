@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.google.transit.realtime.GtfsRealtime.EntitySelector;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexes the entities of a {@link FeedSnapshot} by route, by trip, and by
+ * position on a uniform latitude/longitude grid, so that filtered requests
+ * can be answered without scanning the whole feed.
+ *
+ * Like the snapshot itself, an index is immutable; {@link #update} returns a
+ * new index sharing structure with the old one, and is called by the sink as
+ * each entity is published.
+ *
+ * @author kurt
+ */
+class FeedIndex {
+
+  /**
+   * Grid cell size, in degrees; about 5.5 km north to south. A viewport over
+   * the whole WMATA service area covers fewer than a thousand cells.
+   */
+  static final double CELL_DEGREES = 0.05;
+
+  static final FeedIndex EMPTY = new FeedIndex(
+      PersistentMap.<String, PersistentMap<String, FeedEntity>> empty(),
+      PersistentMap.<String, PersistentMap<String, FeedEntity>> empty(),
+      PersistentMap.<Long, PersistentMap<String, FeedEntity>> empty());
+
+  private final PersistentMap<String, PersistentMap<String, FeedEntity>> _byRoute;
+  private final PersistentMap<String, PersistentMap<String, FeedEntity>> _byTrip;
+  private final PersistentMap<Long, PersistentMap<String, FeedEntity>> _byCell;
+
+  private FeedIndex(
+      PersistentMap<String, PersistentMap<String, FeedEntity>> byRoute,
+      PersistentMap<String, PersistentMap<String, FeedEntity>> byTrip,
+      PersistentMap<Long, PersistentMap<String, FeedEntity>> byCell) {
+    _byRoute = byRoute;
+    _byTrip = byTrip;
+    _byCell = byCell;
+  }
+
+  /**
+   * @param previous the entity being replaced or removed, if any
+   * @param current the entity being added, or null if it is being removed
+   * @return an index reflecting the change
+   */
+  FeedIndex update(String id, FeedEntity previous, FeedEntity current) {
+    return new FeedIndex(reindex(_byRoute, routeIds(previous),
+        routeIds(current), id, current), reindex(_byTrip, tripIds(previous),
+        tripIds(current), id, current), reindex(_byCell, cells(previous),
+        cells(current), id, current));
+  }
+
+  /**
+   * @return the entities selected by the filter, which must not be empty.
+   */
+  List<FeedEntity> select(FeedFilter filter) {
+    Map<String, FeedEntity> selected = null;
+
+    if (!filter.getRouteIds().isEmpty()) {
+      selected = retain(selected, union(_byRoute, filter.getRouteIds()));
+    }
+
+    if (!filter.getTripIds().isEmpty()) {
+      selected = retain(selected, union(_byTrip, filter.getTripIds()));
+    }
+
+    if (filter.hasBoundingBox()) {
+      selected = retain(selected, withinBoundingBox(filter));
+    }
+
+    return new ArrayList<>(selected.values());
+  }
+
+  private Map<String, FeedEntity> withinBoundingBox(FeedFilter filter) {
+    Map<String, FeedEntity> result = new LinkedHashMap<>();
+
+    /*
+     * FeedFilter rejects boxes outside valid coordinates, but clamp anyway, so
+     * that the loops below are always over a bounded number of cells.
+     */
+    long minRow = cell(clamp(filter.getMinLat(), 90));
+    long maxRow = cell(clamp(filter.getMaxLat(), 90));
+    long minColumn = cell(clamp(filter.getMinLon(), 180));
+    long maxColumn = cell(clamp(filter.getMaxLon(), 180));
+
+    double cellsInBox = (double) (maxRow - minRow + 1)
+        * (double) (maxColumn - minColumn + 1);
+
+    if (cellsInBox > _byCell.size()) {
+      /*
+       * The box covers more cells than are occupied; visit the occupied cells
+       * instead of probing every cell in the box.
+       */
+      for (Map.Entry<Long, PersistentMap<String, FeedEntity>> cell : _byCell) {
+        addWithinBoundingBox(cell.getValue(), filter, result);
+      }
+    } else {
+      for (long row = minRow; row <= maxRow; row++) {
+        for (long column = minColumn; column <= maxColumn; column++) {
+          PersistentMap<String, FeedEntity> cell = _byCell.get(cellKey(row,
+              column));
+          if (cell != null) {
+            addWithinBoundingBox(cell, filter, result);
+          }
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private static void addWithinBoundingBox(
+      PersistentMap<String, FeedEntity> cell, FeedFilter filter,
+      Map<String, FeedEntity> result) {
+    for (Map.Entry<String, FeedEntity> entry : cell) {
+      Position position = entry.getValue().getVehicle().getPosition();
+      if (filter.containsPosition(position.getLatitude(),
+          position.getLongitude())) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private static <K> Map<String, FeedEntity> union(
+      PersistentMap<K, PersistentMap<String, FeedEntity>> index, Set<K> keys) {
+    Map<String, FeedEntity> result = new LinkedHashMap<>();
+
+    for (K key : keys) {
+      PersistentMap<String, FeedEntity> entities = index.get(key);
+      if (entities != null) {
+        for (Map.Entry<String, FeedEntity> entry : entities) {
+          result.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private static Map<String, FeedEntity> retain(
+      Map<String, FeedEntity> selected, Map<String, FeedEntity> matching) {
+    if (selected == null) {
+      return matching;
+    }
+    selected.keySet().retainAll(matching.keySet());
+    return selected;
+  }
+
+  private static <K> PersistentMap<K, PersistentMap<String, FeedEntity>> reindex(
+      PersistentMap<K, PersistentMap<String, FeedEntity>> index,
+      Set<K> previousKeys, Set<K> currentKeys, String id, FeedEntity current) {
+    for (K key : previousKeys) {
+      if (!currentKeys.contains(key)) {
+        PersistentMap<String, FeedEntity> entities = index.get(key).minus(id);
+        index = entities.isEmpty() ? index.minus(key) : index.plus(key,
+            entities);
+      }
+    }
+
+    for (K key : currentKeys) {
+      PersistentMap<String, FeedEntity> entities = index.get(key);
+      if (entities == null) {
+        entities = PersistentMap.empty();
+      }
+      index = index.plus(key, entities.plus(id, current));
+    }
+
+    return index;
+  }
+
+  /**
+   * @return a new, modifiable set of the routes the entity concerns.
+   */
+  static Set<String> routeIds(FeedEntity entity) {
+    if (entity == null) {
+      return new HashSet<>(2);
+    }
+
+    Set<String> routeIds = new HashSet<>(2);
+
+    if (entity.hasTripUpdate()) {
+      addRouteId(entity.getTripUpdate().getTrip(), routeIds);
+    }
+    if (entity.hasVehicle()) {
+      addRouteId(entity.getVehicle().getTrip(), routeIds);
+    }
+    if (entity.hasAlert()) {
+      for (EntitySelector selector : entity.getAlert().getInformedEntityList()) {
+        if (selector.hasRouteId()) {
+          routeIds.add(selector.getRouteId());
+        }
+        addRouteId(selector.getTrip(), routeIds);
+      }
+    }
+
+    return routeIds;
+  }
+
+  private static void addRouteId(TripDescriptor trip, Set<String> routeIds) {
+    if (trip.hasRouteId()) {
+      routeIds.add(trip.getRouteId());
+    }
+  }
+
+  private static Set<String> tripIds(FeedEntity entity) {
+    if (entity == null) {
+      return Collections.emptySet();
+    }
+
+    Set<String> tripIds = new HashSet<>(2);
+
+    if (entity.hasTripUpdate()) {
+      addTripId(entity.getTripUpdate().getTrip(), tripIds);
+    }
+    if (entity.hasVehicle()) {
+      addTripId(entity.getVehicle().getTrip(), tripIds);
+    }
+    if (entity.hasAlert()) {
+      for (EntitySelector selector : entity.getAlert().getInformedEntityList()) {
+        addTripId(selector.getTrip(), tripIds);
+      }
+    }
+
+    return tripIds;
+  }
+
+  private static void addTripId(TripDescriptor trip, Set<String> tripIds) {
+    if (trip.hasTripId()) {
+      tripIds.add(trip.getTripId());
+    }
+  }
+
+  private static Set<Long> cells(FeedEntity entity) {
+    if (entity == null || !entity.hasVehicle()
+        || !entity.getVehicle().hasPosition()) {
+      return Collections.emptySet();
+    }
+
+    Position position = entity.getVehicle().getPosition();
+    return Collections.singleton(cellKey(cell(position.getLatitude()),
+        cell(position.getLongitude())));
+  }
+
+  private static double clamp(double degrees, double limit) {
+    return Math.max(-limit, Math.min(limit, degrees));
+  }
+
+  private static long cell(double degrees) {
+    return (long) Math.floor(degrees / CELL_DEGREES);
+  }
+
+  private static Long cellKey(long row, long column) {
+    return (row << 32) | (column & 0xffffffffL);
+  }
+}
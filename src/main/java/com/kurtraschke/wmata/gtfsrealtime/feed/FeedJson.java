@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.primitives.UnsignedInts;
+import com.google.common.primitives.UnsignedLong;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes protocol buffer messages as JSON, for consumers which would rather
+ * not deal with protocol buffers.
+ *
+ * Fields are named as in the {@code .proto} file, enums are written by name,
+ * and bytes fields as base64; unset optional fields are left out. Values
+ * follow the proto3 JSON mapping with original field names, which most JSON
+ * tooling for GTFS-realtime expects: 64-bit integers, such as timestamps, are
+ * written as strings, since JavaScript cannot hold them exactly; unsigned
+ * integers are never written as negative; and non-finite floats are written
+ * as the strings {@code "NaN"}, {@code "Infinity"} and {@code "-Infinity"}.
+ *
+ * @author kurt
+ */
+class FeedJson {
+
+  private static final JsonFactory _factory = new JsonFactory();
+
+  private FeedJson() {
+  }
+
+  static byte[] toJson(Message message) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(
+        message.getSerializedSize() * 3);
+
+    try (JsonGenerator generator = _factory.createGenerator(out,
+        JsonEncoding.UTF8)) {
+      writeMessage(generator, message);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static void writeMessage(JsonGenerator generator, Message message)
+      throws IOException {
+    generator.writeStartObject();
+
+    for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+      FieldDescriptor field = entry.getKey();
+      generator.writeFieldName(field.isExtension() ? "["
+          + field.getFullName() + "]" : field.getName());
+
+      if (field.isRepeated()) {
+        generator.writeStartArray();
+        for (Object value : (List<?>) entry.getValue()) {
+          writeValue(generator, field, value);
+        }
+        generator.writeEndArray();
+      } else {
+        writeValue(generator, field, entry.getValue());
+      }
+    }
+
+    generator.writeEndObject();
+  }
+
+  private static void writeValue(JsonGenerator generator,
+      FieldDescriptor field, Object value) throws IOException {
+    switch (field.getJavaType()) {
+      case INT:
+        if (isUnsigned(field)) {
+          generator.writeNumber(UnsignedInts.toLong((Integer) value));
+        } else {
+          generator.writeNumber((Integer) value);
+        }
+        break;
+      case LONG:
+        generator.writeString(isUnsigned(field)
+            ? UnsignedLong.fromLongBits((Long) value).toString()
+            : value.toString());
+        break;
+      case FLOAT:
+        float f = (Float) value;
+        if (Float.isNaN(f) || Float.isInfinite(f)) {
+          writeNonFinite(generator, f);
+        } else {
+          generator.writeNumber(f);
+        }
+        break;
+      case DOUBLE:
+        double d = (Double) value;
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+          writeNonFinite(generator, d);
+        } else {
+          generator.writeNumber(d);
+        }
+        break;
+      case BOOLEAN:
+        generator.writeBoolean((Boolean) value);
+        break;
+      case STRING:
+        generator.writeString((String) value);
+        break;
+      case BYTE_STRING:
+        generator.writeBinary(((ByteString) value).toByteArray());
+        break;
+      case ENUM:
+        generator.writeString(((EnumValueDescriptor) value).getName());
+        break;
+      case MESSAGE:
+        writeMessage(generator, (Message) value);
+        break;
+    }
+  }
+
+  private static boolean isUnsigned(FieldDescriptor field) {
+    switch (field.getType()) {
+      case UINT32:
+      case FIXED32:
+      case UINT64:
+      case FIXED64:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * JSON has no literals for these, so they are written as strings.
+   */
+  private static void writeNonFinite(JsonGenerator generator, double value)
+      throws IOException {
+    if (Double.isNaN(value)) {
+      generator.writeString("NaN");
+    } else {
+      generator.writeString((value > 0) ? "Infinity" : "-Infinity");
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Key;
+import com.google.inject.Scopes;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * Binds a {@link LazyFeedSink} as the sink and exporter for each of the three
+ * feeds. Since {@code GtfsRealtimeExporterModule} binds its own sinks to the
+ * same keys, this module must be used as an override of that one.
+ *
+ * @author kurt
+ */
+public class FeedModule extends AbstractModule {
+
+  @Override
+  protected void configure() {
+    bindFeed(TripUpdates.class);
+    bindFeed(VehiclePositions.class);
+    bindFeed(Alerts.class);
+  }
+
+  private void bindFeed(Class<? extends Annotation> feed) {
+    Key<LazyFeedSink> key = Key.get(LazyFeedSink.class, feed);
+
+    bind(key).to(LazyFeedSink.class).in(Scopes.SINGLETON);
+    bind(GtfsRealtimeSink.class).annotatedWith(feed).to(key);
+    bind(GtfsRealtimeExporter.class).annotatedWith(feed).to(key);
+  }
+
+  /**
+   * Implement hashCode() and equals() such that two instances of the module
+   * will be equal.
+   */
+  @Override
+  public int hashCode() {
+    return this.getClass().hashCode();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null) {
+      return false;
+    }
+    return this.getClass().equals(o.getClass());
+  }
+}
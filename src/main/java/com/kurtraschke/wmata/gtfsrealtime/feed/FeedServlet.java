@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import org.onebusaway.guice.jetty_exporter.ServletSource;
+
+import com.google.protobuf.TextFormat;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the current contents of a {@link LazyFeedSink}, gzipped for clients
+ * which accept it, and answers conditional requests for the current version
+ * with 304 Not Modified.
+ *
+ * The whole feed is served from the bytes prepared by the sink's
+ * {@link FeedEncoder}.
+ * Requests may instead ask for only part of the feed, with any combination of
+ * these parameters:
+ *
+ * <ul>
+ * <li>{@code route}: entities concerning any of the given route IDs;</li>
+ * <li>{@code trip}: entities concerning any of the given trip IDs;</li>
+ * <li>{@code bbox}: vehicles within {@code minLon,minLat,maxLon,maxLat}.</li>
+ * </ul>
+ *
+ * {@code route} and {@code trip} take comma-separated lists, and may be
+ * repeated. Partial feeds are answered from the snapshot's {@link FeedIndex},
+ * and encoded per request; the cost is proportional to the entities returned.
+ *
+ * Like {@code GtfsRealtimeServlet}, a {@code debug} parameter returns the
+ * feed in protobuf text format instead.
+ *
+ * @author kurt
+ */
+public class FeedServlet extends HttpServlet implements ServletSource {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String CONTENT_TYPE = "application/x-google-protobuf";
+
+  private transient LazyFeedSink _sink;
+  private URL _url;
+
+  public void setSource(LazyFeedSink sink) {
+    _sink = sink;
+  }
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  @Override
+  public URL getUrl() {
+    return _url;
+  }
+
+  @Override
+  public Servlet getServlet() {
+    return this;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    FeedFilter filter;
+
+    try {
+      filter = parseFilter(req);
+    } catch (IllegalArgumentException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    if (filter.isEmpty()) {
+      serveWholeFeed(req, resp);
+    } else {
+      serveFilteredFeed(req, resp, filter);
+    }
+  }
+
+  private void serveWholeFeed(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    EncodedFeed feed = _sink.getEncodedFeed();
+
+    if (req.getParameter("debug") != null) {
+      writeText(resp, FeedMessage.parseFrom(feed.getBytes()));
+      return;
+    }
+
+    boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
+
+    if (checkNotModified(req, resp, feed.getEtag(), feed.getGzipEtag(), gzip)) {
+      return;
+    }
+
+    writeBody(resp, gzip ? feed.getGzipBytes() : feed.getBytes(), gzip);
+  }
+
+  private void serveFilteredFeed(HttpServletRequest req,
+      HttpServletResponse resp, FeedFilter filter) throws IOException {
+    FeedSnapshot snapshot = _sink.getSnapshot();
+    boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
+
+    if (req.getParameter("debug") == null
+        && checkNotModified(req, resp, FeedEncoder.etag(snapshot.getVersion(),
+            false), FeedEncoder.etag(snapshot.getVersion(), true), gzip)) {
+      return;
+    }
+
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.setHeader(snapshot.getHeader());
+    feed.addAllEntity(snapshot.getEntities(filter));
+
+    if (req.getParameter("debug") != null) {
+      writeText(resp, feed.build());
+      return;
+    }
+
+    byte[] bytes = feed.build().toByteArray();
+    writeBody(resp, gzip ? FeedEncoder.gzip(bytes) : bytes, gzip);
+  }
+
+  /**
+   * Sets the entity tag of the chosen representation on the response, and
+   * answers 304 Not Modified if the client already has this version in either
+   * coding.
+   *
+   * @return true if the response is complete.
+   */
+  private static boolean checkNotModified(HttpServletRequest req,
+      HttpServletResponse resp, String etag, String gzipEtag, boolean gzip) {
+    resp.setHeader("ETag", gzip ? gzipEtag : etag);
+    resp.setHeader("Vary", "Accept-Encoding");
+
+    if (matchesEtag(req.getHeader("If-None-Match"), etag, gzipEtag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    return false;
+  }
+
+  private static void writeBody(HttpServletResponse resp, byte[] body,
+      boolean gzip) throws IOException {
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+    }
+    resp.setContentType(CONTENT_TYPE);
+    resp.setContentLength(body.length);
+
+    try (OutputStream out = resp.getOutputStream()) {
+      out.write(body);
+    }
+  }
+
+  private static void writeText(HttpServletResponse resp, FeedMessage feed)
+      throws IOException {
+    resp.setContentType("text/plain; charset=utf-8");
+    try (Writer w = resp.getWriter()) {
+      TextFormat.print(feed, w);
+    }
+  }
+
+  static FeedFilter parseFilter(HttpServletRequest req) {
+    FeedFilter filter = new FeedFilter();
+
+    for (String routeId : splitParameter(req, "route")) {
+      filter.addRouteId(routeId);
+    }
+
+    for (String tripId : splitParameter(req, "trip")) {
+      filter.addTripId(tripId);
+    }
+
+    String bbox = req.getParameter("bbox");
+
+    if (bbox != null) {
+      String[] parts = bbox.split(",");
+      if (parts.length != 4) {
+        throw new IllegalArgumentException(
+            "bbox must be given as minLon,minLat,maxLon,maxLat");
+      }
+      try {
+        filter.setBoundingBox(Double.parseDouble(parts[1].trim()),
+            Double.parseDouble(parts[0].trim()),
+            Double.parseDouble(parts[3].trim()),
+            Double.parseDouble(parts[2].trim()));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("bbox coordinates must be numbers");
+      }
+    }
+
+    return filter;
+  }
+
+  private static List<String> splitParameter(HttpServletRequest req,
+      String name) {
+    List<String> values = new ArrayList<>();
+    String[] parameters = req.getParameterValues(name);
+
+    if (parameters != null) {
+      for (String parameter : parameters) {
+        for (String value : parameter.split(",")) {
+          if (!value.trim().isEmpty()) {
+            values.add(value.trim());
+          }
+        }
+      }
+    }
+
+    return values;
+  }
+
+  static boolean matchesEtag(String ifNoneMatch, String... etags) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*")) {
+        return true;
+      }
+      for (String etag : etags) {
+        if (candidate.equals(etag)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              return Double.parseDouble(param.substring(2)) > 0;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
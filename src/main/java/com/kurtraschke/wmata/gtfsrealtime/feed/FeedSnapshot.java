@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The contents of a {@link LazyFeedSink} as of one update. Snapshots are
+ * immutable, and remain valid however many updates follow.
+ *
+ * @author kurt
+ */
+public class FeedSnapshot {
+
+  private final long _version;
+  private final long _timestamp;
+  private final PersistentMap<String, FeedEntity> _entities;
+  private final FeedIndex _index;
+
+  FeedSnapshot(long version, long timestamp,
+      PersistentMap<String, FeedEntity> entities, FeedIndex index) {
+    _version = version;
+    _timestamp = timestamp;
+    _entities = entities;
+    _index = index;
+  }
+
+  /**
+   * @return a number which increases with every update to the sink.
+   */
+  public long getVersion() {
+    return _version;
+  }
+
+  /**
+   * @return the time of the update, in seconds since the epoch, or zero if
+   *         the sink has never been updated.
+   */
+  public long getTimestamp() {
+    return _timestamp;
+  }
+
+  public FeedHeader getHeader() {
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    header.setGtfsRealtimeVersion("1.0");
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setTimestamp(_timestamp);
+    return header.build();
+  }
+
+  public int getEntityCount() {
+    return _entities.size();
+  }
+
+  public FeedEntity getEntity(String id) {
+    return _entities.get(id);
+  }
+
+  public Iterable<FeedEntity> getEntities() {
+    return _entities.values();
+  }
+
+  /**
+   * @return the entities selected by the filter, or all entities if the filter
+   *         is empty.
+   */
+  public List<FeedEntity> getEntities(FeedFilter filter) {
+    if (filter.isEmpty()) {
+      List<FeedEntity> entities = new ArrayList<>(_entities.size());
+      for (FeedEntity entity : _entities.values()) {
+        entities.add(entity);
+      }
+      return entities;
+    }
+    return _index.select(filter);
+  }
+
+  PersistentMap<String, FeedEntity> getEntityMap() {
+    return _entities;
+  }
+
+  FeedIndex getIndex() {
+    return _index;
+  }
+}
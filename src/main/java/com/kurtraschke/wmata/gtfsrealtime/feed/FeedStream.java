@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.google.common.io.BaseEncoding;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Turns the changes made to a {@link LazyFeedSink} into Server-Sent Events for
+ * the connections subscribed to it.
+ *
+ * Each event carries a base64-encoded {@code FeedMessage}: a
+ * {@code FULL_DATASET} message in a {@code snapshot} event when a client
+ * connects or must resynchronize, and a {@code DIFFERENTIAL} message in a
+ * {@code diff} event for each update to the sink after that. The event ID is
+ * the sink version the message brings the client up to.
+ *
+ * Connections may subscribe to a set of routes; they are then sent only
+ * changes to entities concerning those routes, including the deletion of an
+ * entity which no longer does. Changes are dispatched through a route to
+ * subscriber map, so the cost of an update depends on the number of
+ * interested subscribers rather than the number connected.
+ *
+ * The sink hands changes over while holding its write lock, on the thread
+ * polling the API, so they are only captured there; encoding the events and
+ * queueing them for each subscriber happen on the given executor, which must
+ * run tasks one at a time so that events are queued in version order.
+ *
+ * @author kurt
+ */
+class FeedStream implements FeedChangeListener {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedStream.class);
+
+  private final LazyFeedSink _sink;
+  private final Executor _dispatcher;
+
+  private final Set<StreamConnection> _unfiltered = new CopyOnWriteArraySet<>();
+  private final ConcurrentMap<String, Set<StreamConnection>> _byRoute = new ConcurrentHashMap<>();
+
+  FeedStream(LazyFeedSink sink, Executor dispatcher) {
+    _sink = sink;
+    _dispatcher = dispatcher;
+    sink.addChangeListener(this);
+  }
+
+  void stop() {
+    _sink.removeChangeListener(this);
+  }
+
+  void subscribe(StreamConnection connection) {
+    if (connection.getRouteIds().isEmpty()) {
+      _unfiltered.add(connection);
+      return;
+    }
+
+    for (String routeId : connection.getRouteIds()) {
+      Set<StreamConnection> subscribers = _byRoute.get(routeId);
+      if (subscribers == null) {
+        subscribers = new CopyOnWriteArraySet<>();
+        Set<StreamConnection> existing = _byRoute.putIfAbsent(routeId,
+            subscribers);
+        if (existing != null) {
+          subscribers = existing;
+        }
+      }
+      subscribers.add(connection);
+    }
+  }
+
+  void unsubscribe(StreamConnection connection) {
+    _unfiltered.remove(connection);
+
+    for (String routeId : connection.getRouteIds()) {
+      Set<StreamConnection> subscribers = _byRoute.get(routeId);
+      if (subscribers != null) {
+        subscribers.remove(connection);
+      }
+    }
+  }
+
+  int getSubscriberCount() {
+    Set<StreamConnection> subscribers = new HashSet<>(_unfiltered);
+    for (Set<StreamConnection> forRoute : _byRoute.values()) {
+      subscribers.addAll(forRoute);
+    }
+    return subscribers.size();
+  }
+
+  @Override
+  public void handleChanges(final FeedSnapshot snapshot,
+      final List<FeedChange> changes) {
+    if (_unfiltered.isEmpty() && _byRoute.isEmpty()) {
+      return;
+    }
+
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        dispatchChanges(snapshot, changes);
+      }
+    });
+  }
+
+  @Override
+  public void handleReset(FeedSnapshot snapshot) {
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        requestResyncs();
+      }
+    });
+  }
+
+  private void dispatch(Runnable task) {
+    try {
+      _dispatcher.execute(task);
+    } catch (RejectedExecutionException e) {
+      // the server is shutting down; there is nobody left to send to
+    }
+  }
+
+  private void dispatchChanges(FeedSnapshot snapshot, List<FeedChange> changes) {
+    try {
+      if (!_unfiltered.isEmpty()) {
+        byte[] event = diffEvent(snapshot, changes, null);
+        for (StreamConnection connection : _unfiltered) {
+          connection.send(event, snapshot.getVersion());
+        }
+      }
+
+      if (!_byRoute.isEmpty()) {
+        Map<StreamConnection, List<FeedChange>> matched = new HashMap<>();
+
+        for (FeedChange change : changes) {
+          for (String routeId : change.getRouteIds()) {
+            Set<StreamConnection> subscribers = _byRoute.get(routeId);
+            if (subscribers == null) {
+              continue;
+            }
+            for (StreamConnection connection : subscribers) {
+              List<FeedChange> forConnection = matched.get(connection);
+              if (forConnection == null) {
+                forConnection = new ArrayList<>();
+                matched.put(connection, forConnection);
+              }
+              if (forConnection.isEmpty()
+                  || forConnection.get(forConnection.size() - 1) != change) {
+                forConnection.add(change);
+              }
+            }
+          }
+        }
+
+        /*
+         * Subscribers to the same routes are sent the same event, so encode
+         * it only once for each distinct set of routes.
+         */
+        Map<Set<String>, byte[]> events = new HashMap<>();
+
+        for (Map.Entry<StreamConnection, List<FeedChange>> entry : matched.entrySet()) {
+          Set<String> routeIds = entry.getKey().getRouteIds();
+          byte[] event = events.get(routeIds);
+          if (event == null) {
+            event = diffEvent(snapshot, entry.getValue(), routeIds);
+            events.put(routeIds, event);
+          }
+          entry.getKey().send(event, snapshot.getVersion());
+        }
+      }
+    } catch (IOException e) {
+      _log.warn("error encoding stream update", e);
+    }
+  }
+
+  private void requestResyncs() {
+    for (StreamConnection connection : _unfiltered) {
+      connection.requestResync();
+    }
+    for (Set<StreamConnection> subscribers : _byRoute.values()) {
+      for (StreamConnection connection : subscribers) {
+        connection.requestResync();
+      }
+    }
+  }
+
+  /**
+   * @return a snapshot event bringing the given connection up to date with
+   *         the current contents of the sink; diffs for the versions it
+   *         covers will no longer be sent to the connection.
+   */
+  byte[] snapshotEvent(StreamConnection connection) throws IOException {
+    if (connection.getRouteIds().isEmpty()) {
+      EncodedFeed feed = _sink.getEncodedFeed();
+      connection.markSynced(feed.getVersion());
+      return event("snapshot", feed.getVersion(), feed.getBytes());
+    }
+
+    FeedSnapshot snapshot = _sink.getSnapshot();
+    FeedFilter filter = new FeedFilter();
+    for (String routeId : connection.getRouteIds()) {
+      filter.addRouteId(routeId);
+    }
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write(FeedAssembler.encode(FeedMessage.HEADER_FIELD_NUMBER,
+        snapshot.getHeader()));
+    for (FeedEntity entity : snapshot.getEntities(filter)) {
+      message.write(FeedAssembler.encode(FeedMessage.ENTITY_FIELD_NUMBER,
+          entity));
+    }
+
+    connection.markSynced(snapshot.getVersion());
+    return event("snapshot", snapshot.getVersion(), message.toByteArray());
+  }
+
+  /**
+   * @param routeIds the routes the recipient subscribes to, or null for all
+   */
+  private static byte[] diffEvent(FeedSnapshot snapshot,
+      List<FeedChange> changes, Set<String> routeIds) throws IOException {
+    FeedHeader header = snapshot.getHeader().toBuilder().setIncrementality(
+        Incrementality.DIFFERENTIAL).build();
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write(FeedAssembler.encode(FeedMessage.HEADER_FIELD_NUMBER, header));
+
+    for (FeedChange change : changes) {
+      if (change.getCurrent() != null
+          && (routeIds == null || change.concernsAnyRoute(routeIds))) {
+        message.write(change.getUpdateBytes());
+      } else {
+        message.write(change.getDeletionBytes());
+      }
+    }
+
+    return event("diff", snapshot.getVersion(), message.toByteArray());
+  }
+
+  private static byte[] event(String type, long version, byte[] message) {
+    StringBuilder event = new StringBuilder(message.length * 4 / 3 + 64);
+    event.append("event: ").append(type).append('\n');
+    event.append("id: ").append(version).append('\n');
+    event.append("data: ").append(BaseEncoding.base64().encode(message)).append(
+        "\n\n");
+    return event.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeListener;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.inject.Inject;
+
+/**
+ * A {@link GtfsRealtimeSink} and {@link GtfsRealtimeExporter} which keeps its
+ * entities in a {@link PersistentMap}, and builds a {@link FeedMessage} only
+ * when somebody asks for one.
+ *
+ * Each update produces a new immutable {@link FeedSnapshot}, which costs a few
+ * small array copies per entity changed. The sink is dirty whenever its
+ * current snapshot is newer than the last materialized feed; a burst of
+ * updates between reads therefore costs no encoding at all, and the feed is
+ * built at most once per version.
+ *
+ * Each snapshot also carries a {@link FeedIndex} by route, trip and position,
+ * updated along with the entities, for answering filtered requests.
+ *
+ * Readers work from whichever snapshot was current when they arrived, so they
+ * never block writers or see a partly applied update. Writers are serialized
+ * among themselves only.
+ *
+ * @author kurt
+ */
+public class LazyFeedSink implements GtfsRealtimeSink, GtfsRealtimeExporter {
+
+  private final Object _writeLock = new Object();
+  private final Object _materializeLock = new Object();
+
+  private final List<GtfsRealtimeListener> _listeners = new CopyOnWriteArrayList<>();
+  private final List<FeedChangeListener> _changeListeners = new CopyOnWriteArrayList<>();
+
+  private final FeedEncoder _encoder = new FeedEncoder(this);
+
+  private Clock _clock;
+
+  private volatile FeedSnapshot _snapshot = new FeedSnapshot(0, 0,
+      PersistentMap.<String, FeedEntity> empty(), FeedIndex.EMPTY);
+  private volatile MaterializedFeed _materialized;
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Override
+  public void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    PersistentMap<String, FeedEntity> entities = PersistentMap.empty();
+    FeedIndex index = FeedIndex.EMPTY;
+
+    for (FeedEntity entity : update.getEntities()) {
+      index = index.update(entity.getId(), entities.get(entity.getId()), entity);
+      entities = entities.plus(entity.getId(), entity);
+    }
+
+    synchronized (_writeLock) {
+      publish(entities, index);
+
+      for (FeedChangeListener listener : _changeListeners) {
+        listener.handleReset(_snapshot);
+      }
+    }
+
+    notifyListeners();
+  }
+
+  @Override
+  public void handleIncrementalUpdate(GtfsRealtimeIncrementalUpdate update) {
+    synchronized (_writeLock) {
+      PersistentMap<String, FeedEntity> entities = _snapshot.getEntityMap();
+      FeedIndex index = _snapshot.getIndex();
+      List<FeedChange> changes = _changeListeners.isEmpty() ? null
+          : new ArrayList<FeedChange>();
+
+      for (FeedEntity entity : update.getUpdatedEntities()) {
+        FeedEntity previous = entities.get(entity.getId());
+        index = index.update(entity.getId(), previous, entity);
+        entities = entities.plus(entity.getId(), entity);
+        if (changes != null) {
+          changes.add(new FeedChange(entity.getId(), previous, entity));
+        }
+      }
+
+      for (String id : update.getDeletedEntities()) {
+        FeedEntity previous = entities.get(id);
+        if (previous != null) {
+          index = index.update(id, previous, null);
+          entities = entities.minus(id);
+          if (changes != null) {
+            changes.add(new FeedChange(id, previous, null));
+          }
+        }
+      }
+
+      publish(entities, index);
+
+      if (changes != null) {
+        for (FeedChangeListener listener : _changeListeners) {
+          listener.handleChanges(_snapshot, changes);
+        }
+      }
+    }
+
+    notifyListeners();
+  }
+
+  private void publish(PersistentMap<String, FeedEntity> entities,
+      FeedIndex index) {
+    _snapshot = new FeedSnapshot(_snapshot.getVersion() + 1,
+        _clock.currentTimeMillis() / 1000L, entities, index);
+  }
+
+  /**
+   * @return the current contents of the sink, without building a feed.
+   */
+  public FeedSnapshot getSnapshot() {
+    return _snapshot;
+  }
+
+  /**
+   * @return the current contents of the sink, encoded; see
+   *         {@link FeedEncoder}.
+   */
+  public EncodedFeed getEncodedFeed() throws IOException {
+    return _encoder.getEncodedFeed();
+  }
+
+  /**
+   * Builds the feed for the current snapshot, unless it has been built
+   * already.
+   */
+  @Override
+  public FeedMessage getFeed() {
+    FeedSnapshot snapshot = _snapshot;
+    MaterializedFeed materialized = _materialized;
+
+    if (materialized != null && materialized.version == snapshot.getVersion()) {
+      return materialized.feed;
+    }
+
+    synchronized (_materializeLock) {
+      snapshot = _snapshot;
+      materialized = _materialized;
+
+      if (materialized == null || materialized.version != snapshot.getVersion()) {
+        FeedMessage.Builder feed = FeedMessage.newBuilder();
+        feed.setHeader(snapshot.getHeader());
+        feed.addAllEntity(snapshot.getEntities());
+        materialized = new MaterializedFeed(snapshot.getVersion(), feed.build());
+        _materialized = materialized;
+      }
+
+      return materialized.feed;
+    }
+  }
+
+  /**
+   * Listeners are handed a materialized feed after every update, so they
+   * forfeit the benefit of building feeds lazily; within this project, feeds
+   * are read through {@link #getSnapshot()} instead.
+   */
+  @Override
+  public void addListener(GtfsRealtimeListener listener) {
+    _listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(GtfsRealtimeListener listener) {
+    _listeners.remove(listener);
+  }
+
+  void addChangeListener(FeedChangeListener listener) {
+    _changeListeners.add(listener);
+  }
+
+  void removeChangeListener(FeedChangeListener listener) {
+    _changeListeners.remove(listener);
+  }
+
+  private void notifyListeners() {
+    if (_listeners.isEmpty()) {
+      return;
+    }
+
+    FeedMessage feed = getFeed();
+
+    for (GtfsRealtimeListener listener : _listeners) {
+      listener.handleFeed(feed);
+    }
+  }
+
+  private static class MaterializedFeed {
+    final long version;
+    final FeedMessage feed;
+
+    MaterializedFeed(long version, FeedMessage feed) {
+      this.version = version;
+      this.feed = feed;
+    }
+  }
+}
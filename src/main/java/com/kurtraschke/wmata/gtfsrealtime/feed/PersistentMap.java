@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash map, in which {@link #plus(Object, Object)} and
+ * {@link #minus(Object)} return a new map sharing all but the changed path with
+ * the original.
+ *
+ * This is a hash array mapped trie: each level consumes five bits of the key's
+ * hash, and holds only the slots in use, as indicated by a bitmap. Each slot
+ * holds either an entry or a node for the next level down. Keys whose hashes
+ * collide in all 32 bits end up together in a collision node at the bottom.
+ * An update therefore copies at most seven small arrays, however large the
+ * map, and a reader holding an older map is unaffected by it.
+ *
+ * Null keys and values are not supported.
+ *
+ * @author kurt
+ */
+public final class PersistentMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  /**
+   * Seven bitmap levels use up all 32 bits of the hash, leaving room for one
+   * collision node beneath them.
+   */
+  private static final int MAX_DEPTH = (32 + BITS - 1) / BITS + 1;
+
+  @SuppressWarnings("rawtypes")
+  private static final PersistentMap EMPTY = new PersistentMap<>(
+      BitmapNode.EMPTY, 0);
+
+  private final Node _root;
+  private final int _size;
+
+  private PersistentMap(Node root, int size) {
+    _root = root;
+    _size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty() {
+    return EMPTY;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public boolean isEmpty() {
+    return _size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(K key) {
+    Entry<K, V> entry = _root.find(key, hash(key), 0);
+    return (entry != null) ? entry.getValue() : null;
+  }
+
+  public boolean containsKey(K key) {
+    return _root.find(key, hash(key), 0) != null;
+  }
+
+  /**
+   * @return a map with the given key mapped to the given value, or this map if
+   *         the key was already mapped to that very value.
+   */
+  public PersistentMap<K, V> plus(K key, V value) {
+    int sizeBefore = _size;
+    boolean[] added = new boolean[1];
+    Node root = _root.put(new Entry<>(hash(key), key, value), 0, added);
+
+    if (root == _root) {
+      return this;
+    }
+
+    return new PersistentMap<>(root, added[0] ? sizeBefore + 1 : sizeBefore);
+  }
+
+  /**
+   * @return a map without the given key, or this map if it had no mapping for
+   *         the key.
+   */
+  public PersistentMap<K, V> minus(K key) {
+    Node root = _root.remove(key, hash(key), 0);
+
+    if (root == _root) {
+      return this;
+    }
+
+    return new PersistentMap<>((root != null) ? root : BitmapNode.EMPTY,
+        _size - 1);
+  }
+
+  @Override
+  public Iterator<Map.Entry<K, V>> iterator() {
+    return new EntryIterator<>(_root);
+  }
+
+  /**
+   * @return a live view of the values of this map, in iteration order.
+   */
+  public Iterable<V> values() {
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        final Iterator<Map.Entry<K, V>> entries = PersistentMap.this.iterator();
+        return new Iterator<V>() {
+          @Override
+          public boolean hasNext() {
+            return entries.hasNext();
+          }
+
+          @Override
+          public V next() {
+            return entries.next().getValue();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int bitFor(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  private static final class Entry<K, V> implements Map.Entry<K, V> {
+    final int hash;
+    final K key;
+    final V value;
+
+    Entry(int hash, K key, V value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public K getKey() {
+      return key;
+    }
+
+    @Override
+    public V getValue() {
+      return value;
+    }
+
+    @Override
+    public V setValue(V value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+  private static abstract class Node {
+
+    /**
+     * Entries and child nodes; never modified once the node is reachable from
+     * a map.
+     */
+    final Object[] slots;
+
+    Node(Object[] slots) {
+      this.slots = slots;
+    }
+
+    @SuppressWarnings("rawtypes")
+    abstract Entry find(Object key, int hash, int shift);
+
+    @SuppressWarnings("rawtypes")
+    abstract Node put(Entry entry, int shift, boolean[] added);
+
+    /**
+     * @return the node without the given key, this node if it had no mapping
+     *         for the key, or null if the node would be left empty.
+     */
+    abstract Node remove(Object key, int hash, int shift);
+  }
+
+  private static final class BitmapNode extends Node {
+
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    final int bitmap;
+
+    BitmapNode(int bitmap, Object[] slots) {
+      super(slots);
+      this.bitmap = bitmap;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    Entry find(Object key, int hash, int shift) {
+      int bit = bitFor(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+
+      Object slot = slots[index(bit)];
+      if (slot instanceof Node) {
+        return ((Node) slot).find(key, hash, shift + BITS);
+      }
+
+      Entry entry = (Entry) slot;
+      return entry.key.equals(key) ? entry : null;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    Node put(Entry entry, int shift, boolean[] added) {
+      int bit = bitFor(entry.hash, shift);
+      int index = index(bit);
+
+      if ((bitmap & bit) == 0) {
+        Object[] newSlots = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, newSlots, 0, index);
+        newSlots[index] = entry;
+        System.arraycopy(slots, index, newSlots, index + 1, slots.length
+            - index);
+        added[0] = true;
+        return new BitmapNode(bitmap | bit, newSlots);
+      }
+
+      Object slot = slots[index];
+      Object replacement;
+
+      if (slot instanceof Node) {
+        replacement = ((Node) slot).put(entry, shift + BITS, added);
+      } else {
+        Entry existing = (Entry) slot;
+        if (existing.key.equals(entry.key)) {
+          if (existing.value == entry.value) {
+            return this;
+          }
+          replacement = entry;
+        } else {
+          added[0] = true;
+          replacement = merge(existing, entry, shift + BITS);
+        }
+      }
+
+      if (replacement == slot) {
+        return this;
+      }
+
+      Object[] newSlots = slots.clone();
+      newSlots[index] = replacement;
+      return new BitmapNode(bitmap, newSlots);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    Node remove(Object key, int hash, int shift) {
+      int bit = bitFor(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+
+      int index = index(bit);
+      Object slot = slots[index];
+      Object replacement;
+
+      if (slot instanceof Node) {
+        Node child = ((Node) slot).remove(key, hash, shift + BITS);
+        if (child == slot) {
+          return this;
+        }
+        replacement = (child != null) ? inline(child) : null;
+      } else {
+        if (!((Entry) slot).key.equals(key)) {
+          return this;
+        }
+        replacement = null;
+      }
+
+      if (replacement != null) {
+        Object[] newSlots = slots.clone();
+        newSlots[index] = replacement;
+        return new BitmapNode(bitmap, newSlots);
+      }
+
+      if (slots.length == 1) {
+        return null;
+      }
+
+      Object[] newSlots = new Object[slots.length - 1];
+      System.arraycopy(slots, 0, newSlots, 0, index);
+      System.arraycopy(slots, index + 1, newSlots, index, slots.length - index
+          - 1);
+      return new BitmapNode(bitmap & ~bit, newSlots);
+    }
+
+    /**
+     * Replaces a child left holding a single entry with the entry itself, so
+     * that removals do not leave long chains of single-slot nodes behind.
+     */
+    private static Object inline(Node child) {
+      if (child.slots.length == 1 && child.slots[0] instanceof Entry) {
+        return child.slots[0];
+      }
+      return child;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Node merge(Entry a, Entry b, int shift) {
+      if (shift >= 32) {
+        return new CollisionNode(new Object[] {a, b});
+      }
+
+      int bitA = bitFor(a.hash, shift);
+      int bitB = bitFor(b.hash, shift);
+
+      if (bitA == bitB) {
+        return new BitmapNode(bitA, new Object[] {merge(a, b, shift + BITS)});
+      }
+
+      boolean aFirst = ((a.hash >>> shift) & MASK) < ((b.hash >>> shift) & MASK);
+      return new BitmapNode(bitA | bitB, aFirst ? new Object[] {a, b}
+          : new Object[] {b, a});
+    }
+  }
+
+  /**
+   * Holds entries whose keys have identical hashes.
+   */
+  private static final class CollisionNode extends Node {
+
+    CollisionNode(Object[] entries) {
+      super(entries);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    Entry find(Object key, int hash, int shift) {
+      for (Object slot : slots) {
+        Entry entry = (Entry) slot;
+        if (entry.key.equals(key)) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    Node put(Entry entry, int shift, boolean[] added) {
+      for (int i = 0; i < slots.length; i++) {
+        Entry existing = (Entry) slots[i];
+        if (existing.key.equals(entry.key)) {
+          if (existing.value == entry.value) {
+            return this;
+          }
+          Object[] newSlots = slots.clone();
+          newSlots[i] = entry;
+          return new CollisionNode(newSlots);
+        }
+      }
+
+      Object[] newSlots = new Object[slots.length + 1];
+      System.arraycopy(slots, 0, newSlots, 0, slots.length);
+      newSlots[slots.length] = entry;
+      added[0] = true;
+      return new CollisionNode(newSlots);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    Node remove(Object key, int hash, int shift) {
+      for (int i = 0; i < slots.length; i++) {
+        if (((Entry) slots[i]).key.equals(key)) {
+          if (slots.length == 1) {
+            return null;
+          }
+          Object[] newSlots = new Object[slots.length - 1];
+          System.arraycopy(slots, 0, newSlots, 0, i);
+          System.arraycopy(slots, i + 1, newSlots, i, slots.length - i - 1);
+          return new CollisionNode(newSlots);
+        }
+      }
+      return this;
+    }
+  }
+
+  private static final class EntryIterator<K, V> implements
+      Iterator<Map.Entry<K, V>> {
+
+    private final Object[][] _stack = new Object[MAX_DEPTH][];
+    private final int[] _positions = new int[MAX_DEPTH];
+    private int _depth = 0;
+    private Entry<K, V> _next;
+
+    EntryIterator(Node root) {
+      _stack[0] = root.slots;
+      advance();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      _next = null;
+
+      while (_depth >= 0) {
+        Object[] slots = _stack[_depth];
+
+        if (_positions[_depth] == slots.length) {
+          _depth--;
+          continue;
+        }
+
+        Object slot = slots[_positions[_depth]++];
+
+        if (slot instanceof Node) {
+          _depth++;
+          _stack[_depth] = ((Node) slot).slots;
+          _positions[_depth] = 0;
+        } else {
+          _next = (Entry<K, V>) slot;
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return _next != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (_next == null) {
+        throw new NoSuchElementException();
+      }
+      Entry<K, V> result = _next;
+      advance();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
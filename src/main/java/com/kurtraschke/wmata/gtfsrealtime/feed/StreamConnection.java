@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client of the {@link StreamServer}, subscribed to a {@link FeedStream}.
+ *
+ * Events are queued by the stream's dispatch thread, and written by the
+ * server's selector thread as the socket accepts them. The diff events queued
+ * for a connection are limited to a fixed number of bytes. A client which
+ * falls further behind than that has its queued diffs thrown away, and is sent
+ * a fresh snapshot once it has caught up with whatever was already being
+ * written; the snapshot is only built then, so a slow client costs at most one
+ * snapshot for every time it drains its queue.
+ *
+ * @author kurt
+ */
+class StreamConnection {
+
+  /**
+   * The most queued events handed to the socket in a single write.
+   */
+  private static final int WRITE_BATCH = 64;
+
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final StreamServer.Listener _listener;
+  private final SocketChannel _channel;
+  private final SelectionKey _key;
+  private final int _bufferBytes;
+  private final int _requestLimit;
+
+  private final AtomicBoolean _writeRequested = new AtomicBoolean();
+
+  private ByteBuffer _requestBuffer;
+  private FeedStream _stream;
+  private Set<String> _routeIds = Collections.emptySet();
+
+  /**
+   * Guarded by this.
+   */
+  private final ArrayDeque<Pending> _queue = new ArrayDeque<>();
+  private int _diffBytes = 0;
+  private boolean _resyncPending = false;
+  private boolean _closed = false;
+
+  /**
+   * The version of the last snapshot sent; diffs up to it are already
+   * reflected in it. Guarded by this.
+   */
+  private long _syncedVersion = -1;
+
+  StreamConnection(StreamServer.Listener listener, SocketChannel channel,
+      SelectionKey key, int bufferBytes, int requestLimit) {
+    _listener = listener;
+    _channel = channel;
+    _key = key;
+    _bufferBytes = bufferBytes;
+    _requestLimit = requestLimit;
+  }
+
+  SocketChannel getChannel() {
+    return _channel;
+  }
+
+  SelectionKey getKey() {
+    return _key;
+  }
+
+  /**
+   * @return the buffer into which the request is read, until the connection
+   *         subscribes.
+   */
+  ByteBuffer getRequestBuffer() {
+    if (_requestBuffer == null) {
+      _requestBuffer = ByteBuffer.allocate(_requestLimit);
+    }
+    return _requestBuffer;
+  }
+
+  Set<String> getRouteIds() {
+    return _routeIds;
+  }
+
+  boolean isSubscribed() {
+    return _stream != null;
+  }
+
+  /**
+   * Starts streaming: queues the response headers, and a snapshot to follow
+   * them. Called on the selector thread.
+   */
+  void subscribe(FeedStream stream, Set<String> routeIds, byte[] headers) {
+    _routeIds = routeIds;
+    _requestBuffer = null;
+
+    synchronized (this) {
+      _queue.add(new Pending(headers, -1));
+      _resyncPending = true;
+    }
+
+    _stream = stream;
+    stream.subscribe(this);
+    requestWrite();
+  }
+
+  /**
+   * Queues a diff event, unless the client has fallen too far behind to take
+   * it, in which case it will be sent a snapshot instead.
+   *
+   * @param version the sink version the diff brings the client up to
+   */
+  void send(byte[] event, long version) {
+    synchronized (this) {
+      if (_closed || _resyncPending || version <= _syncedVersion) {
+        return;
+      }
+
+      if (_diffBytes + event.length > _bufferBytes) {
+        dropQueued();
+        _resyncPending = true;
+        _listener.recordResync();
+      } else {
+        _queue.add(new Pending(event, version));
+        _diffBytes += event.length;
+      }
+    }
+
+    requestWrite();
+  }
+
+  void requestResync() {
+    synchronized (this) {
+      if (_closed) {
+        return;
+      }
+      dropQueued();
+      _resyncPending = true;
+    }
+
+    requestWrite();
+  }
+
+  /**
+   * Queues a comment, so that dead connections are noticed and proxies do not
+   * time out idle ones.
+   */
+  void sendHeartbeat() {
+    synchronized (this) {
+      if (_closed || !_queue.isEmpty() || _resyncPending) {
+        return;
+      }
+      _queue.add(new Pending(HEARTBEAT, -1));
+    }
+
+    requestWrite();
+  }
+
+  /**
+   * Records that a snapshot of the given version is about to be sent, and
+   * throws away the diffs queued meanwhile which it already covers; they were
+   * dispatched before the snapshot was taken, but would arrive after it.
+   */
+  void markSynced(long version) {
+    synchronized (this) {
+      _syncedVersion = version;
+
+      Iterator<Pending> it = _queue.iterator();
+      while (it.hasNext()) {
+        Pending pending = it.next();
+        if (pending.counted && pending.version <= version
+            && pending.buffer.position() == 0) {
+          it.remove();
+          _diffBytes -= pending.buffer.capacity();
+        }
+      }
+    }
+  }
+
+  /**
+   * Throws away every queued event except one which is already part-written.
+   */
+  private void dropQueued() {
+    Pending inProgress = _queue.peek();
+
+    _queue.clear();
+    _diffBytes = 0;
+
+    if (inProgress != null && inProgress.buffer.position() > 0) {
+      _queue.add(inProgress);
+      if (inProgress.counted) {
+        _diffBytes = inProgress.buffer.capacity();
+      }
+    }
+  }
+
+  private void requestWrite() {
+    if (_writeRequested.compareAndSet(false, true)) {
+      _listener.requestWrite(this);
+    }
+  }
+
+  /**
+   * Writes as much as the socket will take. Called on the selector thread.
+   *
+   * @return true if everything queued has been written.
+   */
+  boolean flush() throws IOException {
+    _writeRequested.set(false);
+
+    while (true) {
+      Pending[] batch;
+      boolean snapshotNeeded = false;
+
+      synchronized (this) {
+        if (_closed) {
+          return true;
+        }
+
+        if (_queue.isEmpty()) {
+          if (!_resyncPending) {
+            return true;
+          }
+          _resyncPending = false;
+          snapshotNeeded = true;
+          batch = null;
+        } else {
+          batch = new Pending[Math.min(_queue.size(), WRITE_BATCH)];
+          Iterator<Pending> it = _queue.iterator();
+          for (int i = 0; i < batch.length; i++) {
+            batch[i] = it.next();
+          }
+        }
+      }
+
+      if (snapshotNeeded) {
+        Pending snapshot = new Pending(_stream.snapshotEvent(this), -1);
+        synchronized (this) {
+          _queue.addFirst(snapshot);
+        }
+        continue;
+      }
+
+      ByteBuffer[] buffers = new ByteBuffer[batch.length];
+      for (int i = 0; i < batch.length; i++) {
+        buffers[i] = batch[i].buffer;
+      }
+
+      _channel.write(buffers);
+
+      synchronized (this) {
+        for (Pending pending : batch) {
+          if (pending.buffer.hasRemaining()) {
+            return false;
+          }
+          /*
+           * The queue may have been cleared for a resync while we were
+           * writing; only remove what is still there.
+           */
+          if (_queue.peek() == pending) {
+            _queue.poll();
+            if (pending.counted) {
+              _diffBytes -= pending.buffer.capacity();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  void close() {
+    synchronized (this) {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      _queue.clear();
+    }
+
+    if (_stream != null) {
+      _stream.unsubscribe(this);
+    }
+
+    _key.cancel();
+
+    try {
+      _channel.close();
+    } catch (IOException e) {
+      // nothing more to be done
+    }
+  }
+
+  private static class Pending {
+    final ByteBuffer buffer;
+    final boolean counted;
+    final long version;
+
+    /**
+     * @param version the sink version of a diff event, which counts against
+     *          the queue limit, or -1 for any other
+     */
+    Pending(byte[] bytes, long version) {
+      this.buffer = ByteBuffer.wrap(bytes);
+      this.counted = version >= 0;
+      this.version = version;
+    }
+  }
+}
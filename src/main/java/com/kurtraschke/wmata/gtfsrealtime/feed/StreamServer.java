@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.feed;
+
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Counter;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Streams changes to the feeds to subscribers as Server-Sent Events; see
+ * {@link FeedStream} for the format of the events.
+ *
+ * Servlets cannot hold thousands of connections open without tying up a
+ * thread for each, so streams are served by a small HTTP server of their own:
+ * one selector thread per port, which accepts connections, reads each
+ * request, and writes queued events as each socket becomes writable. Only
+ * {@code GET} is supported, and the only parameter understood is
+ * {@code route}, a comma-separated list of route IDs, which may be repeated.
+ *
+ * @author kurt
+ */
+@Singleton
+public class StreamServer {
+
+  private static final Logger _log = LoggerFactory.getLogger(StreamServer.class);
+
+  private static final int REQUEST_LIMIT = 4096;
+
+  private static final long HEARTBEAT_MILLIS = 15000;
+
+  /**
+   * Large enough that a crowd of clients reconnecting at once, say after a
+   * restart, is not turned away.
+   */
+  private static final int ACCEPT_BACKLOG = 1024;
+
+  private static final byte[] HEADERS = ("HTTP/1.1 200 OK\r\n"
+      + "Content-Type: text/event-stream\r\n" + "Cache-Control: no-cache\r\n"
+      + "Access-Control-Allow-Origin: *\r\n" + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+  private final Map<Integer, Listener> _listeners = new HashMap<>();
+  private final List<FeedStream> _streams = new ArrayList<>();
+  private final AtomicInteger _connections = new AtomicInteger();
+
+  private int _bufferBytes = 256 * 1024;
+
+  private Counter _resyncs;
+
+  /**
+   * Encodes and queues the events for every stream, one update at a time.
+   */
+  private ExecutorService _dispatcher;
+
+  @com.google.inject.Inject(optional = true)
+  public void setBufferBytes(@Named("stream.bufferBytes")
+  int bufferBytes) {
+    _bufferBytes = bufferBytes;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    metrics.gauge("gtfsrt_stream_connections", "Open stream connections",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return _connections.get();
+          }
+        });
+    _resyncs = metrics.counter("gtfsrt_stream_resyncs_total",
+        "Stream clients sent a fresh snapshot after falling behind");
+  }
+
+  /**
+   * Streams changes to the given sink at the given URL, starting a listener
+   * on its port if there is not one already.
+   */
+  public synchronized void register(URL url, LazyFeedSink sink)
+      throws IOException {
+    int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+    Listener listener = _listeners.get(port);
+
+    if (listener == null) {
+      listener = new Listener(port);
+      _listeners.put(port, listener);
+      listener.start();
+    }
+
+    if (_dispatcher == null) {
+      _dispatcher = Executors.newSingleThreadExecutor();
+    }
+
+    FeedStream stream = new FeedStream(sink, _dispatcher);
+    _streams.add(stream);
+    listener.addStream(url.getPath(), stream);
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    for (FeedStream stream : _streams) {
+      stream.stop();
+    }
+    _streams.clear();
+
+    for (Listener listener : _listeners.values()) {
+      listener.stop();
+    }
+    _listeners.clear();
+
+    if (_dispatcher != null) {
+      _dispatcher.shutdown();
+    }
+  }
+
+  class Listener implements Runnable {
+
+    private final int _port;
+    private final Map<String, FeedStream> _streams = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<StreamConnection> _writeRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean _wakeupPending = new AtomicBoolean();
+
+    /**
+     * Touched only by the selector thread.
+     */
+    private final Set<StreamConnection> _open = new HashSet<>();
+    private final ByteBuffer _scratch = ByteBuffer.allocate(1024);
+
+    private ServerSocketChannel _server;
+    private Selector _selector;
+    private Thread _thread;
+    private volatile boolean _running = true;
+
+    Listener(int port) {
+      _port = port;
+    }
+
+    void addStream(String path, FeedStream stream) {
+      _streams.put(path, stream);
+    }
+
+    void start() throws IOException {
+      _selector = Selector.open();
+      _server = ServerSocketChannel.open();
+      _server.configureBlocking(false);
+      _server.socket().setReuseAddress(true);
+      _server.socket().bind(new InetSocketAddress(_port), ACCEPT_BACKLOG);
+      _server.register(_selector, SelectionKey.OP_ACCEPT);
+
+      _thread = new Thread(this, "stream-server-" + _port);
+      _thread.setDaemon(true);
+      _thread.start();
+      _log.info("Streaming feeds on port " + _port);
+    }
+
+    void stop() {
+      _running = false;
+      _selector.wakeup();
+    }
+
+    void requestWrite(StreamConnection connection) {
+      _writeRequests.add(connection);
+      if (_wakeupPending.compareAndSet(false, true)) {
+        _selector.wakeup();
+      }
+    }
+
+    void recordResync() {
+      _resyncs.inc();
+    }
+
+    @Override
+    public void run() {
+      long nextHeartbeat = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+
+      while (_running) {
+        try {
+          _selector.select(1000);
+        } catch (IOException e) {
+          _log.error("stream selector failed", e);
+          break;
+        }
+
+        _wakeupPending.set(false);
+
+        /*
+         * Connections can be queued again as soon as they have been written,
+         * so take at most one turn each; otherwise a busy sink could keep us
+         * from ever getting around to accepting and reading.
+         */
+        for (int i = _open.size(); i > 0; i--) {
+          StreamConnection pending = _writeRequests.poll();
+          if (pending == null) {
+            break;
+          }
+          write(pending);
+        }
+
+        if (!_writeRequests.isEmpty()) {
+          _wakeupPending.set(true);
+          _selector.wakeup();
+        }
+
+        Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if (!key.isValid()) {
+            continue;
+          }
+
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+
+          StreamConnection connection = (StreamConnection) key.attachment();
+
+          /*
+           * A bug handling one connection must not take down the selector
+           * thread, and with it every other stream on the port.
+           */
+          try {
+            if (key.isReadable()) {
+              read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(connection);
+            }
+          } catch (RuntimeException e) {
+            _log.warn("error serving stream connection", e);
+            close(connection);
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextHeartbeat) {
+          for (StreamConnection connection : _open) {
+            if (connection.isSubscribed()) {
+              connection.sendHeartbeat();
+            }
+          }
+          nextHeartbeat = now + HEARTBEAT_MILLIS;
+        }
+      }
+
+      for (StreamConnection connection : new HashSet<>(_open)) {
+        close(connection);
+      }
+
+      try {
+        _server.close();
+        _selector.close();
+      } catch (IOException e) {
+        _log.warn("error closing stream listener", e);
+      }
+    }
+
+    private void accept() {
+      try {
+        SocketChannel channel;
+
+        while ((channel = _server.accept()) != null) {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+          StreamConnection connection = new StreamConnection(this, channel,
+              key, _bufferBytes, REQUEST_LIMIT);
+          key.attach(connection);
+          _open.add(connection);
+          _connections.incrementAndGet();
+        }
+      } catch (IOException e) {
+        _log.warn("error accepting stream connection", e);
+      }
+    }
+
+    private void read(StreamConnection connection) {
+      try {
+        if (connection.isSubscribed()) {
+          _scratch.clear();
+          if (connection.getChannel().read(_scratch) == -1) {
+            close(connection);
+          }
+          return;
+        }
+
+        ByteBuffer request = connection.getRequestBuffer();
+
+        if (connection.getChannel().read(request) == -1) {
+          close(connection);
+          return;
+        }
+
+        int end = indexOfBlankLine(request);
+
+        if (end < 0) {
+          if (!request.hasRemaining()) {
+            reject(connection, "431 Request Header Fields Too Large");
+          }
+          return;
+        }
+
+        handleRequest(connection, new String(request.array(), 0, end,
+            StandardCharsets.ISO_8859_1));
+      } catch (IOException e) {
+        close(connection);
+      }
+    }
+
+    private void handleRequest(StreamConnection connection, String head)
+        throws IOException {
+      String[] requestLine = head.split("\r\n", 2)[0].split(" ");
+
+      if (requestLine.length != 3) {
+        reject(connection, "400 Bad Request");
+        return;
+      }
+
+      if (!requestLine[0].equals("GET")) {
+        reject(connection, "405 Method Not Allowed");
+        return;
+      }
+
+      String target = requestLine[1];
+      int queryStart = target.indexOf('?');
+      String path = (queryStart >= 0) ? target.substring(0, queryStart)
+          : target;
+      String query = (queryStart >= 0) ? target.substring(queryStart + 1)
+          : "";
+
+      FeedStream stream = _streams.get(path);
+
+      if (stream == null) {
+        reject(connection, "404 Not Found");
+        return;
+      }
+
+      Set<String> routeIds;
+
+      try {
+        routeIds = parseRouteIds(query);
+      } catch (IllegalArgumentException e) {
+        reject(connection, "400 Bad Request");
+        return;
+      }
+
+      connection.subscribe(stream, routeIds, HEADERS);
+    }
+
+    private void write(StreamConnection connection) {
+      SelectionKey key = connection.getKey();
+
+      if (!key.isValid()) {
+        return;
+      }
+
+      try {
+        boolean done = connection.flush();
+        key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ
+            | SelectionKey.OP_WRITE);
+      } catch (IOException e) {
+        close(connection);
+      }
+    }
+
+    private void reject(StreamConnection connection, String status) {
+      try {
+        connection.getChannel().write(ByteBuffer.wrap(("HTTP/1.1 " + status
+            + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+      } catch (IOException e) {
+        // the connection is being closed regardless
+      }
+      close(connection);
+    }
+
+    private void close(StreamConnection connection) {
+      if (_open.remove(connection)) {
+        _connections.decrementAndGet();
+      }
+      connection.close();
+    }
+  }
+
+  private static int indexOfBlankLine(ByteBuffer buffer) {
+    byte[] bytes = buffer.array();
+
+    for (int i = 3; i < buffer.position(); i++) {
+      if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r'
+          && bytes[i] == '\n') {
+        return i - 3;
+      }
+    }
+
+    return -1;
+  }
+
+  static Set<String> parseRouteIds(String query)
+      throws UnsupportedEncodingException {
+    Set<String> routeIds = new HashSet<>();
+
+    for (String parameter : query.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals < 0 || !parameter.substring(0, equals).equals("route")) {
+        continue;
+      }
+      String value = URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+      for (String routeId : value.split(",")) {
+        if (!routeId.trim().isEmpty()) {
+          routeIds.add(routeId.trim());
+        }
+      }
+    }
+
+    return routeIds.isEmpty() ? Collections.<String> emptySet() : routeIds;
+  }
+}
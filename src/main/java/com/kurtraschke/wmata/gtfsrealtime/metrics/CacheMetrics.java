@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.metrics;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.statistics.StatisticsGateway;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Exposes the statistics of every ehcache cache as metrics.
+ *
+ * @author kurt
+ */
+@Singleton
+public class CacheMetrics {
+
+  private CacheManager _cacheManager;
+  private MetricsRegistry _registry;
+
+  @Inject
+  public void setCacheManager(CacheManager cacheManager) {
+    _cacheManager = cacheManager;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry registry) {
+    _registry = registry;
+  }
+
+  @PostConstruct
+  public void start() {
+    for (String name : _cacheManager.getCacheNames()) {
+      Cache cache = _cacheManager.getCache(name);
+
+      if (cache == null) {
+        continue;
+      }
+
+      final StatisticsGateway stats = cache.getStatistics();
+
+      _registry.counterGauge("ehcache_hits_total", "Cache hits", new Gauge() {
+        @Override
+        public double getValue() {
+          return stats.cacheHitCount();
+        }
+      }, "cache", name);
+      _registry.counterGauge("ehcache_misses_total", "Cache misses",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return stats.cacheMissCount();
+            }
+          }, "cache", name);
+      _registry.counterGauge("ehcache_evictions_total", "Cache evictions",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return stats.cacheEvictedCount();
+            }
+          }, "cache", name);
+      _registry.gauge("ehcache_heap_entries", "Entries held on the heap",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return stats.getLocalHeapSize();
+            }
+          }, "cache", name);
+      _registry.gauge("ehcache_disk_entries", "Entries held on disk",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return stats.getLocalDiskSize();
+            }
+          }, "cache", name);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up.
+ *
+ * @author kurt
+ */
+public class Counter {
+
+  private final AtomicLong _count = new AtomicLong();
+
+  public void inc() {
+    _count.incrementAndGet();
+  }
+
+  public void inc(long n) {
+    _count.addAndGet(n);
+  }
+
+  public long get() {
+    return _count.get();
+  }
+}
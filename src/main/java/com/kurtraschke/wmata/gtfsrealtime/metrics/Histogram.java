@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts observations into fixed buckets, keeping a running count and sum.
+ * Recording is lock-free, so it is safe to use on the polling threads.
+ *
+ * @author kurt
+ */
+public class Histogram {
+
+  /**
+   * Bucket upper bounds suited to durations in seconds, from a millisecond to
+   * a minute.
+   */
+  public static final double[] LATENCY_BUCKETS = new double[] {
+      0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+      30, 60};
+
+  /**
+   * Bucket upper bounds for data age, in seconds, from a second to ten
+   * minutes.
+   */
+  public static final double[] FRESHNESS_BUCKETS = new double[] {
+      1, 2, 5, 10, 15, 20, 30, 45, 60, 90, 120, 180, 300, 600};
+
+  private final double[] _bounds;
+  private final AtomicLongArray _counts;
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _sumBits = new AtomicLong(Double.doubleToLongBits(0));
+
+  public Histogram(double[] bounds) {
+    _bounds = Arrays.copyOf(bounds, bounds.length);
+    Arrays.sort(_bounds);
+    _counts = new AtomicLongArray(_bounds.length + 1);
+  }
+
+  public void observe(double value) {
+    int bucket = Arrays.binarySearch(_bounds, value);
+    if (bucket < 0) {
+      bucket = -(bucket + 1);
+    }
+    _counts.incrementAndGet(bucket);
+    _count.incrementAndGet();
+
+    while (true) {
+      long bits = _sumBits.get();
+      long next = Double.doubleToLongBits(Double.longBitsToDouble(bits) + value);
+      if (_sumBits.compareAndSet(bits, next)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Records a duration measured with {@link System#nanoTime()}, in seconds.
+   */
+  public void observeNanos(long nanos) {
+    observe(nanos / 1e9);
+  }
+
+  double[] getBounds() {
+    return _bounds;
+  }
+
+  /**
+   * @return the number of observations in each bucket, the last being those
+   *         above every bound
+   */
+  long[] getBucketCounts() {
+    long[] counts = new long[_counts.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = _counts.get(i);
+    }
+    return counts;
+  }
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  public double getSum() {
+    return Double.longBitsToDouble(_sumBits.get());
+  }
+}
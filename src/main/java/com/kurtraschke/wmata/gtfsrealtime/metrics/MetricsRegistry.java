@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.inject.Singleton;
+
+/**
+ * Holds every metric in the process, and writes them out in the Prometheus
+ * text exposition format.
+ *
+ * Metrics are identified by name plus a set of label name/value pairs; asking
+ * for the same name and labels twice returns the same metric, so callers may
+ * either keep a reference or look it up each time.
+ *
+ * @author kurt
+ */
+@Singleton
+public class MetricsRegistry {
+
+  private enum Type {
+    COUNTER, GAUGE, HISTOGRAM
+  }
+
+  private final ConcurrentMap<String, Family> _families = new ConcurrentSkipListMap<>();
+
+  public Counter counter(String name, String help, String... labels) {
+    Family family = family(name, help, Type.COUNTER);
+    String key = labelString(labels);
+    Object metric = family.metrics.get(key);
+    if (metric == null) {
+      family.metrics.putIfAbsent(key, new Counter());
+      metric = family.metrics.get(key);
+    }
+    return (Counter) metric;
+  }
+
+  public Histogram histogram(String name, String help, String... labels) {
+    return histogram(name, help, Histogram.LATENCY_BUCKETS, labels);
+  }
+
+  public Histogram histogram(String name, String help, double[] buckets,
+      String... labels) {
+    Family family = family(name, help, Type.HISTOGRAM);
+    String key = labelString(labels);
+    Object metric = family.metrics.get(key);
+    if (metric == null) {
+      family.metrics.putIfAbsent(key, new Histogram(buckets));
+      metric = family.metrics.get(key);
+    }
+    return (Histogram) metric;
+  }
+
+  /**
+   * Registers a gauge, replacing any previously registered under the same
+   * name and labels.
+   */
+  public void gauge(String name, String help, Gauge gauge, String... labels) {
+    family(name, help, Type.GAUGE).metrics.put(labelString(labels), gauge);
+  }
+
+  /**
+   * Registers a gauge that reports a count maintained elsewhere, such as a
+   * cache's hit count, so that it is exposed as a counter.
+   */
+  public void counterGauge(String name, String help, Gauge gauge,
+      String... labels) {
+    family(name, help, Type.COUNTER).metrics.put(labelString(labels), gauge);
+  }
+
+  public void write(Writer w) throws IOException {
+    for (Map.Entry<String, Family> entry : _families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+
+      w.write("# HELP " + name + " " + family.help + "\n");
+      w.write("# TYPE " + name + " " + family.type.name().toLowerCase() + "\n");
+
+      for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+        String labels = metric.getKey();
+        Object value = metric.getValue();
+
+        if (value instanceof Counter) {
+          writeSample(w, name, labels, ((Counter) value).get());
+        } else if (value instanceof Gauge) {
+          writeSample(w, name, labels, ((Gauge) value).getValue());
+        } else if (value instanceof Histogram) {
+          writeHistogram(w, name, labels, (Histogram) value);
+        }
+      }
+    }
+  }
+
+  private void writeHistogram(Writer w, String name, String labels,
+      Histogram h) throws IOException {
+    double[] bounds = h.getBounds();
+    long[] counts = h.getBucketCounts();
+    long cumulative = 0;
+
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      String le = (i < bounds.length) ? Double.toString(bounds[i]) : "+Inf";
+      String bucketLabels = labels.isEmpty() ? "le=\"" + le + "\"" : labels
+          + ",le=\"" + le + "\"";
+      writeSample(w, name + "_bucket", bucketLabels, cumulative);
+    }
+
+    writeSample(w, name + "_sum", labels, h.getSum());
+    writeSample(w, name + "_count", labels, h.getCount());
+  }
+
+  private static void writeSample(Writer w, String name, String labels,
+      double value) throws IOException {
+    w.write(name);
+    if (!labels.isEmpty()) {
+      w.write("{" + labels + "}");
+    }
+    w.write(" ");
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      w.write(Long.toString((long) value));
+    } else {
+      w.write(Double.toString(value));
+    }
+    w.write("\n");
+  }
+
+  private Family family(String name, String help, Type type) {
+    Family family = _families.get(name);
+    if (family == null) {
+      _families.putIfAbsent(name, new Family(help, type));
+      family = _families.get(name);
+    }
+    if (family.type != type) {
+      throw new IllegalArgumentException("Metric " + name + " is a "
+          + family.type + ", not a " + type);
+    }
+    return family;
+  }
+
+  private static String labelString(String[] labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException(
+          "Labels must be given as name/value pairs");
+    }
+
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        b.append(',');
+      }
+      b.append(labels[i]).append("=\"");
+      b.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace(
+          "\n", "\\n"));
+      b.append('"');
+    }
+    return b.toString();
+  }
+
+  private static class Family {
+
+    private final String help;
+    private final Type type;
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    public Family(String help, Type type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+}
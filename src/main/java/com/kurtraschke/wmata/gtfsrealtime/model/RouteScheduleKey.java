@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.model;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.io.Serializable;
+
+/**
+ * Identifies the schedule for a WMATA route on a service date, as downloaded
+ * from the route schedule API.
+ *
+ * @author kurt
+ */
+public class RouteScheduleKey implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  public ServiceDate serviceDate;
+  public String routeID;
+
+  @Override
+  public int hashCode() {
+    int hash = 7;
+    hash = 23 * hash
+        + (this.serviceDate != null ? this.serviceDate.hashCode() : 0);
+    hash = 23 * hash + (this.routeID != null ? this.routeID.hashCode() : 0);
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == null) {
+      return false;
+    }
+    if (getClass() != obj.getClass()) {
+      return false;
+    }
+    final RouteScheduleKey other = (RouteScheduleKey) obj;
+    if (this.serviceDate != other.serviceDate
+        && (this.serviceDate == null || !this.serviceDate.equals(other.serviceDate))) {
+      return false;
+    }
+    if ((this.routeID == null) ? (other.routeID != null)
+        : !this.routeID.equals(other.routeID)) {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "route " + routeID + " on " + serviceDate;
+  }
+
+  public RouteScheduleKey(ServiceDate serviceDate, String routeID) {
+    this.serviceDate = serviceDate;
+    this.routeID = routeID;
+  }
+}
@@ -58,6 +58,11 @@ public class TripMapKey implements Serializable {
     return true;
   }
 
+  @Override
+  public String toString() {
+    return "trip " + tripID + " on " + serviceDate;
+  }
+
   public TripMapKey(ServiceDate serviceDate, String tripID) {
     this.serviceDate = serviceDate;
     this.tripID = tripID;
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Assigns each GTFS service ID a dense ordinal, and lazily computes the set of
+ * services active on a given service date as a {@link BitSet} over those
+ * ordinals.
+ *
+ * Only dates within a few days of today are retained; anything else is
+ * computed on demand and thrown away, so we never pay for expanding the whole
+ * calendar the way {@code CalendarServiceDataFactoryImpl} does.
+ *
+ * @author kurt
+ */
+@Singleton
+public class ActiveServiceIndex {
+
+  private static final int WINDOW_DAYS = 3;
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  private GtfsRelationalDao _dao;
+  private Clock _clock;
+
+  private Map<AgencyAndId, Integer> _ordinals;
+  private List<ServiceCalendar> _calendarsByOrdinal;
+  private Map<ServiceDate, List<ServiceCalendarDate>> _calendarDatesByDate;
+  private final ConcurrentMap<ServiceDate, BitSet> _activeServicesByDate = new ConcurrentHashMap<>();
+
+  @Inject
+  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
+    _dao = dao;
+  }
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  /**
+   * @return the ordinal assigned to the given service ID, or -1 if the service
+   *         ID does not appear in the GTFS.
+   */
+  public int getServiceOrdinal(AgencyAndId serviceId) {
+    ensureIndexed();
+    Integer ordinal = _ordinals.get(serviceId);
+    return (ordinal != null) ? ordinal : -1;
+  }
+
+  /**
+   * Returns the services active on the given date, indexed by the ordinals
+   * returned from {@link #getServiceOrdinal(AgencyAndId)}. Callers must not
+   * modify the returned set.
+   */
+  public BitSet getActiveServices(ServiceDate serviceDate) {
+    ensureIndexed();
+
+    BitSet active = _activeServicesByDate.get(serviceDate);
+
+    if (active == null) {
+      active = computeActiveServices(serviceDate);
+
+      ServiceDate today = DateTimeUtils.serviceDateFromDate(new Date(
+          _clock.currentTimeMillis()));
+
+      if (Math.abs(today.difference(serviceDate)) <= WINDOW_DAYS) {
+        _activeServicesByDate.putIfAbsent(serviceDate, active);
+      }
+
+      pruneWindow(today);
+    }
+
+    return active;
+  }
+
+  public boolean isServiceActive(BitSet activeServices, int serviceOrdinal) {
+    return serviceOrdinal >= 0 && activeServices.get(serviceOrdinal);
+  }
+
+  private synchronized void ensureIndexed() {
+    if (_ordinals != null) {
+      return;
+    }
+
+    Map<AgencyAndId, Integer> ordinals = new HashMap<>();
+    List<ServiceCalendar> calendarsByOrdinal = new ArrayList<>();
+
+    for (AgencyAndId serviceId : _dao.getAllServiceIds()) {
+      ordinals.put(serviceId, calendarsByOrdinal.size());
+      calendarsByOrdinal.add(_dao.getCalendarForServiceId(serviceId));
+    }
+
+    Map<ServiceDate, List<ServiceCalendarDate>> calendarDatesByDate = new HashMap<>();
+
+    for (ServiceCalendarDate calendarDate : _dao.getAllCalendarDates()) {
+      List<ServiceCalendarDate> forDate = calendarDatesByDate.get(calendarDate.getDate());
+      if (forDate == null) {
+        forDate = new ArrayList<>();
+        calendarDatesByDate.put(calendarDate.getDate(), forDate);
+      }
+      forDate.add(calendarDate);
+    }
+
+    _calendarsByOrdinal = calendarsByOrdinal;
+    _calendarDatesByDate = calendarDatesByDate;
+    _ordinals = ordinals;
+  }
+
+  private BitSet computeActiveServices(ServiceDate serviceDate) {
+    BitSet active = new BitSet(_calendarsByOrdinal.size());
+    int dayOfWeek = serviceDate.getAsCalendar(UTC).get(Calendar.DAY_OF_WEEK);
+
+    for (int ordinal = 0; ordinal < _calendarsByOrdinal.size(); ordinal++) {
+      ServiceCalendar c = _calendarsByOrdinal.get(ordinal);
+
+      if (c != null && c.getStartDate().compareTo(serviceDate) <= 0
+          && c.getEndDate().compareTo(serviceDate) >= 0
+          && runsOnDayOfWeek(c, dayOfWeek)) {
+        active.set(ordinal);
+      }
+    }
+
+    List<ServiceCalendarDate> exceptions = _calendarDatesByDate.get(serviceDate);
+
+    if (exceptions != null) {
+      for (ServiceCalendarDate exception : exceptions) {
+        int ordinal = _ordinals.get(exception.getServiceId());
+        if (exception.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD) {
+          active.set(ordinal);
+        } else if (exception.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_REMOVE) {
+          active.clear(ordinal);
+        }
+      }
+    }
+
+    return active;
+  }
+
+  private void pruneWindow(ServiceDate today) {
+    Iterator<ServiceDate> it = _activeServicesByDate.keySet().iterator();
+    while (it.hasNext()) {
+      if (Math.abs(today.difference(it.next())) > WINDOW_DAYS) {
+        it.remove();
+      }
+    }
+  }
+
+  private static boolean runsOnDayOfWeek(ServiceCalendar c, int dayOfWeek) {
+    switch (dayOfWeek) {
+      case Calendar.MONDAY:
+        return c.getMonday() == 1;
+      case Calendar.TUESDAY:
+        return c.getTuesday() == 1;
+      case Calendar.WEDNESDAY:
+        return c.getWednesday() == 1;
+      case Calendar.THURSDAY:
+        return c.getThursday() == 1;
+      case Calendar.FRIDAY:
+        return c.getFriday() == 1;
+      case Calendar.SATURDAY:
+        return c.getSaturday() == 1;
+      case Calendar.SUNDAY:
+        return c.getSunday() == 1;
+      default:
+        return false;
+    }
+  }
+}
@@ -15,7 +15,7 @@
  */
 package com.kurtraschke.wmata.gtfsrealtime.services;
 
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
 
 import com.google.inject.Provider;
 
@@ -26,12 +26,12 @@ import javax.inject.Named;
 
 public class AgencyTimeZoneProvider implements Provider<TimeZone> {
 
-  private CalendarServiceData _csd;
+  private GtfsRelationalDao _dao;
   private String _agencyId;
 
   @Inject
-  public void setCalendarServiceData(CalendarServiceData csd) {
-    _csd = csd;
+  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
+    _dao = dao;
   }
 
   @Inject
@@ -42,7 +42,7 @@ public class AgencyTimeZoneProvider implements Provider<TimeZone> {
 
   @Override
   public TimeZone get() {
-    return _csd.getTimeZoneForAgencyId(_agencyId);
+    return TimeZone.getTimeZone(_dao.getAgencyForId(_agencyId).getTimezone());
   }
 
 }
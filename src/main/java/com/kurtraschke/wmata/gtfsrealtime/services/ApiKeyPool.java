@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import com.google.common.hash.Hashing;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.services.PriorityRateLimiter.Priority;
+
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * The WMATA API keys available to make requests with, each with its own rate
+ * limiter and daily quota.
+ *
+ * {@code WMATA.key} may list several keys, separated by commas. Each request
+ * goes to the key it would wait least for, and among equals, to the one with
+ * the most quota left; total throughput therefore grows with the number of
+ * keys. A key whose requests are refused as unauthorized is rested for
+ * {@value #AUTH_COOLDOWN_MINUTES} minutes, one which is throttled for as long
+ * as the API asks (or a minute if it does not say), and one which has spent
+ * its daily quota until the next day. A throttled key is never taken out of
+ * rotation when it is the only one left; its requests are held back on its
+ * rate limiter instead, for as long as the API asks (or a second), so that
+ * they are slowed down rather than refused.
+ *
+ * Keys are identified in logs and metrics by a short hash, never by the key
+ * itself.
+ *
+ * @author kurt
+ */
+@Singleton
+public class ApiKeyPool {
+
+  private static final Logger _log = LoggerFactory.getLogger(ApiKeyPool.class);
+
+  private static final long AUTH_COOLDOWN_MINUTES = 15;
+
+  private static final long DEFAULT_THROTTLE_COOLDOWN_SECONDS = 60;
+
+  /**
+   * Deferrals add up, so a key throttled again and again is held back for
+   * longer each time.
+   */
+  private static final long DEFAULT_THROTTLE_DEFER_SECONDS = 1;
+
+  private String _keyList;
+  private double _rateLimit;
+  private double _realtimeReserve = 1;
+  private double _alertsReserve = 1;
+  private long _dailyQuota = 0;
+  private QuotaLedger _ledger;
+  private MetricsRegistry _metrics;
+
+  private List<ApiKey> _keys;
+
+  @Inject
+  public void setKeys(@Named("WMATA.key")
+  String keyList) {
+    _keyList = keyList;
+  }
+
+  /**
+   * Requests per second, for each key.
+   */
+  @Inject
+  public void setRateLimit(@Named("WMATA.rateLimit")
+  double rateLimit) {
+    _rateLimit = rateLimit;
+  }
+
+  /**
+   * Tokens kept back from alerts and schedules, so that a vehicle positions
+   * request never has to wait behind them.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setRealtimeReserve(@Named("WMATA.rateLimit.realtimeReserve")
+  double realtimeReserve) {
+    _realtimeReserve = realtimeReserve;
+  }
+
+  /**
+   * Tokens kept back from schedules, so that alerts never have to wait behind
+   * them.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setAlertsReserve(@Named("WMATA.rateLimit.alertsReserve")
+  double alertsReserve) {
+    _alertsReserve = alertsReserve;
+  }
+
+  /**
+   * Calls per day, for each key.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setDailyQuota(@Named("WMATA.dailyQuota")
+  long dailyQuota) {
+    _dailyQuota = dailyQuota;
+  }
+
+  @Inject
+  public void setQuotaLedger(QuotaLedger ledger) {
+    _ledger = ledger;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    _metrics = metrics;
+  }
+
+  @PostConstruct
+  public void start() {
+    List<ApiKey> keys = new ArrayList<>();
+
+    for (String key : _keyList.split(",")) {
+      key = key.trim();
+      if (!key.isEmpty()) {
+        keys.add(newKey(key));
+      }
+    }
+
+    /*
+     * Requests are still rate limited with no key configured, as against a
+     * local simulator.
+     */
+    if (keys.isEmpty()) {
+      keys.add(newKey(""));
+    }
+
+    _keys = Collections.unmodifiableList(keys);
+
+    if (_rateLimit > 9) {
+      _log.warn("API rate limit set to {}, greater than default rate limit of 9 queries/second", _rateLimit);
+    }
+
+    for (final Priority priority : Priority.values()) {
+      _metrics.gauge("wmata_ratelimiter_waiting",
+          "API requests waiting on the rate limiter", new Gauge() {
+            @Override
+            public double getValue() {
+              int waiting = 0;
+              for (ApiKey key : _keys) {
+                waiting += key.limiter.getWaiting(priority);
+              }
+              return waiting;
+            }
+          }, "priority", priority.name().toLowerCase());
+    }
+
+    for (final ApiKey key : _keys) {
+      _metrics.gauge("wmata_api_key_available",
+          "Whether each API key is in rotation", new Gauge() {
+            @Override
+            public double getValue() {
+              return isAvailable(key, System.currentTimeMillis()) ? 1 : 0;
+            }
+          }, "key", key.id);
+    }
+  }
+
+  /**
+   * @return the number of keys configured, whether or not they are currently
+   *         in rotation.
+   */
+  public int getKeyCount() {
+    return _keys.size();
+  }
+
+  /**
+   * Chooses the key to make a request with.
+   *
+   * @param needsKey whether the request is to be made with the key, or only
+   *          counted against its rate limit, as for the MetroAlerts feeds
+   * @throws IOException if the request needs a key and none is in rotation
+   */
+  ApiKey select(Priority priority, boolean needsKey) throws IOException {
+    long now = System.currentTimeMillis();
+    ApiKey best = null;
+    double bestWait = Double.MAX_VALUE;
+    long bestRemaining = Long.MIN_VALUE;
+
+    for (ApiKey key : _keys) {
+      if (needsKey && !isAvailable(key, now)) {
+        continue;
+      }
+
+      double wait = key.limiter.getExpectedWait(priority);
+      long remaining = (_dailyQuota > 0) ? _dailyQuota
+          - _ledger.getUsedByApiKey(key.id) : 0;
+
+      if (wait < bestWait || (wait == bestWait && remaining > bestRemaining)) {
+        best = key;
+        bestWait = wait;
+        bestRemaining = remaining;
+      }
+    }
+
+    if (best == null) {
+      throw new IOException(
+          "No WMATA API key in rotation; all are throttled, refused or out of quota");
+    }
+
+    return best;
+  }
+
+  /**
+   * Takes the key out of rotation for a while if the response shows it is
+   * being refused or throttled.
+   *
+   * @param retryAfterSeconds how long the response asked us to wait, or -1
+   */
+  void recordResponse(ApiKey key, int status, long retryAfterSeconds) {
+    if (status == HttpStatus.SC_UNAUTHORIZED
+        || status == HttpStatus.SC_FORBIDDEN) {
+      rest(key, TimeUnit.MINUTES.toMillis(AUTH_COOLDOWN_MINUTES), "HTTP "
+          + status);
+    } else if (status == 429) {
+      if (isAnotherAvailable(key, System.currentTimeMillis())) {
+        rest(key, TimeUnit.SECONDS.toMillis((retryAfterSeconds > 0)
+            ? retryAfterSeconds : DEFAULT_THROTTLE_COOLDOWN_SECONDS),
+            "throttled");
+      } else {
+        long millis = TimeUnit.SECONDS.toMillis((retryAfterSeconds > 0)
+            ? retryAfterSeconds : DEFAULT_THROTTLE_DEFER_SECONDS);
+        key.limiter.defer(millis);
+        _log.warn("Holding back requests on API key " + key.id + " for "
+            + (millis / 1000) + " seconds: throttled, and no other key in rotation");
+      }
+    }
+  }
+
+  private ApiKey newKey(String key) {
+    return new ApiKey(key, new PriorityRateLimiter(_rateLimit,
+        _realtimeReserve, _alertsReserve));
+  }
+
+  private void rest(ApiKey key, long millis, String reason) {
+    key.restUntil = System.currentTimeMillis() + millis;
+    _log.warn("Taking API key " + key.id + " out of rotation for "
+        + (millis / 1000) + " seconds: " + reason);
+  }
+
+  private boolean isAnotherAvailable(ApiKey key, long now) {
+    for (ApiKey other : _keys) {
+      if (other != key && isAvailable(other, now)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isAvailable(ApiKey key, long now) {
+    if (key.restUntil > now) {
+      return false;
+    }
+    return _dailyQuota <= 0 || _ledger.getUsedByApiKey(key.id) < _dailyQuota;
+  }
+
+  static class ApiKey {
+    final String key;
+    final String id;
+    final PriorityRateLimiter limiter;
+    volatile long restUntil;
+
+    ApiKey(String key, PriorityRateLimiter limiter) {
+      this.key = key;
+      this.id = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString().substring(
+          0, 8);
+      this.limiter = limiter;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import java.util.Arrays;
+
+/**
+ * Solves the assignment problem: given a matrix of costs, pairs each row with
+ * a different column so that the total cost is least, by the Hungarian
+ * algorithm in O(n<sup>2</sup>m) time for n rows and m columns.
+ *
+ * @author kurt
+ */
+final class Assignment {
+
+  private Assignment() {
+
+  }
+
+  /**
+   * @param cost a rectangular matrix of costs, indexed by row then column
+   * @return the column assigned to each row, or -1 for rows left without one
+   *         because there are more rows than columns
+   */
+  static int[] solve(double[][] cost) {
+    int rows = cost.length;
+    int columns = (rows > 0) ? cost[0].length : 0;
+
+    if (rows > columns) {
+      double[][] transposed = new double[columns][rows];
+      for (int i = 0; i < rows; i++) {
+        for (int j = 0; j < columns; j++) {
+          transposed[j][i] = cost[i][j];
+        }
+      }
+
+      int[] columnToRow = solve(transposed);
+      int[] rowToColumn = new int[rows];
+      Arrays.fill(rowToColumn, -1);
+      for (int j = 0; j < columns; j++) {
+        rowToColumn[columnToRow[j]] = j;
+      }
+      return rowToColumn;
+    }
+
+    /*
+     * Rows and columns are numbered from 1 below; column 0 is a sentinel to
+     * which each row is first attached before an augmenting path moves it to
+     * a real column.
+     */
+    double[] u = new double[rows + 1];
+    double[] v = new double[columns + 1];
+    int[] rowOfColumn = new int[columns + 1];
+    int[] way = new int[columns + 1];
+    double[] minSlack = new double[columns + 1];
+    boolean[] used = new boolean[columns + 1];
+
+    for (int i = 1; i <= rows; i++) {
+      rowOfColumn[0] = i;
+      int j0 = 0;
+      Arrays.fill(minSlack, Double.POSITIVE_INFINITY);
+      Arrays.fill(used, false);
+
+      do {
+        used[j0] = true;
+        int i0 = rowOfColumn[j0];
+        double delta = Double.POSITIVE_INFINITY;
+        int j1 = 0;
+
+        for (int j = 1; j <= columns; j++) {
+          if (!used[j]) {
+            double slack = cost[i0 - 1][j - 1] - u[i0] - v[j];
+            if (slack < minSlack[j]) {
+              minSlack[j] = slack;
+              way[j] = j0;
+            }
+            if (minSlack[j] < delta) {
+              delta = minSlack[j];
+              j1 = j;
+            }
+          }
+        }
+
+        for (int j = 0; j <= columns; j++) {
+          if (used[j]) {
+            u[rowOfColumn[j]] += delta;
+            v[j] -= delta;
+          } else {
+            minSlack[j] -= delta;
+          }
+        }
+
+        j0 = j1;
+      } while (rowOfColumn[j0] != 0);
+
+      do {
+        int j1 = way[j0];
+        rowOfColumn[j0] = rowOfColumn[j1];
+        j0 = j1;
+      } while (j0 != 0);
+    }
+
+    int[] rowToColumn = new int[rows];
+    Arrays.fill(rowToColumn, -1);
+    for (int j = 1; j <= columns; j++) {
+      if (rowOfColumn[j] != 0) {
+        rowToColumn[rowOfColumn[j] - 1] = j - 1;
+      }
+    }
+    return rowToColumn;
+  }
+}
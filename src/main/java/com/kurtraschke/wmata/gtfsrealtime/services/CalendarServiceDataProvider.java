@@ -1,43 +0,0 @@
-/*
- * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
- *
- * Licensed under the Apache License, Version 2.0 (the "License"); you may not
- * use this file except in compliance with the License. You may obtain a copy of
- * the License at
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
- * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
- * License for the specific language governing permissions and limitations under
- * the License.
- */
-package com.kurtraschke.wmata.gtfsrealtime.services;
-
-import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
-import org.onebusaway.gtfs.services.calendar.CalendarServiceDataFactory;
-
-import com.google.inject.Provider;
-
-import javax.inject.Inject;
-
-public class CalendarServiceDataProvider implements
-    Provider<CalendarServiceData> {
-
-  private GtfsRelationalDao _dao;
-
-  @Inject
-  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
-    _dao = dao;
-  }
-
-  @Override
-  public CalendarServiceData get() {
-    CalendarServiceDataFactory csdf = new CalendarServiceDataFactoryImpl(_dao);
-    CalendarServiceData csd = csdf.createData();
-    return csd;
-  }
-}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+/**
+ * Stops requests to an endpoint which keeps failing, so that an outage of the
+ * API is not met with a request for every vehicle in every poll.
+ *
+ * After {@value #FAILURE_THRESHOLD} failures in a row the circuit opens, and
+ * requests fail at once without being sent. Once the cooldown has passed, a
+ * single trial request is let through: if it succeeds the circuit closes, and
+ * if not it opens again for twice as long, up to
+ * {@value #MAX_COOLDOWN_MILLIS} milliseconds.
+ *
+ * Only failures of the endpoint count: transport errors and server errors.
+ * Any other response, even an error, shows the endpoint is up.
+ *
+ * @author kurt
+ */
+class CircuitBreaker {
+
+  static final int FAILURE_THRESHOLD = 5;
+
+  static final long MIN_COOLDOWN_MILLIS = 15 * 1000;
+
+  static final long MAX_COOLDOWN_MILLIS = 5 * 60 * 1000;
+
+  private int _failures = 0;
+  private long _cooldown = MIN_COOLDOWN_MILLIS;
+  private long _openUntil = 0;
+  private boolean _open = false;
+  private boolean _trialInFlight = false;
+
+  /**
+   * @return whether a request may be made now; if so, its outcome must be
+   *         reported through {@link #recordSuccess()},
+   *         {@link #recordFailure()} or {@link #release()}.
+   */
+  synchronized boolean allowRequest() {
+    if (!_open) {
+      return true;
+    }
+
+    if (_trialInFlight || System.currentTimeMillis() < _openUntil) {
+      return false;
+    }
+
+    _trialInFlight = true;
+    return true;
+  }
+
+  synchronized void recordSuccess() {
+    _failures = 0;
+    _cooldown = MIN_COOLDOWN_MILLIS;
+    _open = false;
+    _trialInFlight = false;
+  }
+
+  synchronized void recordFailure() {
+    _failures++;
+
+    if (_trialInFlight) {
+      _trialInFlight = false;
+      _cooldown = Math.min(MAX_COOLDOWN_MILLIS, _cooldown * 2);
+      _openUntil = System.currentTimeMillis() + _cooldown;
+    } else if (!_open && _failures >= FAILURE_THRESHOLD) {
+      _open = true;
+      _openUntil = System.currentTimeMillis() + _cooldown;
+    }
+  }
+
+  /**
+   * Reports a request which neither succeeded nor failed, such as one
+   * interrupted before it was sent.
+   */
+  synchronized void release() {
+    _trialInFlight = false;
+  }
+
+  synchronized boolean isOpen() {
+    return _open;
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import com.kurtraschke.wmata.gtfsrealtime.events.ApiCallEvent;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.services.ApiKeyPool.ApiKey;
+import com.kurtraschke.wmata.gtfsrealtime.services.PriorityRateLimiter.Priority;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Fetches responses from the WMATA API over HTTP, subject to the configured
+ * rate limit.
+ *
+ * Each request is made with whichever API key has the most headroom; see
+ * {@link ApiKeyPool}. Requests share each key's rate limit by priority:
+ * vehicle positions first, then alerts, then everything else, which is
+ * fetched only to map routes and trips. Schedules are queued fairly by route;
+ * see {@link PriorityRateLimiter}.
+ *
+ * Requests which fail for want of a response, or with a server error or
+ * throttling, are retried a couple of times with jittered exponential
+ * backoff, waiting at least as long as any {@code Retry-After} asks. Each
+ * endpoint also has a {@link CircuitBreaker}: while an endpoint is down,
+ * requests to it fail at once, without taking a rate limiter token.
+ *
+ * @author kurt
+ */
+@Singleton
+public class HttpResponseSource implements ResponseSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(HttpResponseSource.class);
+
+  /**
+   * The first retry waits between half this and this long; each subsequent
+   * retry, twice as long as the one before.
+   */
+  private static final long BASE_BACKOFF_MILLIS = 1000;
+
+  private static final long MAX_BACKOFF_MILLIS = 16 * 1000;
+
+  /**
+   * A server asking us to wait longer than this is not retried at all; the
+   * next poll will try again.
+   */
+  private static final long MAX_RETRY_AFTER_SECONDS = 10;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
+  private static final int SOCKET_TIMEOUT_MILLIS = 30 * 1000;
+
+  private final ConcurrentMap<String, CircuitBreaker> _breakers = new ConcurrentHashMap<>();
+  private final Random _random = new Random();
+
+  private int _maxRetries = 2;
+  private HttpClientConnectionManager _connectionManager;
+  private CloseableHttpClient _client;
+  private ApiKeyPool _keys;
+  private QuotaLedger _ledger;
+  private MetricsRegistry _metrics;
+  private PipelineEvents _events;
+
+  @PostConstruct
+  public void start() {
+    _connectionManager = new PoolingHttpClientConnectionManager();
+    _client = HttpClients.custom().setConnectionManager(_connectionManager).setDefaultRequestConfig(
+        RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT_MILLIS).setConnectionRequestTimeout(
+            CONNECT_TIMEOUT_MILLIS).setSocketTimeout(SOCKET_TIMEOUT_MILLIS).build()).build();
+  }
+
+  @PreDestroy
+  public void stop() {
+    _connectionManager.shutdown();
+  }
+
+  /**
+   * How many times to retry a request which failed for want of a response, or
+   * with a server error or throttling, before giving up.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setMaxRetries(@Named("WMATA.maxRetries")
+  int maxRetries) {
+    _maxRetries = maxRetries;
+  }
+
+  @Inject
+  public void setApiKeyPool(ApiKeyPool keys) {
+    _keys = keys;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    _metrics = metrics;
+  }
+
+  @Inject
+  public void setQuotaLedger(QuotaLedger ledger) {
+    _ledger = ledger;
+  }
+
+  @Inject
+  public void setPipelineEvents(PipelineEvents events) {
+    _events = events;
+  }
+
+  @Override
+  public byte[] fetch(URI uri) throws IOException {
+    String endpoint = endpointName(uri);
+    Priority priority = priority(uri);
+    CircuitBreaker breaker = breaker(endpoint);
+
+    for (int attempt = 0;; attempt++) {
+      if (!breaker.allowRequest()) {
+        _metrics.counter("wmata_http_rejected_total",
+            "API requests not sent because the endpoint's circuit is open",
+            "endpoint", endpoint).inc();
+        throw new IOException("Circuit open for " + endpoint
+            + " after repeated failures");
+      }
+
+      ApiKey key;
+
+      try {
+        key = _keys.select(priority, priority != Priority.ALERTS);
+      } catch (IOException e) {
+        breaker.release();
+        throw e;
+      }
+
+      long delay;
+
+      /*
+       * Anything which escapes without an outcome being recorded, whether an
+       * interruption or a bug, must still release the breaker, or a trial
+       * request would be left in flight for good.
+       */
+      boolean recorded = false;
+
+      try {
+        byte[] body = fetchOnce(uri, endpoint, priority, key);
+        breaker.recordSuccess();
+        recorded = true;
+        return body;
+      } catch (HttpStatusException e) {
+        long retryAfter = e.getRetryAfterSeconds();
+        if (e.getStatus() < 500) {
+          breaker.recordSuccess();
+          recorded = true;
+          if (e.getStatus() != 429 || attempt >= _maxRetries
+              || retryAfter > MAX_RETRY_AFTER_SECONDS) {
+            throw e;
+          }
+          /*
+           * The key has been rested, or held back if it is the only one; try
+           * again, with another key if there is one.
+           */
+        } else {
+          breaker.recordFailure();
+          recorded = true;
+          if (attempt >= _maxRetries || retryAfter > MAX_RETRY_AFTER_SECONDS) {
+            throw e;
+          }
+        }
+        delay = Math.max(backoff(attempt), TimeUnit.SECONDS.toMillis(retryAfter));
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        breaker.recordFailure();
+        recorded = true;
+        if (attempt >= _maxRetries) {
+          throw e;
+        }
+        delay = backoff(attempt);
+      } finally {
+        if (!recorded) {
+          breaker.release();
+        }
+      }
+
+      _metrics.counter("wmata_http_retries_total",
+          "API requests retried after a failure", "endpoint", endpoint).inc();
+
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted waiting to retry");
+      }
+    }
+  }
+
+  private byte[] fetchOnce(URI uri, String endpoint, Priority priority,
+      ApiKey key) throws IOException {
+    boolean needsKey = priority != Priority.ALERTS;
+    HttpGet httpget = new HttpGet(needsKey ? withKey(uri, key) : uri);
+
+    ApiCallEvent event = _events.newApiCallEvent();
+    event.begin();
+    event.setEndpoint(endpoint);
+
+    double limiterWait = key.limiter.acquire(priority, flow(endpoint, uri));
+    _metrics.histogram("wmata_ratelimiter_wait_seconds",
+        "Time spent waiting on the API rate limiter", "priority",
+        priority.name().toLowerCase()).observe(limiterWait);
+    event.setLimiterWait(limiterWait);
+
+    long start = System.nanoTime();
+    String outcome = "error";
+
+    try (CloseableHttpResponse response = _client.execute(httpget)) {
+      _ledger.record(needsKey ? key.id : null, endpoint, priority);
+      int status = response.getStatusLine().getStatusCode();
+      Header retryAfterHeader = response.getFirstHeader("Retry-After");
+      long retryAfter = HttpStatusException.parseRetryAfter((retryAfterHeader != null)
+          ? retryAfterHeader.getValue() : null);
+      if (needsKey) {
+        _keys.recordResponse(key, status, retryAfter);
+      }
+      outcome = Integer.toString(status);
+      event.setStatus(status);
+      if (status != HttpStatus.SC_OK) {
+        EntityUtils.consume(response.getEntity());
+        throw new HttpStatusException(status, retryAfter, "HTTP " + status
+            + " from " + uri.getPath());
+      }
+      byte[] body = EntityUtils.toByteArray(response.getEntity());
+      _metrics.counter("wmata_http_response_bytes_total",
+          "Bytes received from the API", "endpoint", endpoint).inc(body.length);
+      event.setBytes(body.length);
+      return body;
+    } finally {
+      _metrics.histogram("wmata_http_request_seconds",
+          "API request latency, including reading the body", "endpoint",
+          endpoint).observeNanos(System.nanoTime() - start);
+      _metrics.counter("wmata_http_requests_total",
+          "API requests by HTTP status, or error if no response was received",
+          "endpoint", endpoint, "status", outcome).inc();
+      event.commit();
+    }
+  }
+
+  /**
+   * @return a delay before the given retry: exponential in the number of
+   *         attempts so far, with the upper half jittered so that retries from
+   *         several threads do not arrive together.
+   */
+  private long backoff(int attempt) {
+    long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+    return ceiling / 2 + (long) (_random.nextDouble() * (ceiling / 2));
+  }
+
+  private CircuitBreaker breaker(final String endpoint) {
+    CircuitBreaker breaker = _breakers.get(endpoint);
+
+    if (breaker == null) {
+      breaker = new CircuitBreaker();
+      CircuitBreaker existing = _breakers.putIfAbsent(endpoint, breaker);
+      if (existing != null) {
+        return existing;
+      }
+
+      final CircuitBreaker registered = breaker;
+      _metrics.gauge("wmata_circuit_open",
+          "Whether requests to each endpoint are being refused after repeated failures",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return registered.isOpen() ? 1 : 0;
+            }
+          }, "endpoint", endpoint);
+    }
+
+    return breaker;
+  }
+
+  private static URI withKey(URI uri, ApiKey key) throws IOException {
+    try {
+      return new URIBuilder(uri).addParameter(
+          WMATAAPIService.API_KEY_PARAM_NAME, key.key).build();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static Priority priority(URI uri) {
+    String path = uri.getPath();
+    if (path.endsWith("/JBusPositions")) {
+      return Priority.REALTIME;
+    } else if (path.endsWith(".aspx")) {
+      return Priority.ALERTS;
+    } else {
+      return Priority.BACKFILL;
+    }
+  }
+
+  /**
+   * Identifies the flow a request belongs to within its priority: the
+   * endpoint, plus the route for per-route endpoints.
+   */
+  private static String flow(String endpoint, URI uri) {
+    for (NameValuePair parameter : URLEncodedUtils.parse(uri,
+        StandardCharsets.UTF_8.name())) {
+      if (parameter.getName().equalsIgnoreCase("routeID")) {
+        return endpoint + "/" + parameter.getValue();
+      }
+    }
+    return endpoint;
+  }
+
+  /**
+   * Names an endpoint for metrics: the last path segment, plus the query for
+   * the MetroAlerts feeds, which are distinguished only by query.
+   */
+  private static String endpointName(URI uri) {
+    String path = uri.getPath();
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    if (name.endsWith(".aspx")) {
+      name = name.substring(0, name.length() - 5) + "_" + uri.getQuery();
+    }
+    return name;
+  }
+}
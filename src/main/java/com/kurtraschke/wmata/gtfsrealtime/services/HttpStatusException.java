@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the API answers a request with a status other than 200.
+ *
+ * @author kurt
+ */
+public class HttpStatusException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int _status;
+  private final long _retryAfterSeconds;
+
+  public HttpStatusException(int status, long retryAfterSeconds, String message) {
+    super(message);
+    _status = status;
+    _retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public int getStatus() {
+    return _status;
+  }
+
+  /**
+   * @return how long the API asked us to wait before trying again, in
+   *         seconds, or -1 if it did not say.
+   */
+  public long getRetryAfterSeconds() {
+    return _retryAfterSeconds;
+  }
+
+  /**
+   * Parses a {@code Retry-After} header value given in seconds. The header may
+   * also be an HTTP date, which the WMATA API does not use and which is
+   * treated as absent.
+   *
+   * @return the delay in seconds, or -1 if there is none
+   */
+  static long parseRetryAfter(String retryAfter) {
+    if (retryAfter != null) {
+      try {
+        return Math.max(0, Long.parseLong(retryAfter.trim()));
+      } catch (NumberFormatException e) {
+        // an HTTP date
+      }
+    }
+    return -1;
+  }
+}
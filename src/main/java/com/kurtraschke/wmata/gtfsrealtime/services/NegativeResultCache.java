@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Remembers lookups which failed, and why, so that they are not retried on
+ * every poll. Each failure puts off the next attempt for a delay which
+ * depends on the reason, and doubles with each consecutive failure, up to a
+ * limit; a success forgets the failures.
+ *
+ * Keys are whatever identifies the lookup, such as a
+ * {@link com.kurtraschke.wmata.gtfsrealtime.model.TripMapKey} or a
+ * {@link com.kurtraschke.wmata.gtfsrealtime.model.RouteScheduleKey}.
+ * Entries are dropped once they have gone unretried for as long as their
+ * reason's longest delay.
+ *
+ * @author kurt
+ */
+@Singleton
+public class NegativeResultCache {
+
+  private static final Logger _log = LoggerFactory.getLogger(NegativeResultCache.class);
+
+  private static final long PRUNE_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+  public enum Reason {
+    /**
+     * The route schedule could not be downloaded; usually transient.
+     */
+    SCHEDULE_UNAVAILABLE(1, 60),
+
+    /**
+     * The vehicle's trip is not in the WMATA route schedule.
+     */
+    NOT_IN_SCHEDULE(10, 4 * 60),
+
+    /**
+     * The WMATA route could not be mapped to a GTFS route.
+     */
+    ROUTE_UNMAPPED(30, 24 * 60),
+
+    /**
+     * The GTFS has no trips on the route on the service date.
+     */
+    NO_CANDIDATES(30, 24 * 60),
+
+    /**
+     * No GTFS trip scored under {@code tripMapping.scoreLimit}.
+     */
+    SCORE_TOO_HIGH(30, 24 * 60),
+
+    /**
+     * Mapping failed with an unexpected error.
+     */
+    ERROR(10, 4 * 60);
+
+    final long initialDelayMillis;
+    final long maxDelayMillis;
+
+    private Reason(long initialDelayMinutes, long maxDelayMinutes) {
+      this.initialDelayMillis = TimeUnit.MINUTES.toMillis(initialDelayMinutes);
+      this.maxDelayMillis = TimeUnit.MINUTES.toMillis(maxDelayMinutes);
+    }
+  }
+
+  private Clock _clock;
+
+  private final ConcurrentMap<Object, Failure> _failures = new ConcurrentHashMap<>();
+  private volatile long _prunedAt;
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    for (final Reason reason : Reason.values()) {
+      metrics.gauge("wmata_negative_cache_entries",
+          "Failed lookups remembered so as not to retry them yet, by reason",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return count(reason);
+            }
+          }, "reason", reason.name().toLowerCase());
+    }
+  }
+
+  /**
+   * @return the reason the lookup last failed, if it is too soon to retry it,
+   *         or null if it should be tried.
+   */
+  public Reason get(Object key) {
+    Failure failure = _failures.get(key);
+    if (failure != null && _clock.currentTimeMillis() < failure.retryAt) {
+      return failure.reason;
+    }
+    return null;
+  }
+
+  /**
+   * Records a failed lookup, putting off the next attempt.
+   *
+   * @return how long until the lookup may be retried, in milliseconds
+   */
+  public long recordFailure(Object key, Reason reason) {
+    long now = _clock.currentTimeMillis();
+    Failure previous = _failures.get(key);
+
+    int count = (previous != null && previous.reason == reason)
+        ? previous.count + 1 : 1;
+    long delay = reason.initialDelayMillis << Math.min(count - 1, 16);
+    delay = Math.min(delay, reason.maxDelayMillis);
+
+    _failures.put(key, new Failure(reason, count, now + delay));
+
+    _log.debug("Not retrying " + key + " for " + (delay / 1000) + " s ("
+        + reason + ", " + count + " consecutive failures)");
+
+    if (now - _prunedAt >= PRUNE_INTERVAL_MILLIS) {
+      _prunedAt = now;
+      prune(now);
+    }
+
+    return delay;
+  }
+
+  /**
+   * Forgets any failures of the lookup.
+   */
+  public void recordSuccess(Object key) {
+    _failures.remove(key);
+  }
+
+  private void prune(long now) {
+    Iterator<Map.Entry<Object, Failure>> it = _failures.entrySet().iterator();
+    while (it.hasNext()) {
+      Failure failure = it.next().getValue();
+      if (now - failure.retryAt > failure.reason.maxDelayMillis) {
+        it.remove();
+      }
+    }
+  }
+
+  private int count(Reason reason) {
+    int count = 0;
+    for (Failure failure : _failures.values()) {
+      if (failure.reason == reason) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static class Failure {
+
+    final Reason reason;
+    final int count;
+    final long retryAt;
+
+    Failure(Reason reason, int count, long retryAt) {
+      this.reason = reason;
+      this.count = count;
+      this.retryAt = retryAt;
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import com.kurtraschke.wmata.gtfsrealtime.AgencyTimeZone;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.services.PriorityRateLimiter.Priority;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Chooses how long to wait between vehicle polls so that the day's API quota
+ * lasts the whole day.
+ *
+ * Without a configured quota, vehicles are polled at the fixed
+ * {@code refreshInterval.vehicles}. With one, what is left of the quota, less
+ * a reserve for schedule downloads, is spread over the rest of the day in
+ * proportion to an hourly weight: heavier in the peaks, lighter overnight.
+ * The current hour's weight is further scaled by how many vehicles are out
+ * compared with the recent norm, so polling speeds up when there is more to
+ * see. Spending is re-planned before every poll from the calls actually
+ * recorded by the {@link QuotaLedger}, so schedule storms and restarts are
+ * absorbed by the rest of the day instead of running the quota dry.
+ *
+ * The interval never falls below {@code refreshInterval.vehicles} nor rises
+ * above {@code refreshInterval.vehiclesMax}.
+ *
+ * @author kurt
+ */
+@Singleton
+public class PollPlanner {
+
+  private static final Logger _log = LoggerFactory.getLogger(PollPlanner.class);
+
+  /**
+   * Relative polling rate for each hour of the day, starting at midnight.
+   */
+  private static final double[] DEFAULT_HOURLY_WEIGHTS = {
+      0.25, 0.25, 0.25, 0.25, 0.5, 1, 2, 3, 3, 2, 1.5, 1.5, 1.5, 1.5, 2, 3, 3,
+      3, 2, 1.5, 1, 1, 0.75, 0.5};
+
+  /**
+   * How quickly the typical vehicle count follows the current one, per poll;
+   * at a 30 second interval, this averages over an hour or two.
+   */
+  private static final double VEHICLE_SMOOTHING = 0.005;
+
+  private static final double MIN_ACTIVITY = 0.5;
+  private static final double MAX_ACTIVITY = 2.0;
+
+  private QuotaLedger _ledger;
+  private ApiKeyPool _keys;
+  private Clock _clock;
+  private TimeZone _timeZone;
+
+  private int _minInterval;
+  private int _maxInterval = 300;
+  private long _dailyQuota = 0;
+  private double _scheduleReserve = 0.1;
+  private double[] _hourlyWeights = DEFAULT_HOURLY_WEIGHTS;
+
+  /**
+   * Touched only by the polling thread.
+   */
+  private double _typicalVehicles = -1;
+  private boolean _exhausted = false;
+
+  private volatile double _plannedInterval;
+
+  @Inject
+  public void setQuotaLedger(QuotaLedger ledger) {
+    _ledger = ledger;
+  }
+
+  @Inject
+  public void setApiKeyPool(ApiKeyPool keys) {
+    _keys = keys;
+  }
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setTimeZone(@AgencyTimeZone
+  TimeZone timeZone) {
+    _timeZone = timeZone;
+  }
+
+  @Inject
+  public void setMinInterval(@Named("refreshInterval.vehicles")
+  int minInterval) {
+    _minInterval = minInterval;
+    _plannedInterval = minInterval;
+  }
+
+  @com.google.inject.Inject(optional = true)
+  public void setMaxInterval(@Named("refreshInterval.vehiclesMax")
+  int maxInterval) {
+    _maxInterval = maxInterval;
+  }
+
+  /**
+   * Calls per day for each API key; the quota planned for is this times the
+   * number of keys.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setDailyQuota(@Named("WMATA.dailyQuota")
+  long dailyQuota) {
+    _dailyQuota = dailyQuota;
+  }
+
+  /**
+   * The fraction of the daily quota kept for schedule and route downloads.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setScheduleReserve(@Named("WMATA.quotaReserve")
+  double scheduleReserve) {
+    _scheduleReserve = scheduleReserve;
+  }
+
+  /**
+   * Overrides the hourly weights: 24 comma-separated numbers, starting at
+   * midnight.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setHourlyWeights(@Named("WMATA.pollWeights")
+  String hourlyWeights) {
+    String[] parts = hourlyWeights.split(",");
+    if (parts.length != 24) {
+      throw new IllegalArgumentException(
+          "WMATA.pollWeights must have 24 values, not " + parts.length);
+    }
+
+    double[] weights = new double[24];
+    for (int i = 0; i < 24; i++) {
+      weights[i] = Double.parseDouble(parts[i].trim());
+      if (weights[i] <= 0) {
+        throw new IllegalArgumentException(
+            "WMATA.pollWeights must all be positive");
+      }
+    }
+    _hourlyWeights = weights;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    metrics.gauge("wmata_poll_planned_interval_seconds",
+        "Planned interval until the next vehicle poll", new Gauge() {
+          @Override
+          public double getValue() {
+            return _plannedInterval;
+          }
+        });
+  }
+
+  /**
+   * @param vehicleCount the number of vehicles in the poll just made
+   * @return the number of seconds to wait before polling vehicles again
+   */
+  public double nextVehicleInterval(int vehicleCount) {
+    double interval = (_dailyQuota > 0) ? plan(vehicleCount) : _minInterval;
+    _plannedInterval = interval;
+    return interval;
+  }
+
+  private double plan(int vehicleCount) {
+    long now = _clock.currentTimeMillis();
+
+    long quota = _dailyQuota * _keys.getKeyCount();
+    long reserve = (long) (quota * _scheduleReserve);
+    long budget = quota
+        - Math.max(reserve, _ledger.getUsed(Priority.BACKFILL))
+        - _ledger.getUsed(Priority.REALTIME);
+
+    if (budget <= 0) {
+      if (!_exhausted) {
+        _log.warn("Daily API quota for vehicle polls is spent; polling every "
+            + _maxInterval + " seconds for the rest of the day");
+        _exhausted = true;
+      }
+      return _maxInterval;
+    }
+    _exhausted = false;
+
+    double weightNow = _hourlyWeights[hourOf(now)] * activity(vehicleCount);
+    double rate = budget * weightNow / remainingWeight(now);
+
+    return Math.min(_maxInterval, Math.max(_minInterval, 1 / rate));
+  }
+
+  /**
+   * @return how busy the system is now compared with the last hour or two,
+   *         judged by the number of vehicles reporting.
+   */
+  private double activity(int vehicleCount) {
+    if (vehicleCount <= 0) {
+      return 1;
+    }
+
+    if (_typicalVehicles < 0) {
+      _typicalVehicles = vehicleCount;
+    } else {
+      _typicalVehicles += VEHICLE_SMOOTHING * (vehicleCount - _typicalVehicles);
+    }
+
+    return Math.min(MAX_ACTIVITY,
+        Math.max(MIN_ACTIVITY, vehicleCount / _typicalVehicles));
+  }
+
+  /**
+   * @return the hourly weights integrated over the rest of the day, in
+   *         weighted seconds.
+   */
+  private double remainingWeight(long now) {
+    ServiceDate today = DateTimeUtils.serviceDateFromDate(new Date(now));
+    long endOfDay = today.next().getAsDate(_timeZone).getTime();
+
+    Calendar c = Calendar.getInstance(_timeZone);
+    double weight = 0;
+    long t = now;
+
+    while (t < endOfDay) {
+      c.setTimeInMillis(t);
+      int hour = c.get(Calendar.HOUR_OF_DAY);
+      c.set(Calendar.MINUTE, 0);
+      c.set(Calendar.SECOND, 0);
+      c.set(Calendar.MILLISECOND, 0);
+      c.add(Calendar.HOUR_OF_DAY, 1);
+
+      long next = Math.min(c.getTimeInMillis(), endOfDay);
+      weight += (next - t) / 1000.0 * _hourlyWeights[hour];
+      t = next;
+    }
+
+    /*
+     * Never plan as if less than one poll's worth of the day remained, or the
+     * last seconds before midnight would spend whatever is left at once.
+     */
+    return Math.max(weight, _minInterval * _hourlyWeights[hourOf(now)]);
+  }
+
+  private int hourOf(long time) {
+    Calendar c = Calendar.getInstance(_timeZone);
+    c.setTimeInMillis(time);
+    return c.get(Calendar.HOUR_OF_DAY);
+  }
+}
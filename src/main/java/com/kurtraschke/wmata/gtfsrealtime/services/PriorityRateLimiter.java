@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket shared by requests of different priorities.
+ *
+ * Tokens accrue at the configured rate, up to about a second's worth, and each
+ * request takes one. When requests are waiting, the next token always goes to
+ * the highest priority waiting. Each class may also hold tokens in reserve
+ * for those above it: a request of a given priority is let through only if
+ * the reserves of all the higher classes would remain in the bucket after
+ * it. Lower classes therefore get the full rate in the long run, but a burst
+ * of them can never leave a higher class waiting for the bucket to refill.
+ *
+ * Within a class, waiting requests are grouped into flows, such as the
+ * schedule for one route, and served round robin, so one busy flow cannot
+ * starve the rest of its class.
+ *
+ * @author kurt
+ */
+public class PriorityRateLimiter {
+
+  public enum Priority {
+    /**
+     * Vehicle positions, on which the realtime feeds depend directly.
+     */
+    REALTIME,
+
+    /**
+     * Service alerts.
+     */
+    ALERTS,
+
+    /**
+     * Schedules and route lists, fetched to map trips and routes.
+     */
+    BACKFILL
+  }
+
+  private static final Priority[] PRIORITIES = Priority.values();
+
+  private final double _rate;
+  private final double _capacity;
+
+  /**
+   * The tokens which must be in the bucket for a request of each priority to
+   * be let through, including the one it takes.
+   */
+  private final double[] _thresholds = new double[PRIORITIES.length];
+
+  private final ReentrantLock _lock = new ReentrantLock();
+
+  /**
+   * Waiting requests for each priority, by flow, in round robin order. Guarded
+   * by {@link #_lock}.
+   */
+  private final List<Map<String, Deque<Waiter>>> _waiting = new ArrayList<>();
+
+  private double _tokens = 1;
+  private long _refilledAt = System.nanoTime();
+
+  /**
+   * @param rate tokens per second
+   * @param reserves tokens held back for each priority, indexed by ordinal,
+   *          from all the priorities below it
+   */
+  public PriorityRateLimiter(double rate, double... reserves) {
+    if (rate <= 0) {
+      throw new IllegalArgumentException("rate must be positive");
+    }
+
+    double reserved = 0;
+    for (int i = 0; i < PRIORITIES.length; i++) {
+      _thresholds[i] = 1 + reserved;
+      if (i < reserves.length) {
+        reserved += reserves[i];
+      }
+    }
+
+    _rate = rate;
+    _capacity = Math.max(rate, _thresholds[PRIORITIES.length - 1]);
+
+    for (int i = 0; i < PRIORITIES.length; i++) {
+      _waiting.add(new LinkedHashMap<String, Deque<Waiter>>());
+    }
+  }
+
+  /**
+   * Waits for a token.
+   *
+   * @param flow the flow within the priority class which the request belongs
+   *          to
+   * @return the time spent waiting, in seconds
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public double acquire(Priority priority, String flow)
+      throws InterruptedIOException {
+    long start = System.nanoTime();
+    Waiter waiter = new Waiter(_lock.newCondition());
+
+    _lock.lock();
+    try {
+      Map<String, Deque<Waiter>> flows = _waiting.get(priority.ordinal());
+      Deque<Waiter> queue = flows.get(flow);
+      if (queue == null) {
+        queue = new ArrayDeque<>();
+        flows.put(flow, queue);
+      }
+      queue.add(waiter);
+
+      try {
+        while (true) {
+          refill();
+
+          if (next() == waiter) {
+            double needed = _thresholds[priority.ordinal()] - _tokens;
+
+            if (needed <= 0) {
+              _tokens -= 1;
+              dequeue(flows, flow, queue);
+              signalNext();
+              break;
+            }
+
+            waiter.condition.awaitNanos((long) Math.ceil(needed / _rate
+                * TimeUnit.SECONDS.toNanos(1)));
+          } else {
+            waiter.condition.await();
+          }
+        }
+      } catch (InterruptedException e) {
+        queue.remove(waiter);
+        if (queue.isEmpty()) {
+          flows.remove(flow);
+        }
+        signalNext();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted waiting for rate limiter");
+      }
+    } finally {
+      _lock.unlock();
+    }
+
+    return (System.nanoTime() - start) / 1e9;
+  }
+
+  /**
+   * Empties the bucket so that no request is let through for the given time,
+   * as when the server has asked us to slow down.
+   */
+  public void defer(long millis) {
+    _lock.lock();
+    try {
+      refill();
+      _tokens = Math.min(_tokens, 0) - millis / 1e3 * _rate;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of requests of the given priority waiting for a token.
+   */
+  public int getWaiting(Priority priority) {
+    _lock.lock();
+    try {
+      int waiting = 0;
+      for (Deque<Waiter> queue : _waiting.get(priority.ordinal()).values()) {
+        waiting += queue.size();
+      }
+      return waiting;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * @return roughly how long a request of the given priority made now would
+   *         wait for a token, in seconds, counting the requests of the same or
+   *         higher priority already waiting.
+   */
+  public double getExpectedWait(Priority priority) {
+    _lock.lock();
+    try {
+      refill();
+
+      int ahead = 0;
+      for (int i = 0; i <= priority.ordinal(); i++) {
+        for (Deque<Waiter> queue : _waiting.get(i).values()) {
+          ahead += queue.size();
+        }
+      }
+
+      double needed = _thresholds[priority.ordinal()] + ahead - _tokens;
+      return Math.max(0, needed) / _rate;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    _tokens = Math.min(_capacity, _tokens + (now - _refilledAt) / 1e9 * _rate);
+    _refilledAt = now;
+  }
+
+  /**
+   * @return the waiter due the next token: the first in the first flow of the
+   *         highest priority with anybody waiting. Lower priorities need at
+   *         least as many tokens in the bucket, so there is no point looking
+   *         past it.
+   */
+  private Waiter next() {
+    for (Map<String, Deque<Waiter>> flows : _waiting) {
+      Iterator<Deque<Waiter>> it = flows.values().iterator();
+      if (it.hasNext()) {
+        return it.next().peek();
+      }
+    }
+    return null;
+  }
+
+  private void signalNext() {
+    Waiter next = next();
+    if (next != null) {
+      next.condition.signal();
+    }
+  }
+
+  /**
+   * Removes the head of the given flow, and moves the flow to the back of the
+   * line if it has more waiting.
+   */
+  private static void dequeue(Map<String, Deque<Waiter>> flows, String flow,
+      Deque<Waiter> queue) {
+    queue.poll();
+    flows.remove(flow);
+    if (!queue.isEmpty()) {
+      flows.put(flow, queue);
+    }
+  }
+
+  private static class Waiter {
+    final Condition condition;
+
+    Waiter(Condition condition) {
+      this.condition = condition;
+    }
+  }
+}
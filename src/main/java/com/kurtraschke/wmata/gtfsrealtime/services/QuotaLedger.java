@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Gauge;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.services.PriorityRateLimiter.Priority;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Counts the API calls made each day, by endpoint, priority and API key, so
+ * that polling can be planned around the daily quota (see
+ * {@link PollPlanner}), and keys which have spent theirs can be rested (see
+ * {@link ApiKeyPool}).
+ *
+ * Days are calendar days in the agency time zone. Counts are kept in a
+ * persistent cache, so a restart picks up where the day left off rather than
+ * forgetting the calls already made.
+ *
+ * @author kurt
+ */
+@Singleton
+public class QuotaLedger {
+
+  private static final long FLUSH_INTERVAL_MILLIS = 60 * 1000;
+
+  private static final Priority[] PRIORITIES = Priority.values();
+
+  private static final String NO_API_KEY = "-";
+
+  private Clock _clock;
+  private Cache _cache;
+
+  private final Object _lock = new Object();
+
+  /**
+   * Guarded by {@link #_lock}, as are the counts below.
+   */
+  private ServiceDate _day;
+  private final Map<String, Long> _byKey = new HashMap<>();
+  private final long[] _byPriority = new long[PRIORITIES.length];
+  private final Map<String, Long> _byApiKey = new HashMap<>();
+  private long _flushedAt = System.currentTimeMillis();
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setCache(@Named("caches.quota")
+  Cache cache) {
+    _cache = cache;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    for (final Priority priority : PRIORITIES) {
+      metrics.gauge("wmata_api_calls_today",
+          "API calls made so far today, counted against the daily quota",
+          new Gauge() {
+            @Override
+            public double getValue() {
+              return getUsed(priority);
+            }
+          }, "priority", priority.name().toLowerCase());
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    _cache.flush();
+  }
+
+  /**
+   * Counts one call to the given endpoint.
+   *
+   * @param apiKeyId identifies the API key the call was made with, or null if
+   *          it was made without one
+   */
+  public void record(String apiKeyId, String endpoint, Priority priority) {
+    boolean flush;
+
+    synchronized (_lock) {
+      rollOver();
+
+      String key = key(_day, priority, endpoint, apiKeyId);
+      Long count = _byKey.get(key);
+      count = (count != null) ? count + 1 : 1;
+      _byKey.put(key, count);
+      _byPriority[priority.ordinal()]++;
+      if (apiKeyId != null) {
+        add(_byApiKey, apiKeyId, 1);
+      }
+      _cache.put(new Element(key, count));
+
+      long now = System.currentTimeMillis();
+      flush = now - _flushedAt >= FLUSH_INTERVAL_MILLIS;
+      if (flush) {
+        _flushedAt = now;
+      }
+    }
+
+    if (flush) {
+      _cache.flush();
+    }
+  }
+
+  /**
+   * @return the calls of the given priority made so far today.
+   */
+  public long getUsed(Priority priority) {
+    synchronized (_lock) {
+      rollOver();
+      return _byPriority[priority.ordinal()];
+    }
+  }
+
+  /**
+   * @return the calls made so far today with the given API key.
+   */
+  public long getUsedByApiKey(String apiKeyId) {
+    synchronized (_lock) {
+      rollOver();
+      Long used = _byApiKey.get(apiKeyId);
+      return (used != null) ? used : 0;
+    }
+  }
+
+  /**
+   * Starts a new day's counts if the day has changed, picking up any calls
+   * already recorded for it.
+   */
+  private void rollOver() {
+    ServiceDate today = DateTimeUtils.serviceDateFromDate(new Date(
+        _clock.currentTimeMillis()));
+
+    if (today.equals(_day)) {
+      return;
+    }
+
+    _day = today;
+    _byKey.clear();
+    _byApiKey.clear();
+    for (int i = 0; i < _byPriority.length; i++) {
+      _byPriority[i] = 0;
+    }
+
+    String prefix = today.getAsString() + "/";
+
+    @SuppressWarnings("unchecked")
+    List<Object> keys = _cache.getKeysWithExpiryCheck();
+
+    for (Object key : keys) {
+      if (!(key instanceof String) || !((String) key).startsWith(prefix)) {
+        continue;
+      }
+
+      Element element = _cache.get(key);
+      if (element == null) {
+        continue;
+      }
+
+      String[] parts = ((String) key).split("/");
+      long count = (Long) element.getObjectValue();
+      _byKey.put((String) key, count);
+      _byPriority[Priority.valueOf(parts[1]).ordinal()] += count;
+      if (parts.length > 3 && !parts[3].equals(NO_API_KEY)) {
+        add(_byApiKey, parts[3], count);
+      }
+    }
+  }
+
+  private static void add(Map<String, Long> counts, String key, long n) {
+    Long count = counts.get(key);
+    counts.put(key, (count != null) ? count + n : n);
+  }
+
+  private static String key(ServiceDate day, Priority priority,
+      String endpoint, String apiKeyId) {
+    return day.getAsString() + "/" + priority.name() + "/" + endpoint + "/"
+        + ((apiKeyId != null) ? apiKeyId : NO_API_KEY);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Fetches the raw body of an API response. {@link WMATAAPIService} takes care
+ * of caching and mapping the response; implementations only have to produce
+ * the bytes.
+ *
+ * @author kurt
+ */
+public interface ResponseSource {
+
+  byte[] fetch(URI uri) throws IOException;
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import com.kurtraschke.wmata.gtfsrealtime.AgencyTimeZone;
+import com.kurtraschke.wmata.gtfsrealtime.Clock;
+import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
+import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Once a night, downloads the schedule of every mapped bus route for the
+ * coming service day and maps all of its trips, so that the trip cache is warm
+ * before the first vehicles of the day report in, rather than every vehicle's
+ * trip being mapped during the morning's first polls.
+ *
+ * Schedule downloads are made at the lowest priority, so they take only the
+ * API rate left over by vehicle and alert polls, and are counted against the
+ * part of the daily quota reserved for schedules.
+ *
+ * If {@code tripMapping.table} is set and the table there is for the service
+ * day being prefetched, it is loaded instead, leaving the mapping to the batch
+ * trip mapper (see {@link TripMappingBatch}).
+ *
+ * @author kurt
+ */
+@Singleton
+public class SchedulePrefetcher {
+
+  private static final Logger _log = LoggerFactory.getLogger(SchedulePrefetcher.class);
+
+  /**
+   * A run is for the service day under way this long after it starts: the
+   * same day for a run after midnight, the next for one in the evening.
+   */
+  private static final long LOOKAHEAD_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+  /**
+   * Give up on a run after this many routes in a row fail to download; the API
+   * is likely down, or the day's quota spent.
+   */
+  private static final int MAX_CONSECUTIVE_FAILURES = 5;
+
+  private WMATARouteMapperService _routeMapperService;
+  private WMATATripMapperService _tripMapperService;
+  private Clock _clock;
+  private TimeZone _agencyTimeZone;
+  private int _hour = 2;
+  private File _mappingTable;
+
+  private ScheduledExecutorService _executor;
+
+  @Inject
+  public void setWMATARouteMapperService(WMATARouteMapperService routeMapperService) {
+    _routeMapperService = routeMapperService;
+  }
+
+  @Inject
+  public void setWMATATripMapperService(WMATATripMapperService tripMapperService) {
+    _tripMapperService = tripMapperService;
+  }
+
+  @Inject
+  public void setClock(Clock clock) {
+    _clock = clock;
+  }
+
+  @Inject
+  public void setAgencyTimeZone(@AgencyTimeZone TimeZone timeZone) {
+    _agencyTimeZone = timeZone;
+  }
+
+  /**
+   * The hour of the day, in the agency time zone, at which to prefetch; -1 to
+   * not prefetch at all.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setHour(@Named("prefetch.hour")
+  int hour) {
+    _hour = hour;
+  }
+
+  @com.google.inject.Inject(optional = true)
+  public void setMappingTable(@Named("tripMapping.table")
+  File mappingTable) {
+    _mappingTable = mappingTable;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (_hour < 0) {
+      return;
+    }
+
+    _executor = Executors.newSingleThreadScheduledExecutor();
+    scheduleNext();
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_executor != null) {
+      _executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Maps the trips of every mapped bus route on the given service date.
+   */
+  public void prefetch(ServiceDate serviceDate) {
+    if (_mappingTable != null && loadMappingTable(serviceDate)) {
+      return;
+    }
+
+    _log.info("Prefetching route schedules for " + serviceDate);
+
+    long start = System.nanoTime();
+    int routes = 0;
+    int trips = 0;
+    int failures = 0;
+
+    for (String routeID : _routeMapperService.getMappedBusRoutes()) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+
+      try {
+        trips += _tripMapperService.prefetchRoute(serviceDate, routeID);
+        routes++;
+        failures = 0;
+      } catch (WMATAAPIException e) {
+        _log.warn("Could not prefetch schedule for route " + routeID + " on "
+            + serviceDate, e);
+        if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+          _log.warn("Giving up prefetching for " + serviceDate + " after "
+              + failures + " consecutive failures");
+          break;
+        }
+      }
+    }
+
+    _log.info("Prefetched " + routes + " route schedules and mapped " + trips
+        + " trips for " + serviceDate + " in "
+        + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s");
+  }
+
+  private boolean loadMappingTable(ServiceDate serviceDate) {
+    TripMappingTable table;
+
+    try {
+      table = TripMappingTable.read(_mappingTable);
+    } catch (IOException e) {
+      _log.warn("Could not load trip mapping table " + _mappingTable + ": "
+          + e);
+      return false;
+    }
+
+    if (!table.getServiceDate().equals(serviceDate)) {
+      _log.warn("Trip mapping table " + _mappingTable + " is for "
+          + table.getServiceDate() + ", not " + serviceDate);
+      return false;
+    }
+
+    _tripMapperService.addMappings(serviceDate, table.getMappings());
+    _log.info("Loaded " + table.getMappings().size() + " trip mappings for "
+        + serviceDate + " from " + _mappingTable);
+    return true;
+  }
+
+  private void scheduleNext() {
+    long now = _clock.currentTimeMillis();
+
+    Calendar c = Calendar.getInstance(_agencyTimeZone);
+    c.setTimeInMillis(now);
+    c.set(Calendar.HOUR_OF_DAY, _hour);
+    c.set(Calendar.MINUTE, 0);
+    c.set(Calendar.SECOND, 0);
+    c.set(Calendar.MILLISECOND, 0);
+    if (c.getTimeInMillis() <= now) {
+      c.add(Calendar.DAY_OF_MONTH, 1);
+    }
+
+    final long runAt = c.getTimeInMillis();
+
+    try {
+      _executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            prefetch(DateTimeUtils.serviceDateFromDate(new Date(runAt
+                + LOOKAHEAD_MILLIS)));
+          } catch (RuntimeException e) {
+            _log.warn("Error prefetching route schedules", e);
+          } finally {
+            scheduleNext();
+          }
+        }
+      }, Math.max(1L, (long) ((runAt - now) / _clock.getRate())),
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+/**
+ * Maps every trip of every mapped bus route on a service date, spreading the
+ * routes over a pool of threads, to produce a {@link TripMappingTable} which
+ * the daemon can load instead of mapping the trips itself.
+ *
+ * @author kurt
+ */
+public class TripMappingBatch {
+
+  private static final Logger _log = LoggerFactory.getLogger(TripMappingBatch.class);
+
+  private WMATARouteMapperService _routeMapperService;
+  private WMATATripMapperService _tripMapperService;
+
+  @Inject
+  public void setWMATARouteMapperService(WMATARouteMapperService routeMapperService) {
+    _routeMapperService = routeMapperService;
+  }
+
+  @Inject
+  public void setWMATATripMapperService(WMATATripMapperService tripMapperService) {
+    _tripMapperService = tripMapperService;
+  }
+
+  /**
+   * Routes whose schedules cannot be downloaded are logged and left out of the
+   * table; vehicles on them will be mapped by the daemon as usual.
+   */
+  public TripMappingTable run(final ServiceDate serviceDate, int threads)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      Map<String, Future<Map<String, AgencyAndId>>> futures = new HashMap<>();
+
+      for (final String routeID : _routeMapperService.getMappedBusRoutes()) {
+        futures.put(routeID, executor.submit(new Callable<Map<String, AgencyAndId>>() {
+          @Override
+          public Map<String, AgencyAndId> call() throws Exception {
+            return _tripMapperService.mapRoute(serviceDate, routeID);
+          }
+        }));
+      }
+
+      Map<String, AgencyAndId> mappings = new HashMap<>();
+      List<String> failedRoutes = new ArrayList<>();
+
+      for (Map.Entry<String, Future<Map<String, AgencyAndId>>> entry : futures.entrySet()) {
+        try {
+          mappings.putAll(entry.getValue().get());
+        } catch (ExecutionException e) {
+          _log.warn("Could not map trips on route " + entry.getKey(),
+              e.getCause());
+          failedRoutes.add(entry.getKey());
+        }
+      }
+
+      _log.info("Mapped " + mappings.size() + " trips on "
+          + (futures.size() - failedRoutes.size()) + " routes for "
+          + serviceDate + " in "
+          + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s"
+          + (failedRoutes.isEmpty() ? "" : "; failed routes: " + failedRoutes));
+
+      return new TripMappingTable(serviceDate, mappings);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The mappings of WMATA trips to GTFS trips for one service date, as written
+ * by the batch trip mapper and loaded into the trip cache at startup.
+ *
+ * The file is gzip-compressed, and holds a magic number and version (ints),
+ * the service date (modified UTF-8, as {@code yyyyMMdd}), the number of GTFS
+ * agency IDs (an int) and each agency ID, then the number of mappings (an int)
+ * and for each the WMATA trip ID, the index of the GTFS agency ID (a short)
+ * and the GTFS trip ID.
+ *
+ * @author kurt
+ */
+public class TripMappingTable {
+
+  private static final int MAGIC = 0x574d544d; // "WMTM"
+
+  private static final int VERSION = 1;
+
+  private final ServiceDate _serviceDate;
+  private final Map<String, AgencyAndId> _mappings;
+
+  public TripMappingTable(ServiceDate serviceDate,
+      Map<String, AgencyAndId> mappings) {
+    _serviceDate = serviceDate;
+    _mappings = Collections.unmodifiableMap(new TreeMap<>(mappings));
+  }
+
+  public ServiceDate getServiceDate() {
+    return _serviceDate;
+  }
+
+  /**
+   * @return the GTFS trip ID for each WMATA trip ID which could be mapped
+   */
+  public Map<String, AgencyAndId> getMappings() {
+    return _mappings;
+  }
+
+  public static TripMappingTable read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(file))))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a trip mapping table");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has unsupported version " + version);
+      }
+
+      ServiceDate serviceDate;
+      try {
+        serviceDate = ServiceDate.parseString(in.readUTF());
+      } catch (ParseException e) {
+        throw new IOException(file + " has a malformed service date", e);
+      }
+
+      String[] agencies = new String[in.readInt()];
+      for (int i = 0; i < agencies.length; i++) {
+        agencies[i] = in.readUTF();
+      }
+
+      int count = in.readInt();
+      Map<String, AgencyAndId> mappings = new HashMap<>(count * 2);
+      for (int i = 0; i < count; i++) {
+        String wmataTripID = in.readUTF();
+        String agency = agencies[in.readShort()];
+        mappings.put(wmataTripID, new AgencyAndId(agency, in.readUTF()));
+      }
+
+      return new TripMappingTable(serviceDate, mappings);
+    }
+  }
+
+  /**
+   * Writes the table to a temporary file beside the given one, then moves it
+   * into place, so a daemon starting meanwhile never reads half a table.
+   */
+  public void write(File file) throws IOException {
+    File temp = new File(file.getAbsoluteFile().getParentFile(), "."
+        + file.getName() + ".tmp");
+
+    List<String> agencies = new ArrayList<>();
+    Map<String, Integer> agencyIndices = new HashMap<>();
+    for (AgencyAndId id : _mappings.values()) {
+      if (!agencyIndices.containsKey(id.getAgencyId())) {
+        agencyIndices.put(id.getAgencyId(), agencies.size());
+        agencies.add(id.getAgencyId());
+      }
+    }
+
+    try {
+      try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp))))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(_serviceDate.getAsString());
+        out.writeInt(agencies.size());
+        for (String agency : agencies) {
+          out.writeUTF(agency);
+        }
+        out.writeInt(_mappings.size());
+        for (Map.Entry<String, AgencyAndId> entry : _mappings.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeShort(agencyIndices.get(entry.getValue().getAgencyId()));
+          out.writeUTF(entry.getValue().getId());
+        }
+      }
+
+      try {
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.wmata.gtfsrealtime.services;
+
+import com.kurtraschke.wmata.gtfsrealtime.services.NegativeResultCache.Reason;
+
+/**
+ * Thrown when a WMATA trip cannot be mapped to a GTFS trip, saying why.
+ *
+ * @author kurt
+ */
+class UnmappedTripException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Reason _reason;
+
+  public UnmappedTripException(Reason reason, String message) {
+    /*
+     * Unmapped trips are expected, and always handled by our caller; there is
+     * no point filling in a stack trace.
+     */
+    super(message, null, false, false);
+    _reason = reason;
+  }
+
+  public Reason getReason() {
+    return _reason;
+  }
+}
@@ -19,32 +19,22 @@ package com.kurtraschke.wmata.gtfsrealtime.services;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import com.google.common.util.concurrent.RateLimiter;
 import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
 import com.kurtraschke.wmata.gtfsrealtime.api.alerts.Rss;
 import com.kurtraschke.wmata.gtfsrealtime.api.buspositions.BusPositions;
 import com.kurtraschke.wmata.gtfsrealtime.api.routes.Routes;
 import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.RouteSchedule;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -57,46 +47,50 @@ import javax.inject.Singleton;
 @Singleton
 public class WMATAAPIService {
 
-  private static final Logger _log = LoggerFactory.getLogger(WMATAAPIService.class);
-  private static final String API_KEY_PARAM_NAME = "api_key";
+  public static final String API_KEY_PARAM_NAME = "api_key";
 
-  private String _apiKey;
-  private double _apiRateLimit;
+  private String _apiBaseUrl = "http://api.wmata.com";
+  private String _alertsBaseUrl = "http://www.metroalerts.info";
   private Cache _cache;
+  private ResponseSource _source;
+  private MetricsRegistry _metrics;
   private ObjectMapper _jsonMapper;
   private XmlMapper _xmlMapper;
-  private HttpClientConnectionManager _connectionManager;
-  private RateLimiter _limiter;
 
   @PostConstruct
   public void start() {
     _jsonMapper = new ObjectMapper();
     _jsonMapper.setPropertyNamingStrategy(PropertyNamingStrategy.PASCAL_CASE_TO_CAMEL_CASE);
     _xmlMapper = new XmlMapper();
-    _connectionManager = new BasicHttpClientConnectionManager();
-    _limiter = RateLimiter.create(_apiRateLimit);
+  }
 
-    if (_apiRateLimit > 9) {
-      _log.warn("API rate limit set to {}, greater than default rate limit of 9 queries/second");
-    }
+  /**
+   * Overrides the base URL for the bus API, for example to point at a local
+   * simulator.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setApiBaseUrl(@Named("WMATA.apiBaseUrl")
+  String apiBaseUrl) {
+    _apiBaseUrl = apiBaseUrl;
   }
 
-  @PreDestroy
-  public void stop() {
-    _connectionManager.shutdown();
+  /**
+   * Overrides the base URL for the MetroAlerts RSS feeds.
+   */
+  @com.google.inject.Inject(optional = true)
+  public void setAlertsBaseUrl(@Named("WMATA.alertsBaseUrl")
+  String alertsBaseUrl) {
+    _alertsBaseUrl = alertsBaseUrl;
   }
 
   @Inject
-  public void setApiKey(@Named("WMATA.key")
-  String apiKey) {
-    _apiKey = apiKey;
-
+  public void setResponseSource(ResponseSource source) {
+    _source = source;
   }
 
   @Inject
-  public void setApiRateLimit(@Named("WMATA.rateLimit")
-  double apiRateLimit) {
-    _apiRateLimit = apiRateLimit;
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    _metrics = metrics;
   }
 
   @Inject
@@ -108,8 +102,7 @@ public class WMATAAPIService {
 
   public Routes downloadRouteList() throws WMATAAPIException {
     try {
-      URIBuilder b = new URIBuilder("http://api.wmata.com/Bus.svc/json/JRoutes");
-      b.addParameter(API_KEY_PARAM_NAME, _apiKey);
+      URIBuilder b = new URIBuilder(_apiBaseUrl + "/Bus.svc/json/JRoutes");
 
       return mapUrl(b.build(), true, Routes.class, _jsonMapper);
     } catch (Exception e) {
@@ -120,9 +113,8 @@ public class WMATAAPIService {
   public RouteSchedule downloadRouteScheduleInfo(String routeId, String date)
       throws WMATAAPIException {
     try {
-      URIBuilder b = new URIBuilder(
-          "http://api.wmata.com/Bus.svc/json/JRouteSchedule");
-      b.addParameter(API_KEY_PARAM_NAME, _apiKey);
+      URIBuilder b = new URIBuilder(_apiBaseUrl
+          + "/Bus.svc/json/JRouteSchedule");
       b.addParameter("includeVariations", "false");
       b.addParameter("date", date);
       b.addParameter("routeID", routeId);
@@ -135,9 +127,8 @@ public class WMATAAPIService {
 
   public BusPositions downloadBusPositions() throws WMATAAPIException {
     try {
-      URIBuilder b = new URIBuilder(
-          "http://api.wmata.com/Bus.svc/json/JBusPositions");
-      b.addParameter(API_KEY_PARAM_NAME, _apiKey);
+      URIBuilder b = new URIBuilder(_apiBaseUrl
+          + "/Bus.svc/json/JBusPositions");
 
       return mapUrl(b.build(), false, BusPositions.class, _jsonMapper);
     } catch (Exception e) {
@@ -147,7 +138,7 @@ public class WMATAAPIService {
 
   public Rss downloadBusAlerts() throws WMATAAPIException {
     try {
-      URIBuilder b = new URIBuilder("http://www.metroalerts.info/rss.aspx?bus");
+      URIBuilder b = new URIBuilder(_alertsBaseUrl + "/rss.aspx?bus");
       return mapUrl(b.build(), false, Rss.class, _xmlMapper);
     } catch (Exception e) {
       throw new WMATAAPIException(e);
@@ -156,7 +147,7 @@ public class WMATAAPIService {
 
   public Rss downloadRailAlerts() throws WMATAAPIException {
     try {
-      URIBuilder b = new URIBuilder("http://www.metroalerts.info/rss.aspx?rs");
+      URIBuilder b = new URIBuilder(_alertsBaseUrl + "/rss.aspx?rs");
       return mapUrl(b.build(), false, Rss.class, _xmlMapper);
     } catch (Exception e) {
       throw new WMATAAPIException(e);
@@ -175,21 +166,17 @@ public class WMATAAPIService {
       }
     }
 
-    CloseableHttpClient client = HttpClients.custom().setConnectionManager(
-        _connectionManager).build();
-
-    HttpGet httpget = new HttpGet(url);
-    _limiter.acquire();
-    try (CloseableHttpResponse response = client.execute(httpget);
-        InputStream responseInputStream = response.getEntity().getContent()) {
+    byte[] body = _source.fetch(url);
 
-      T value = mapper.readValue(responseInputStream, theClass);
+    long start = System.nanoTime();
+    T value = mapper.readValue(body, theClass);
+    _metrics.histogram("wmata_parse_seconds", "Time to parse API responses",
+        "type", theClass.getSimpleName()).observeNanos(System.nanoTime() - start);
 
-      if (cache) {
-        _cache.put(new Element(url, value));
-      }
-
-      return value;
+    if (cache) {
+      _cache.put(new Element(url, value));
     }
+
+    return value;
   }
 }
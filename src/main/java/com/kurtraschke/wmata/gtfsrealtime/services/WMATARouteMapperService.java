@@ -23,6 +23,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
 import com.kurtraschke.wmata.gtfsrealtime.api.routes.WMATARoute;
@@ -32,9 +33,11 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +63,7 @@ public class WMATARouteMapperService {
 
   private final Pattern _routeExtract = Pattern.compile("^([A-Z0-9]+)(c?v?S?[0-9]?).*$");
   private Map<String, AgencyAndId> _routeMappings = new HashMap<String, AgencyAndId>();
+  private Set<String> _busRoutes = new LinkedHashSet<String>();
   private Predicate<String> _matchBadRoutes;
   private List<Route> _gtfsRoutes;
 
@@ -104,6 +108,7 @@ public class WMATARouteMapperService {
 
       if (mapResult != null) {
         _routeMappings.put(r.getRouteID(), mapResult);
+        _busRoutes.add(r.getRouteID());
       }
     }
 
@@ -190,6 +195,14 @@ public class WMATARouteMapperService {
     return ImmutableMap.<String, AgencyAndId> copyOf(_routeMappings);
   }
 
+  /**
+   * @return the WMATA IDs of the bus routes which could be mapped to GTFS
+   *         routes; these are the routes which have schedules in the bus API.
+   */
+  public Set<String> getMappedBusRoutes() {
+    return ImmutableSet.<String> copyOf(_busRoutes);
+  }
+
   private static class ShortNameFilterPredicate implements Predicate<Route> {
 
     private String shortName;
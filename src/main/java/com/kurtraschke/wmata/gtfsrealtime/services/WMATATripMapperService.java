@@ -19,15 +19,11 @@ import org.onebusaway.collections.Min;
 import org.onebusaway.collections.tuple.T2;
 import org.onebusaway.collections.tuple.Tuples;
 import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.kurtraschke.wmata.gtfsrealtime.AgencyTimeZone;
 import com.kurtraschke.wmata.gtfsrealtime.DateTimeUtils;
 import com.kurtraschke.wmata.gtfsrealtime.WMATAAPIException;
@@ -35,7 +31,13 @@ import com.kurtraschke.wmata.gtfsrealtime.api.buspositions.BusPosition;
 import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.RouteSchedule;
 import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.WMATAStopTime;
 import com.kurtraschke.wmata.gtfsrealtime.api.routeschedule.WMATATrip;
+import com.kurtraschke.wmata.gtfsrealtime.events.PipelineEvents;
+import com.kurtraschke.wmata.gtfsrealtime.events.TripMappingEvent;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.Counter;
+import com.kurtraschke.wmata.gtfsrealtime.metrics.MetricsRegistry;
+import com.kurtraschke.wmata.gtfsrealtime.model.RouteScheduleKey;
 import com.kurtraschke.wmata.gtfsrealtime.model.TripMapKey;
+import com.kurtraschke.wmata.gtfsrealtime.services.NegativeResultCache.Reason;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
@@ -45,19 +47,37 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
 /**
+ * Maps the WMATA trip each vehicle reports to a GTFS trip.
+ *
+ * A vehicle starting a new trip is usually starting the next trip in the
+ * GTFS block of its last one, so that trip is tried first. Otherwise, most
+ * trips are mapped from the vehicle's position report alone: the GTFS trip on
+ * the same route which starts and ends at the times the vehicle reports, told
+ * apart from any others by direction and headsign. Only when that finds no
+ * trip, or more than one, is the trip looked up in the WMATA route schedule
+ * and its stop times scored against the GTFS trips on the route.
+ *
+ * Successful mappings are kept in the trip cache. Failures are kept in the
+ * {@link NegativeResultCache}, per trip, or per route and service date when
+ * the route schedule could not be downloaded, and are not retried until their
+ * backoff has passed; until then the vehicle is reported without a trip.
  *
  * @author kurt
  */
@@ -65,14 +85,49 @@ public class WMATATripMapperService {
 
   private static final Logger _log = LoggerFactory.getLogger(WMATATripMapperService.class);
 
+  /**
+   * Mappings made ahead of time are kept for the whole service day, even if
+   * no vehicle asks for them for longer than the trip cache's usual idle time.
+   */
+  private static final int PREFETCHED_TIME_TO_IDLE_SECONDS = 30 * 60 * 60;
+
+  /**
+   * How far, in seconds, a GTFS trip's first departure and last arrival may be
+   * from a vehicle's reported trip start and end for the trip to match.
+   */
+  private static final int TRIP_TIME_TOLERANCE = 60;
+
   private WMATARouteMapperService _routeMapperService;
   private WMATAAPIService _api;
   private Cache _tripCache;
-  private CalendarServiceData _csd;
+  private NegativeResultCache _negativeResults;
+  private ActiveServiceIndex _serviceIndex;
   private GtfsRelationalDao _dao;
   private TimeZone _agencyTimeZone;
   private int _scoreLimit;
-
+  private PipelineEvents _events;
+  private Counter _cacheHits;
+  private Counter _mapped;
+  private Counter _unmapped;
+  private Counter _failed;
+  private Counter _backingOff;
+  private Counter _mappedFromPosition;
+  private Counter _mappedFromBlock;
+  private Counter _prefetchMapped;
+  private Counter _prefetchUnmapped;
+  private final ConcurrentMap<AgencyAndId, IndexedTrips> _tripsByRoute = new ConcurrentHashMap<>();
+  private final ConcurrentMap<AgencyAndId, IndexedTrips> _tripsByBlock = new ConcurrentHashMap<>();
+
+  /**
+   * The GTFS trip each vehicle was last mapped to, by WMATA vehicle ID.
+   */
+  private final ConcurrentMap<String, AgencyAndId> _vehicleTrips = new ConcurrentHashMap<>();
+
+  /**
+   * The GTFS direction ID of each WMATA direction on each GTFS route, learned
+   * from trips mapped from the route schedule.
+   */
+  private final ConcurrentMap<String, String> _directionIds = new ConcurrentHashMap<>();
 
   @Inject
   public void setWMATARouteMapperService(WMATARouteMapperService mapperService) {
@@ -91,8 +146,13 @@ public class WMATATripMapperService {
   }
 
   @Inject
-  public void setCalendarServiceData(CalendarServiceData csd) {
-    _csd = csd;
+  public void setNegativeResultCache(NegativeResultCache negativeResults) {
+    _negativeResults = negativeResults;
+  }
+
+  @Inject
+  public void setActiveServiceIndex(ActiveServiceIndex serviceIndex) {
+    _serviceIndex = serviceIndex;
   }
 
   @Inject
@@ -110,7 +170,48 @@ public class WMATATripMapperService {
     _scoreLimit = scoreLimit;
   }
 
+  @Inject
+  public void setPipelineEvents(PipelineEvents events) {
+    _events = events;
+  }
+
+  @Inject
+  public void setMetricsRegistry(MetricsRegistry metrics) {
+    String help = "Trip mapping lookups: answered from the trip cache, skipped while backing off after a failure, mapped to the next trip in the vehicle's block or from its position report, or mapped, unmapped or failed using the route schedule";
+    _cacheHits = metrics.counter("wmata_trip_mapping_total", help, "result",
+        "cache_hit");
+    _mapped = metrics.counter("wmata_trip_mapping_total", help, "result",
+        "mapped");
+    _unmapped = metrics.counter("wmata_trip_mapping_total", help, "result",
+        "unmapped");
+    _failed = metrics.counter("wmata_trip_mapping_total", help, "result",
+        "failed");
+    _backingOff = metrics.counter("wmata_trip_mapping_total", help, "result",
+        "backing_off");
+    _mappedFromPosition = metrics.counter("wmata_trip_mapping_total", help,
+        "result", "mapped_from_position");
+    _mappedFromBlock = metrics.counter("wmata_trip_mapping_total", help,
+        "result", "mapped_from_block");
+
+    String prefetchHelp = "Trips mapped ahead of time from the route schedules, by result";
+    _prefetchMapped = metrics.counter("wmata_trip_prefetch_total",
+        prefetchHelp, "result", "mapped");
+    _prefetchUnmapped = metrics.counter("wmata_trip_prefetch_total",
+        prefetchHelp, "result", "unmapped");
+  }
+
   public AgencyAndId getTripMapping(BusPosition bp) throws WMATAAPIException {
+    AgencyAndId mappedTripID = lookUpTripMapping(bp);
+
+    if (mappedTripID != null && bp.getVehicleID() != null) {
+      _vehicleTrips.put(bp.getVehicleID(), mappedTripID);
+    }
+
+    return mappedTripID;
+  }
+
+  private AgencyAndId lookUpTripMapping(BusPosition bp)
+      throws WMATAAPIException {
     ServiceDate serviceDate = bp.getServiceDate();
     String tripID = bp.getTripID();
 
@@ -118,28 +219,409 @@ public class WMATATripMapperService {
 
     Element e = _tripCache.get(k);
 
-    if (e == null) {
-      AgencyAndId mappedTripID = mapTrip(bp);
+    if (e != null) {
+      _cacheHits.inc();
+      return (AgencyAndId) e.getObjectValue();
+    }
+
+    AgencyAndId mappedFromBlock = mapTripFromBlock(bp);
+
+    if (mappedFromBlock != null) {
+      _mappedFromBlock.inc();
+      _negativeResults.recordSuccess(k);
+      _tripCache.put(new Element(k, mappedFromBlock));
+      return mappedFromBlock;
+    }
+
+    AgencyAndId mappedFromPosition = mapTripFromPosition(bp);
+
+    if (mappedFromPosition != null) {
+      _mappedFromPosition.inc();
+      _negativeResults.recordSuccess(k);
+      _tripCache.put(new Element(k, mappedFromPosition));
+      return mappedFromPosition;
+    }
+
+    RouteScheduleKey sk = new RouteScheduleKey(serviceDate, bp.getRouteID());
+
+    if (_negativeResults.get(k) != null || _negativeResults.get(sk) != null) {
+      _backingOff.inc();
+      return null;
+    }
+
+    WMATATrip theTrip;
+
+    try {
+      theTrip = getWMATATrip(serviceDate, bp.getRouteID(),
+          bp.getTripStartTime(), bp.getTripEndTime(), bp.getDirectionText());
+    } catch (WMATAAPIException ex) {
+      _failed.inc();
+      _negativeResults.recordFailure(sk, Reason.SCHEDULE_UNAVAILABLE);
+      throw ex;
+    } catch (RuntimeException ex) {
+      _failed.inc();
+      _negativeResults.recordFailure(k, Reason.ERROR);
+      throw ex;
+    }
+
+    _negativeResults.recordSuccess(sk);
+
+    try {
+      if (theTrip == null) {
+        throw new UnmappedTripException(Reason.NOT_IN_SCHEDULE, "Trip "
+            + tripID + " is not in the schedule for route " + bp.getRouteID());
+      }
+      AgencyAndId mappedTripID = mapTripOrThrow(serviceDate, theTrip);
+      learnDirection(theTrip, mappedTripID);
+      _mapped.inc();
+      _negativeResults.recordSuccess(k);
       _tripCache.put(new Element(k, mappedTripID));
       return mappedTripID;
-    } else {
-      return (AgencyAndId) e.getObjectValue();
+    } catch (UnmappedTripException ex) {
+      _unmapped.inc();
+      _negativeResults.recordFailure(k, ex.getReason());
+      return null;
+    } catch (RuntimeException ex) {
+      _failed.inc();
+      _negativeResults.recordFailure(k, Reason.ERROR);
+      throw ex;
     }
   }
 
-  private AgencyAndId mapTrip(BusPosition bp) throws WMATAAPIException {
-    WMATATrip theTrip = getWMATATrip(bp.getServiceDate(), bp.getRouteID(),
-        bp.getTripStartTime(), bp.getTripEndTime(), bp.getDirectionText());
+  /**
+   * Maps a vehicle's trip without the route schedule, by finding the GTFS trip
+   * on the vehicle's route which is active on the service date and whose first
+   * departure and last arrival are the trip start and end times the vehicle
+   * reports. Should several trips match, only those in the vehicle's direction
+   * are kept, if the direction is known, and then only those with the
+   * vehicle's headsign.
+   *
+   * @return the GTFS trip ID, or null if no trip matches, or several do
+   */
+  AgencyAndId mapTripFromPosition(BusPosition bp) {
+    AgencyAndId mappedRouteID = _routeMapperService.getRouteMapping(bp.getRouteID());
+
+    if (mappedRouteID == null || bp.getTripStartTime() == null
+        || bp.getTripEndTime() == null) {
+      return null;
+    }
+
     ServiceDate serviceDate = bp.getServiceDate();
+    int start = secondsIntoServiceDate(bp.getTripStartTime(), serviceDate);
+    int end = secondsIntoServiceDate(bp.getTripEndTime(), serviceDate);
+
+    IndexedTrips routeTrips = routeTrips(mappedRouteID);
+    BitSet services = _serviceIndex.getActiveServices(serviceDate);
+
+    List<Trip> matches = new ArrayList<>(2);
+    for (int i = 0; i < routeTrips.trips.size(); i++) {
+      if (timesMatch(routeTrips.startTimes[i], start)
+          && timesMatch(routeTrips.endTimes[i], end)
+          && _serviceIndex.isServiceActive(services, routeTrips.serviceOrdinals[i])) {
+        matches.add(routeTrips.trips.get(i));
+      }
+    }
 
-    if (theTrip != null) {
-      return mapTrip(serviceDate, theTrip);
-    } else {
+    if (matches.size() > 1) {
+      String directionId = _directionIds.get(directionKey(mappedRouteID,
+          bp.getDirectionText()));
+      if (directionId != null) {
+        matches = filterByDirection(matches, directionId);
+      }
+    }
+
+    if (matches.size() > 1 && bp.getTripHeadsign() != null) {
+      matches = filterByHeadsign(matches, bp.getTripHeadsign());
+    }
+
+    return (matches.size() == 1) ? matches.get(0).getId() : null;
+  }
+
+  /**
+   * Predicts a vehicle's new trip from its last one: the first trip after it
+   * in the same GTFS block, active on the service date, which starts and ends
+   * at the times the vehicle reports, and which is on the route the vehicle
+   * reports. Blocks may interline several routes, so times alone could pick
+   * out another route's trip.
+   *
+   * @return the GTFS trip ID, or null if the vehicle's last trip is unknown or
+   *         has no block, or no later trip in the block matches
+   */
+  AgencyAndId mapTripFromBlock(BusPosition bp) {
+    AgencyAndId mappedRouteID = _routeMapperService.getRouteMapping(bp.getRouteID());
+    AgencyAndId previousTripID = (bp.getVehicleID() != null)
+        ? _vehicleTrips.get(bp.getVehicleID()) : null;
+
+    if (mappedRouteID == null || previousTripID == null
+        || bp.getTripStartTime() == null
+        || bp.getTripEndTime() == null) {
+      return null;
+    }
+
+    Trip previousTrip = _dao.getTripForId(previousTripID);
+
+    if (previousTrip == null || previousTrip.getBlockId() == null) {
       return null;
     }
+
+    IndexedTrips blockTrips = blockTrips(new AgencyAndId(
+        previousTripID.getAgencyId(), previousTrip.getBlockId()));
+    int previousIndex = blockTrips.trips.indexOf(previousTrip);
+
+    if (previousIndex < 0) {
+      return null;
+    }
+
+    ServiceDate serviceDate = bp.getServiceDate();
+    int start = secondsIntoServiceDate(bp.getTripStartTime(), serviceDate);
+    int end = secondsIntoServiceDate(bp.getTripEndTime(), serviceDate);
+    int previousStart = blockTrips.startTimes[previousIndex];
+    BitSet services = _serviceIndex.getActiveServices(serviceDate);
+
+    Trip next = null;
+    int nextStart = Integer.MAX_VALUE;
+
+    for (int i = 0; i < blockTrips.trips.size(); i++) {
+      int tripStart = blockTrips.startTimes[i];
+      Trip trip = blockTrips.trips.get(i);
+      if (tripStart > previousStart && tripStart < nextStart
+          && timesMatch(tripStart, start)
+          && timesMatch(blockTrips.endTimes[i], end)
+          && mappedRouteID.equals(trip.getRoute().getId())
+          && _serviceIndex.isServiceActive(services, blockTrips.serviceOrdinals[i])) {
+        next = trip;
+        nextStart = tripStart;
+      }
+    }
+
+    return (next != null) ? next.getId() : null;
+  }
+
+  private int secondsIntoServiceDate(Date time, ServiceDate serviceDate) {
+    return (int) ((time.getTime() - serviceDate.getAsDate(_agencyTimeZone).getTime()) / 1000L);
+  }
+
+  private static boolean timesMatch(int gtfsTime, int reportedTime) {
+    return Math.abs((long) gtfsTime - reportedTime) <= TRIP_TIME_TOLERANCE;
+  }
+
+  private static List<Trip> filterByDirection(List<Trip> trips,
+      String directionId) {
+    List<Trip> filtered = new ArrayList<>(trips.size());
+    for (Trip trip : trips) {
+      if (directionId.equals(trip.getDirectionId())) {
+        filtered.add(trip);
+      }
+    }
+    return filtered;
+  }
+
+  private static List<Trip> filterByHeadsign(List<Trip> trips, String headsign) {
+    List<Trip> filtered = new ArrayList<>(trips.size());
+    for (Trip trip : trips) {
+      if (headsign.equalsIgnoreCase(trip.getTripHeadsign())) {
+        filtered.add(trip);
+      }
+    }
+    return filtered;
+  }
+
+  private void learnDirection(WMATATrip theTrip, AgencyAndId mappedTripID) {
+    Trip trip = _dao.getTripForId(mappedTripID);
+    if (trip != null && trip.getDirectionId() != null
+        && theTrip.getTripDirectionText() != null) {
+      _directionIds.put(directionKey(trip.getRoute().getId(),
+          theTrip.getTripDirectionText()), trip.getDirectionId());
+    }
+  }
+
+  private static String directionKey(AgencyAndId routeID, String directionText) {
+    return routeID + "/" + directionText;
+  }
+
+  /**
+   * Downloads the schedule for a route on a service date, and maps each of its
+   * trips which is not already in the trip cache, so that vehicles on those
+   * trips will be answered from the cache. Trips which cannot be mapped go to
+   * the negative result cache, as they would if a vehicle had asked for them.
+   *
+   * @return the number of trips newly mapped
+   * @throws WMATAAPIException if the schedule could not be downloaded
+   */
+  public int prefetchRoute(ServiceDate serviceDate, String routeID)
+      throws WMATAAPIException {
+    Map<String, AgencyAndId> mappings = mapRoute(serviceDate, routeID, true);
+    addMappings(serviceDate, mappings);
+    return mappings.size();
   }
 
-  private WMATATrip getWMATATrip(ServiceDate serviceDate, String routeID,
+  /**
+   * Maps every trip in the schedule for a route on a service date, without
+   * touching the trip cache.
+   *
+   * @return the GTFS trip ID for each WMATA trip ID which could be mapped
+   * @throws WMATAAPIException if the schedule could not be downloaded
+   */
+  public Map<String, AgencyAndId> mapRoute(ServiceDate serviceDate,
+      String routeID) throws WMATAAPIException {
+    return mapRoute(serviceDate, routeID, false);
+  }
+
+  /**
+   * Puts mappings made ahead of time, as by {@link #mapRoute}, into the trip
+   * cache.
+   */
+  public void addMappings(ServiceDate serviceDate,
+      Map<String, AgencyAndId> mappings) {
+    for (Map.Entry<String, AgencyAndId> entry : mappings.entrySet()) {
+      TripMapKey k = new TripMapKey(serviceDate, entry.getKey());
+      Element e = new Element(k, entry.getValue());
+      e.setTimeToIdle(PREFETCHED_TIME_TO_IDLE_SECONDS);
+      _tripCache.put(e);
+      _negativeResults.recordSuccess(k);
+    }
+  }
+
+  private Map<String, AgencyAndId> mapRoute(ServiceDate serviceDate,
+      String routeID, boolean skipCached) throws WMATAAPIException {
+    RouteScheduleKey sk = new RouteScheduleKey(serviceDate, routeID);
+
+    if (_negativeResults.get(sk) != null) {
+      return Collections.emptyMap();
+    }
+
+    RouteSchedule rsi;
+
+    try {
+      rsi = _api.downloadRouteScheduleInfo(routeID,
+          DateTimeUtils.apiDateStringForServiceDate(serviceDate));
+    } catch (WMATAAPIException ex) {
+      _negativeResults.recordFailure(sk, Reason.SCHEDULE_UNAVAILABLE);
+      throw ex;
+    }
+
+    _negativeResults.recordSuccess(sk);
+
+    /*
+     * Vehicles' trips are keyed by the date on which they start, which for
+     * trips after midnight is not the date of the schedule they came from.
+     * Only trips neither cached nor put aside take part in the assignment, and
+     * the GTFS trips which cached trips already hold are left out of it, so
+     * that no GTFS trip is handed to a second WMATA trip.
+     */
+    List<WMATATrip> wmataTrips = new ArrayList<>();
+    Set<AgencyAndId> heldTripIDs = new HashSet<>();
+
+    for (WMATATrip t : rsi.getTrips()) {
+      TripMapKey k = new TripMapKey(
+          DateTimeUtils.serviceDateFromDate(t.getStartTime()), t.getTripID());
+
+      if (!serviceDate.equals(k.serviceDate)) {
+        continue;
+      }
+
+      Element cached = skipCached ? _tripCache.getQuiet(k) : null;
+
+      if (cached != null) {
+        heldTripIDs.add((AgencyAndId) cached.getObjectValue());
+      } else if (_negativeResults.get(k) == null) {
+        wmataTrips.add(t);
+      }
+    }
+
+    if (wmataTrips.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    AgencyAndId mappedRouteID = _routeMapperService.getRouteMapping(routeID);
+    List<Trip> candidateTrips = new ArrayList<>();
+
+    if (mappedRouteID != null) {
+      for (Trip gtfsTrip : tripsForServiceDateAndRoute(serviceDate,
+          mappedRouteID)) {
+        if (!heldTripIDs.contains(gtfsTrip.getId())) {
+          candidateTrips.add(gtfsTrip);
+        }
+      }
+    }
+
+    int[] assignment = assignTrips(wmataTrips, candidateTrips, serviceDate);
+
+    Map<String, AgencyAndId> mappings = new HashMap<>();
+    int unmapped = 0;
+
+    for (int i = 0; i < wmataTrips.size(); i++) {
+      WMATATrip t = wmataTrips.get(i);
+      TripMapKey k = new TripMapKey(serviceDate, t.getTripID());
+
+      if (assignment[i] >= 0) {
+        AgencyAndId mappedTripID = candidateTrips.get(assignment[i]).getId();
+        learnDirection(t, mappedTripID);
+        mappings.put(t.getTripID(), mappedTripID);
+        _prefetchMapped.inc();
+      } else {
+        Reason reason = (mappedRouteID == null) ? Reason.ROUTE_UNMAPPED
+            : candidateTrips.isEmpty() ? Reason.NO_CANDIDATES
+                : Reason.SCORE_TOO_HIGH;
+        _negativeResults.recordFailure(k, reason);
+        _prefetchUnmapped.inc();
+        unmapped++;
+      }
+    }
+
+    _log.info("Mapped " + mappings.size() + " WMATA trips on route " + routeID
+        + " against " + candidateTrips.size() + " GTFS trips"
+        + ((unmapped > 0) ? "; " + unmapped + " could not be mapped" : ""));
+
+    return mappings;
+  }
+
+  /**
+   * Maps a route's WMATA trips to its GTFS trips jointly: every WMATA trip is
+   * scored against every candidate once, and each WMATA trip is then paired
+   * with a different GTFS trip so that the total score is least. Unlike
+   * mapping each trip on its own, two WMATA trips cannot both take the same
+   * GTFS trip, and each GTFS trip's stop times are indexed only once.
+   *
+   * @return the index of the GTFS trip assigned to each WMATA trip, or -1 if
+   *         it has none scoring under {@code tripMapping.scoreLimit}
+   */
+  int[] assignTrips(List<WMATATrip> wmataTrips, List<Trip> gtfsTrips,
+      ServiceDate serviceDate) {
+    List<List<StopTime>> gtfsStopTimes = new ArrayList<>(gtfsTrips.size());
+    List<Map<String, StopTimes>> gtfsIndices = new ArrayList<>(gtfsTrips.size());
+    for (Trip gtfsTrip : gtfsTrips) {
+      List<StopTime> stopTimes = _dao.getStopTimesForTrip(gtfsTrip);
+      gtfsStopTimes.add(stopTimes);
+      gtfsIndices.add(indexStopTimes(stopTimes));
+    }
+
+    /*
+     * Scores at or over the limit are capped at it, so that pairing a WMATA
+     * trip with a GTFS trip it does not match costs the same as leaving it
+     * unmapped, and the assignment never trades a good match for a bad one.
+     */
+    double[][] scores = new double[wmataTrips.size()][gtfsTrips.size()];
+    for (int i = 0; i < wmataTrips.size(); i++) {
+      List<WMATAStopTime> wmataStopTimes = wmataTrips.get(i).getStopTimes();
+      Collections.sort(wmataStopTimes);
+      for (int j = 0; j < gtfsTrips.size(); j++) {
+        scores[i][j] = Math.min(_scoreLimit, computeStopTimeAlignmentScore(
+            wmataStopTimes, gtfsStopTimes.get(j), gtfsIndices.get(j),
+            serviceDate));
+      }
+    }
+
+    int[] assignment = Assignment.solve(scores);
+    for (int i = 0; i < assignment.length; i++) {
+      if (assignment[i] >= 0 && scores[i][assignment[i]] >= _scoreLimit) {
+        assignment[i] = -1;
+      }
+    }
+    return assignment;
+  }
+
+  WMATATrip getWMATATrip(ServiceDate serviceDate, String routeID,
       Date tripStartTime, Date tripEndTime, String tripDirection)
       throws WMATAAPIException {
     RouteSchedule rsi = _api.downloadRouteScheduleInfo(routeID, DateTimeUtils.apiDateStringForServiceDate(serviceDate));
@@ -154,18 +636,45 @@ public class WMATATripMapperService {
     return null;
   }
 
-  private AgencyAndId mapTrip(ServiceDate serviceDate, WMATATrip theTrip) {
+  AgencyAndId mapTrip(ServiceDate serviceDate, WMATATrip theTrip) {
+    try {
+      return mapTripOrThrow(serviceDate, theTrip);
+    } catch (UnmappedTripException e) {
+      return null;
+    }
+  }
+
+  private AgencyAndId mapTripOrThrow(ServiceDate serviceDate,
+      WMATATrip theTrip) throws UnmappedTripException {
+    TripMappingEvent event = _events.newTripMappingEvent();
+    event.begin();
+    event.setRouteId(theTrip.getRouteID());
+    event.setTripId(theTrip.getTripID());
+
+    try {
+      AgencyAndId mappedTripID = mapTrip(serviceDate, theTrip, event);
+      event.setMapped(true);
+      return mappedTripID;
+    } finally {
+      event.commit();
+    }
+  }
+
+  private AgencyAndId mapTrip(ServiceDate serviceDate, WMATATrip theTrip,
+      TripMappingEvent event) throws UnmappedTripException {
     AgencyAndId mappedRouteID = _routeMapperService.getRouteMapping(theTrip.getRouteID());
 
     if (mappedRouteID != null) {
 
       Collection<Trip> candidateTrips = tripsForServiceDateAndRoute(
           serviceDate, mappedRouteID);
+      event.setCandidateCount(candidateTrips.size());
 
       if (candidateTrips.size() > 0) {
         T2<Double, Trip> result = findBestGtfsTripForWMATATrip(theTrip,
             candidateTrips, serviceDate);
         double mappingScore = result.getFirst();
+        event.setBestScore(mappingScore);
         Trip mappedTrip = result.getSecond();
 
         if (mappingScore < _scoreLimit) {
@@ -183,7 +692,8 @@ public class WMATATripMapperService {
           _log.warn("Could not map WMATA trip " + theTrip.getTripID()
               + " on route " + theTrip.getRouteID() + " with score "
               + Math.round(mappingScore));
-          return null;
+          throw new UnmappedTripException(Reason.SCORE_TOO_HIGH, "Best score "
+              + Math.round(mappingScore));
         }
       } else {
         /*
@@ -193,7 +703,8 @@ public class WMATATripMapperService {
         _log.warn("Could not map WMATA trip " + theTrip.getTripID()
             + " on route " + theTrip.getRouteID()
             + " (no candidates from GTFS schedule)");
-        return null;
+        throw new UnmappedTripException(Reason.NO_CANDIDATES,
+            "No candidates from GTFS schedule");
       }
     } else {
       /*
@@ -202,27 +713,55 @@ public class WMATATripMapperService {
        */
       _log.warn("Could not map WMATA trip " + theTrip.getTripID()
           + " (could not map route " + theTrip.getRouteID() + ")");
-      return null;
+      throw new UnmappedTripException(Reason.ROUTE_UNMAPPED,
+          "Could not map route " + theTrip.getRouteID());
     }
   }
 
-  private Collection<Trip> tripsForServiceDateAndRoute(ServiceDate serviceDate,
+  Collection<Trip> tripsForServiceDateAndRoute(ServiceDate serviceDate,
       AgencyAndId route) {
-    Route r = _dao.getRouteForId(route);
+    IndexedTrips routeTrips = routeTrips(route);
+
+    BitSet services = _serviceIndex.getActiveServices(serviceDate);
+
+    List<Trip> activeTrips = new ArrayList<>();
+    for (int i = 0; i < routeTrips.trips.size(); i++) {
+      if (_serviceIndex.isServiceActive(services, routeTrips.serviceOrdinals[i])) {
+        activeTrips.add(routeTrips.trips.get(i));
+      }
+    }
+    return activeTrips;
+  }
+
+  private IndexedTrips routeTrips(AgencyAndId route) {
+    IndexedTrips routeTrips = _tripsByRoute.get(route);
 
-    final Set<AgencyAndId> services = _csd.getServiceIdsForDate(serviceDate);
+    if (routeTrips == null) {
+      routeTrips = new IndexedTrips(_dao.getTripsForRoute(_dao.getRouteForId(route)));
+      IndexedTrips existing = _tripsByRoute.putIfAbsent(route, routeTrips);
+      if (existing != null) {
+        routeTrips = existing;
+      }
+    }
 
-    List<Trip> allTrips = _dao.getTripsForRoute(r);
+    return routeTrips;
+  }
 
-    return Collections2.<Trip> filter(allTrips, new Predicate<Trip>() {
-      @Override
-      public boolean apply(Trip t) {
-        return services.contains(t.getServiceId());
+  private IndexedTrips blockTrips(AgencyAndId block) {
+    IndexedTrips blockTrips = _tripsByBlock.get(block);
+
+    if (blockTrips == null) {
+      blockTrips = new IndexedTrips(_dao.getTripsForBlockId(block));
+      IndexedTrips existing = _tripsByBlock.putIfAbsent(block, blockTrips);
+      if (existing != null) {
+        blockTrips = existing;
       }
-    });
+    }
+
+    return blockTrips;
   }
 
-  private T2<Double, Trip> findBestGtfsTripForWMATATrip(WMATATrip wmataTrip,
+  T2<Double, Trip> findBestGtfsTripForWMATATrip(WMATATrip wmataTrip,
       Collection<Trip> gtfsTrips, ServiceDate serviceDate) {
 
     List<WMATAStopTime> wmataStopTimes = wmataTrip.getStopTimes();
@@ -263,10 +802,19 @@ public class WMATATripMapperService {
     return Tuples.<Double, Trip> tuple(m.getMinValue(), m.getMinElement());
   }
 
-  private double computeStopTimeAlignmentScore(
+  double computeStopTimeAlignmentScore(
       List<WMATAStopTime> wmataStopTimes, List<StopTime> gtfsStopTimes,
       ServiceDate serviceDate) {
+    return computeStopTimeAlignmentScore(wmataStopTimes, gtfsStopTimes,
+        indexStopTimes(gtfsStopTimes), serviceDate);
+  }
 
+  /**
+   * Indexes a GTFS trip's stop times by stop code, for
+   * {@link #computeStopTimeAlignmentScore(List, List, Map, ServiceDate)}.
+   */
+  private static Map<String, StopTimes> indexStopTimes(
+      List<StopTime> gtfsStopTimes) {
     Map<String, StopTimes> gtfsStopIdToStopTimes = new HashMap<>();
     for (int index = 0; index < gtfsStopTimes.size(); index++) {
       StopTime stopTime = gtfsStopTimes.get(index);
@@ -283,6 +831,12 @@ public class WMATATripMapperService {
       stopTimes.pack();
     }
 
+    return gtfsStopIdToStopTimes;
+  }
+
+  private double computeStopTimeAlignmentScore(
+      List<WMATAStopTime> wmataStopTimes, List<StopTime> gtfsStopTimes,
+      Map<String, StopTimes> gtfsStopIdToStopTimes, ServiceDate serviceDate) {
     Map<WMATAStopTime, Integer> mapping = new HashMap<>();
 
     for (WMATAStopTime wmataStopTime : wmataStopTimes) {
@@ -332,6 +886,36 @@ public class WMATATripMapperService {
     return ((stopTime.getDepartureTime() + stopTime.getArrivalTime()) / 2);
   }
 
+  /**
+   * The trips of a route or block, paired with the ordinal of each trip's
+   * service ID so that checking whether a trip is active is a single bit test,
+   * and with each trip's first departure and last arrival time.
+   */
+  private class IndexedTrips {
+
+    private final List<Trip> trips;
+    private final int[] serviceOrdinals;
+    private final int[] startTimes;
+    private final int[] endTimes;
+
+    public IndexedTrips(List<Trip> trips) {
+      this.trips = trips;
+      this.serviceOrdinals = new int[trips.size()];
+      this.startTimes = new int[trips.size()];
+      this.endTimes = new int[trips.size()];
+      for (int i = 0; i < trips.size(); i++) {
+        serviceOrdinals[i] = _serviceIndex.getServiceOrdinal(trips.get(i).getServiceId());
+        List<StopTime> stopTimes = _dao.getStopTimesForTrip(trips.get(i));
+        if (stopTimes.isEmpty()) {
+          startTimes[i] = endTimes[i] = Integer.MIN_VALUE;
+        } else {
+          startTimes[i] = stopTimes.get(0).getDepartureTime();
+          endTimes[i] = stopTimes.get(stopTimes.size() - 1).getArrivalTime();
+        }
+      }
+    }
+  }
+
   private static class StopTimes {
 
     private List<StopTime> stopTimes = new ArrayList<>();